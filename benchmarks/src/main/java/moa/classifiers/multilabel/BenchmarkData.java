@@ -0,0 +1,100 @@
+package moa.classifiers.multilabel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+import com.yahoo.labs.samoa.instances.MultiLabelInstance;
+import com.yahoo.labs.samoa.instances.SparseInstance;
+
+import moa.streams.generators.multilabel.MetaMultilabelGenerator;
+
+/**
+* Reproducible data and learners shared by the benchmarks
+*
+* @author Alberto Cano
+*/
+
+final class BenchmarkData {
+
+	private BenchmarkData() {
+	}
+
+	/**
+	 * Returns a prepared generator with the given number of numeric features and labels.
+	 */
+	static MetaMultilabelGenerator generator(int numFeatures, int numLabels, int seed) {
+
+		MetaMultilabelGenerator stream = new MetaMultilabelGenerator();
+		stream.binaryGeneratorOption.setValueViaCLIString("generators.RandomTreeGenerator -r " + seed + " -i " + seed + " -o 0 -u " + numFeatures);
+		stream.numLabelsOption.setValue(numLabels);
+		stream.metaRandomSeedOption.setValue(seed);
+		stream.prepareForUse();
+
+		return stream;
+	}
+
+	/**
+	 * Draws instances from the generator, zeroing each feature with the given probability and storing the result
+	 * as sparse instances when the sparsity is positive.
+	 */
+	static List<MultiLabelInstance> instances(MetaMultilabelGenerator stream, int numInstances, double sparsity, long seed) {
+
+		Random random = new Random(seed);
+
+		List<MultiLabelInstance> instances = new ArrayList<MultiLabelInstance>(numInstances);
+
+		for(int i = 0; i < numInstances; i++)
+		{
+			Instance instance = stream.nextInstance().getData();
+
+			if(sparsity > 0)
+				instance = sparsify(instance, sparsity, random);
+
+			instances.add((MultiLabelInstance) instance);
+		}
+
+		return instances;
+	}
+
+	private static Instance sparsify(Instance dense, double sparsity, Random random) {
+
+		int numAttributes = dense.numAttributes();
+		int numLabels = dense.numOutputAttributes();
+
+		double[] values = new double[numAttributes];
+		int[] indices = new int[numAttributes];
+		int numValues = 0;
+
+		for(int i = 0; i < numAttributes; i++)
+		{
+			if(i >= numLabels && random.nextDouble() < sparsity)
+				continue;
+
+			if(dense.value(i) != 0)
+			{
+				values[numValues] = dense.value(i);
+				indices[numValues++] = i;
+			}
+		}
+
+		Instance sparse = new SparseInstance(1.0, Arrays.copyOf(values, numValues), Arrays.copyOf(indices, numValues), numAttributes);
+		sparse.setDataset(dense.dataset());
+
+		return sparse;
+	}
+
+	static MLSAMPkNN learner(InstancesHeader header, int maxWindowSize, int k) {
+
+		MLSAMPkNN learner = new MLSAMPkNN();
+		learner.kOption.setValue(k);
+		learner.maxWindowSize.setValue(maxWindowSize);
+		learner.setModelContext(header);
+		learner.prepareForUse();
+
+		return learner;
+	}
+}
@@ -0,0 +1,67 @@
+package moa.classifiers.multilabel;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yahoo.labs.samoa.instances.MultiLabelInstance;
+
+import moa.streams.generators.multilabel.MetaMultilabelGenerator;
+
+/**
+* Cost of one normalized Euclidean distance, dense (sparsity 0) or sparse
+*
+* @author Alberto Cano
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DistanceBenchmark {
+
+	private static final int POOL_SIZE = 1024;
+
+	@Param({"50", "500"})
+	public int numFeatures;
+
+	@Param({"10"})
+	public int numLabels;
+
+	@Param({"0.0", "0.9"})
+	public double sparsity;
+
+	private MLSAMPkNN learner;
+	private List<MultiLabelInstance> pool;
+	private int cursor;
+
+	@Setup
+	public void setup() {
+		MetaMultilabelGenerator stream = BenchmarkData.generator(numFeatures, numLabels, 1);
+		pool = BenchmarkData.instances(stream, POOL_SIZE, sparsity, 1);
+
+		// Training sets the attribute ranges used to normalize the distance
+		learner = BenchmarkData.learner(stream.getHeader(), POOL_SIZE, 3);
+		for(MultiLabelInstance instance : pool)
+			learner.trainOnInstanceImpl(instance);
+	}
+
+	@Benchmark
+	public double getDistance() {
+		cursor = (cursor + 1) % POOL_SIZE;
+		return learner.getDistance(pool.get(cursor), pool.get(POOL_SIZE - 1 - cursor));
+	}
+}
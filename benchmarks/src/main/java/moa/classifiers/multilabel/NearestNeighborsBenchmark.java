@@ -0,0 +1,61 @@
+package moa.classifiers.multilabel;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Cost of selecting the k smallest distances of a window
+*
+* @author Alberto Cano
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NearestNeighborsBenchmark {
+
+	private static final int NUM_ROWS = 64;
+
+	@Param({"500", "2000"})
+	public int windowSize;
+
+	@Param({"3", "10"})
+	public int k;
+
+	private MLSAMPkNN learner;
+	private double[][] distances;
+	private int cursor;
+
+	@Setup
+	public void setup() {
+		learner = new MLSAMPkNN();
+
+		Random random = new Random(1);
+		distances = new double[NUM_ROWS][windowSize];
+
+		for(double[] row : distances)
+			for(int i = 0; i < windowSize; i++)
+				row[i] = random.nextDouble();
+	}
+
+	@Benchmark
+	public int[] nArgMin() {
+		cursor = (cursor + 1) % NUM_ROWS;
+		return learner.nArgMin(k, distances[cursor]);
+	}
+}
@@ -0,0 +1,74 @@
+package moa.classifiers.multilabel;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.MultiLabelPrediction;
+
+import moa.streams.generators.multilabel.MetaMultilabelGenerator;
+
+/**
+* Cost of turning the labels of k neighbors into label votes
+*
+* @author Alberto Cano
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PredictionBenchmark {
+
+	private static final int NUM_QUERIES = 1024;
+
+	@Param({"500", "2000"})
+	public int windowSize;
+
+	@Param({"3", "10"})
+	public int k;
+
+	@Param({"10", "50"})
+	public int numLabels;
+
+	private MLSAMPkNN learner;
+	private List<? extends Instance> window;
+	private int[][] neighbors;
+	private int cursor;
+
+	@Setup
+	public void setup() {
+		MetaMultilabelGenerator stream = BenchmarkData.generator(20, numLabels, 1);
+		window = BenchmarkData.instances(stream, windowSize, 0, 1);
+		learner = BenchmarkData.learner(stream.getHeader(), windowSize, k);
+
+		Random random = new Random(1);
+		neighbors = new int[NUM_QUERIES][k];
+
+		for(int[] query : neighbors)
+			for(int i = 0; i < k; i++)
+				query[i] = random.nextInt(windowSize);
+	}
+
+	@Benchmark
+	@SuppressWarnings("unchecked")
+	public MultiLabelPrediction getPrediction() {
+		cursor = (cursor + 1) % NUM_QUERIES;
+		return learner.getPrediction(neighbors[cursor], (List<Instance>) window);
+	}
+}
@@ -0,0 +1,85 @@
+package moa.classifiers.multilabel;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yahoo.labs.samoa.instances.MultiLabelInstance;
+import com.yahoo.labs.samoa.instances.Prediction;
+
+import moa.streams.generators.multilabel.MetaMultilabelGenerator;
+
+/**
+* Cost of one training step, and of a test-then-train step, once the window has reached its steady state
+*
+* The pool is longer than twice the window, so an instance has always left the window when the pool wraps around.
+*
+* @author Alberto Cano
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrainingBenchmark {
+
+	@Param({"500", "2000"})
+	public int windowSize;
+
+	@Param({"3", "10"})
+	public int k;
+
+	@Param({"50", "500"})
+	public int numFeatures;
+
+	@Param({"10", "50"})
+	public int numLabels;
+
+	@Param({"0.0", "0.9"})
+	public double sparsity;
+
+	private MLSAMPkNN learner;
+	private List<MultiLabelInstance> pool;
+	private int cursor;
+
+	@Setup
+	public void setup() {
+		MetaMultilabelGenerator stream = BenchmarkData.generator(numFeatures, numLabels, 1);
+		pool = BenchmarkData.instances(stream, 2 * windowSize + 1000, sparsity, 1);
+		learner = BenchmarkData.learner(stream.getHeader(), windowSize, k);
+
+		for(MultiLabelInstance instance : pool)
+			learner.trainOnInstanceImpl(instance);
+	}
+
+	private MultiLabelInstance next() {
+		cursor = (cursor + 1) % pool.size();
+		return pool.get(cursor);
+	}
+
+	@Benchmark
+	public void trainOnInstanceImpl() {
+		learner.trainOnInstanceImpl(next());
+	}
+
+	@Benchmark
+	public Prediction testThenTrain() {
+		MultiLabelInstance instance = next();
+		Prediction prediction = learner.getPredictionForInstance(instance);
+		learner.trainOnInstanceImpl(instance);
+		return prediction;
+	}
+}
@@ -0,0 +1,79 @@
+package moa.classifiers.multilabel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yahoo.labs.samoa.instances.MultiLabelInstance;
+
+import moa.streams.generators.multilabel.MetaMultilabelGenerator;
+
+/**
+* Cost of the self-adjusting memory evaluation on a window whose last quarter comes from a different concept
+*
+* The window is filled with the adaptation disabled, and every invocation works on a fresh copy of that learner.
+*
+* @author Alberto Cano
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WindowSizeBenchmark {
+
+	@Param({"500", "2000"})
+	public int windowSize;
+
+	@Param({"3", "10"})
+	public int k;
+
+	@Param({"10", "50"})
+	public int numLabels;
+
+	@Param({"50"})
+	public int minWindowSize;
+
+	private MLSAMPkNN drifted;
+	private MLSAMPkNN learner;
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		MetaMultilabelGenerator before = BenchmarkData.generator(20, numLabels, 1);
+		MetaMultilabelGenerator after = BenchmarkData.generator(20, numLabels, 2);
+
+		drifted = BenchmarkData.learner(before.getHeader(), windowSize, k);
+		drifted.minWindowSize.setValue(windowSize);
+
+		for(MultiLabelInstance instance : BenchmarkData.instances(before, windowSize - windowSize / 4, 0, 1))
+			drifted.trainOnInstanceImpl(instance);
+
+		for(MultiLabelInstance instance : BenchmarkData.instances(after, windowSize / 4, 0, 2))
+			drifted.trainOnInstanceImpl(instance);
+
+		drifted.minWindowSize.setValue(minWindowSize);
+	}
+
+	@Setup(Level.Invocation)
+	public void setupInvocation() {
+		learner = (MLSAMPkNN) drifted.copy();
+	}
+
+	@Benchmark
+	public int getNewWindowSize() {
+		return learner.getNewWindowSize();
+	}
+}
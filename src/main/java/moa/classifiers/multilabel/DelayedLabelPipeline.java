@@ -0,0 +1,266 @@
+package moa.classifiers.multilabel;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.MultiLabelInstance;
+import com.yahoo.labs.samoa.instances.Prediction;
+import com.yahoo.labs.samoa.instances.SparseInstance;
+
+/**
+* Delayed-label learning with MLSAMPkNN
+*
+* Unlabeled instances are predicted as soon as they arrive and kept, with the neighbors that predicted them, in a
+* bounded buffer keyed by id. When the labels of an instance arrive, the punitive errors of its neighbors and the
+* training step are applied in prediction order: an instance waits until every older one has been labeled,
+* expired or evicted. Pending instances expire after a maximum age, and the oldest ones are evicted when the
+* buffer exceeds its count or byte limits. Labeled instances leaving the buffer early are still trained on.
+*
+* All methods are synchronized, so predictions and labels may come from different threads.
+*
+* @author Alberto Cano
+*/
+
+public class DelayedLabelPipeline<I> {
+
+	private static final int PENDING_ENTRY_BYTES = 96;
+
+	private final MLSAMPkNN learner;
+	private final int maxPendingInstances;
+	private final long maxPendingBytes;
+	private final long expiryNanos;
+	private final LongSupplier clock;
+
+	private final LinkedHashMap<I, Pending> pending = new LinkedHashMap<I, Pending>();
+	private long pendingBytes;
+
+	private long trainedInstances;
+	private long expiredInstances;
+	private long evictedInstances;
+	private long unknownLabels;
+
+	/**
+	 * A predicted instance waiting for its labels.
+	 */
+	private static final class Pending {
+
+		MultiLabelInstance instance;
+		final List<Instance> neighbors;
+		final long arrivalTime;
+		long bytes;
+		boolean labeled;
+
+		Pending(MultiLabelInstance instance, List<Instance> neighbors, long arrivalTime) {
+			this.instance = instance;
+			this.neighbors = neighbors;
+			this.arrivalTime = arrivalTime;
+			this.bytes = PENDING_ENTRY_BYTES + MLSAMPkNN.instanceBytes(instance) + 4L * neighbors.size();
+		}
+	}
+
+	/**
+	 * @param learner the learner, with its model context set, used only through this pipeline
+	 * @param maxPendingInstances maximum number of instances waiting for their labels
+	 * @param maxPendingBytes maximum estimated bytes of the instances waiting for their labels
+	 * @param expiryNanos maximum time an instance waits for its labels
+	 */
+	public DelayedLabelPipeline(MLSAMPkNN learner, int maxPendingInstances, long maxPendingBytes, long expiryNanos) {
+		this(learner, maxPendingInstances, maxPendingBytes, expiryNanos, System::nanoTime);
+	}
+
+	public DelayedLabelPipeline(MLSAMPkNN learner, int maxPendingInstances, long maxPendingBytes, long expiryNanos, LongSupplier clock) {
+		if(maxPendingInstances < 1 || maxPendingBytes < 1 || expiryNanos < 1)
+			throw new IllegalArgumentException("The pending limits and the expiry must be positive");
+
+		this.learner = learner;
+		this.maxPendingInstances = maxPendingInstances;
+		this.maxPendingBytes = maxPendingBytes;
+		this.expiryNanos = expiryNanos;
+		this.clock = clock;
+	}
+
+	/**
+	 * Predicts an unlabeled instance and keeps it until its labels arrive. The instance must not be modified by
+	 * the caller afterwards.
+	 */
+	public synchronized Prediction predict(I id, MultiLabelInstance instance) {
+
+		if(pending.containsKey(id))
+			throw new IllegalArgumentException("Instance " + id + " is already waiting for its labels");
+
+		List<Instance> neighbors = new ArrayList<Instance>();
+		Prediction prediction = learner.getPredictionForUnlabeledInstance(instance, neighbors);
+
+		Pending entry = new Pending(instance, neighbors, clock.getAsLong());
+		pending.put(id, entry);
+		pendingBytes += entry.bytes;
+
+		while (pending.size() > maxPendingInstances || pendingBytes > maxPendingBytes)
+			evictOldest();
+
+		drain();
+
+		return prediction;
+	}
+
+	/**
+	 * Sets the labels of a pending instance and trains on every instance that is now ready.
+	 *
+	 * @return false when the id is unknown, because it already expired, was evicted or was never predicted
+	 */
+	public synchronized boolean label(I id, double[] labels) {
+
+		Pending entry = pending.get(id);
+
+		if(entry == null || entry.labeled)
+		{
+			unknownLabels++;
+			drain();
+			return false;
+		}
+
+		entry.instance = withLabels(entry.instance, labels);
+		entry.labeled = true;
+
+		long bytes = PENDING_ENTRY_BYTES + MLSAMPkNN.instanceBytes(entry.instance) + 4L * entry.neighbors.size();
+		pendingBytes += bytes - entry.bytes;
+		entry.bytes = bytes;
+
+		drain();
+
+		return true;
+	}
+
+	/**
+	 * Returns the instance with the given label values. A sparse instance only stores the values it was created
+	 * with, so setting a label absent at prediction time would be lost, and the instance is built again with the
+	 * non-zero labels followed by its input values, the labels being the first attributes as in MLSAMPkNN.
+	 */
+	private static MultiLabelInstance withLabels(MultiLabelInstance instance, double[] labels) {
+
+		if(instance.numValues() == instance.numAttributes())
+		{
+			for(int j = 0; j < labels.length; j++)
+				instance.setClassValue(j, labels[j]);
+
+			return instance;
+		}
+
+		int numLabels = instance.numOutputAttributes();
+
+		int numLabelValues = 0;
+		for(int j = 0; j < numLabels; j++)
+			if(labels[j] != 0)
+				numLabelValues++;
+
+		int numFeatureValues = 0;
+		for(int p = 0; p < instance.numValues(); p++)
+			if(instance.index(p) >= numLabels)
+				numFeatureValues++;
+
+		int[] indices = new int[numLabelValues + numFeatureValues];
+		double[] values = new double[numLabelValues + numFeatureValues];
+		int position = 0;
+
+		for(int j = 0; j < numLabels; j++)
+		{
+			if(labels[j] != 0)
+			{
+				indices[position] = j;
+				values[position++] = labels[j];
+			}
+		}
+
+		for(int p = 0; p < instance.numValues(); p++)
+		{
+			if(instance.index(p) >= numLabels)
+			{
+				indices[position] = instance.index(p);
+				values[position++] = instance.valueSparse(p);
+			}
+		}
+
+		SparseInstance labeled = new SparseInstance(instance.weight(), values, indices, instance.numAttributes());
+		labeled.setDataset(instance.dataset());
+
+		return labeled;
+	}
+
+	/**
+	 * Applies the instances ready at the head of the buffer and drops the expired ones.
+	 */
+	public synchronized void expire() {
+		drain();
+	}
+
+	private void drain() {
+
+		long now = clock.getAsLong();
+
+		Iterator<Map.Entry<I, Pending>> it = pending.entrySet().iterator();
+
+		while (it.hasNext())
+		{
+			Pending entry = it.next().getValue();
+
+			if(entry.labeled)
+				apply(entry);
+			else if(now - entry.arrivalTime >= expiryNanos)
+				expiredInstances++;
+			else
+				break;
+
+			it.remove();
+			pendingBytes -= entry.bytes;
+		}
+	}
+
+	private void evictOldest() {
+
+		Iterator<Map.Entry<I, Pending>> it = pending.entrySet().iterator();
+		Pending entry = it.next().getValue();
+
+		if(entry.labeled)
+			apply(entry);
+		else
+			evictedInstances++;
+
+		it.remove();
+		pendingBytes -= entry.bytes;
+	}
+
+	private void apply(Pending entry) {
+		learner.punishNeighbors(entry.neighbors, entry.instance);
+		learner.trainOnInstance(entry.instance);
+		trainedInstances++;
+	}
+
+	public synchronized int numPendingInstances() {
+		return pending.size();
+	}
+
+	public synchronized long getPendingBytes() {
+		return pendingBytes;
+	}
+
+	public synchronized long getTrainedInstances() {
+		return trainedInstances;
+	}
+
+	public synchronized long getExpiredInstances() {
+		return expiredInstances;
+	}
+
+	public synchronized long getEvictedInstances() {
+		return evictedInstances;
+	}
+
+	public synchronized long getUnknownLabels() {
+		return unknownLabels;
+	}
+}
@@ -0,0 +1,75 @@
+package moa.classifiers.multilabel;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+* Metrics sink keeping one latency histogram per phase and one total per counter
+*
+* Recording and reading are synchronized so a monitoring thread can poll the learner while it runs.
+*
+* @author Alberto Cano
+*/
+
+public class HistogramMetricsSink implements MLSAMPkNNMetricsSink {
+
+	private final Map<Phase, LatencyHistogram> histograms = new EnumMap<Phase, LatencyHistogram>(Phase.class);
+
+	private final long[] counters = new long[Counter.values().length];
+
+	public HistogramMetricsSink() {
+		for(Phase phase : Phase.values())
+			histograms.put(phase, new LatencyHistogram());
+	}
+
+	public boolean isEnabled() {
+		return true;
+	}
+
+	public synchronized void recordTime(Phase phase, long nanos) {
+		histograms.get(phase).record(nanos);
+	}
+
+	public synchronized void incrementCounter(Counter counter, long delta) {
+		counters[counter.ordinal()] += delta;
+	}
+
+	/**
+	 * Returns a copy of the histogram of a phase.
+	 */
+	public synchronized LatencyHistogram getHistogram(Phase phase) {
+		LatencyHistogram copy = new LatencyHistogram();
+		copy.add(histograms.get(phase));
+		return copy;
+	}
+
+	public synchronized long getCounter(Counter counter) {
+		return counters[counter.ordinal()];
+	}
+
+	public synchronized void reset() {
+		for(LatencyHistogram histogram : histograms.values())
+			histogram.reset();
+
+		java.util.Arrays.fill(counters, 0);
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		for(Phase phase : Phase.values())
+		{
+			LatencyHistogram histogram = histograms.get(phase);
+			sb.append(phase).append("\tcount ").append(histogram.getCount())
+			.append("\tp50 ").append(histogram.getValueAtPercentile(50))
+			.append("\tp99 ").append(histogram.getValueAtPercentile(99))
+			.append("\tmax ").append(histogram.getMax()).append(" ns\n");
+		}
+
+		for(Counter counter : Counter.values())
+			sb.append(counter).append('\t').append(counters[counter.ordinal()]).append('\n');
+
+		return sb.toString();
+	}
+}
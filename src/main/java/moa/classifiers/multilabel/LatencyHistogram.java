@@ -0,0 +1,127 @@
+package moa.classifiers.multilabel;
+
+import java.io.Serializable;
+
+/**
+* Log-linear histogram of non-negative long values (typically nanoseconds)
+*
+* Values are grouped in buckets whose width doubles every power of two, each bucket split in a fixed number of
+* linear sub-buckets, as done by HdrHistogram. Recording is a couple of bit operations and one array increment,
+* and percentiles are accurate within 1/32 of the value regardless of its magnitude.
+*
+* @author Alberto Cano
+*/
+
+public class LatencyHistogram implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int SUB_BUCKET_BITS = 6;
+
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+	private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+	private final long[] counts = new long[SUB_BUCKET_COUNT + (64 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF_COUNT];
+
+	private long totalCount;
+	private long totalSum;
+	private long maxValue;
+
+	public void record(long value) {
+		if(value < 0)
+			value = 0;
+
+		counts[indexOf(value)]++;
+		totalCount++;
+		totalSum += value;
+
+		if(value > maxValue)
+			maxValue = value;
+	}
+
+	public void add(LatencyHistogram other) {
+		for(int i = 0; i < counts.length; i++)
+			counts[i] += other.counts[i];
+
+		totalCount += other.totalCount;
+		totalSum += other.totalSum;
+		maxValue = Math.max(maxValue, other.maxValue);
+	}
+
+	public void reset() {
+		java.util.Arrays.fill(counts, 0);
+		totalCount = 0;
+		totalSum = 0;
+		maxValue = 0;
+	}
+
+	/**
+	 * Returns the estimated bytes held by the histogram.
+	 */
+	public long estimateMemoryBytes() {
+		return 16 + 24 + 16 + 8L * counts.length;
+	}
+
+	public long getCount() {
+		return totalCount;
+	}
+
+	public long getMax() {
+		return maxValue;
+	}
+
+	public double getMean() {
+		return totalCount == 0 ? 0 : totalSum / (double) totalCount;
+	}
+
+	/**
+	 * Returns the value at the given percentile (0-100), or 0 when nothing was recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+
+		if(totalCount == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100.0 * totalCount);
+
+		if(rank < 1)
+			rank = 1;
+
+		long seen = 0;
+
+		for(int i = 0; i < counts.length; i++)
+		{
+			seen += counts[i];
+
+			if(seen >= rank)
+				return Math.min(maxValue, valueOf(i));
+		}
+
+		return maxValue;
+	}
+
+	private static int indexOf(long value) {
+
+		if(value < SUB_BUCKET_COUNT)
+			return (int) value;
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+
+		return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT + (int) (value >>> shift) - SUB_BUCKET_HALF_COUNT;
+	}
+
+	/**
+	 * Returns the middle of the value range covered by a bucket.
+	 */
+	private static long valueOf(int index) {
+
+		if(index < SUB_BUCKET_COUNT)
+			return index;
+
+		int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+		long top = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+
+		return (top << shift) + ((1L << shift) >>> 1);
+	}
+}
@@ -1,13 +1,21 @@
 package moa.classifiers.multilabel;
 
+import com.github.javacliparser.FlagOption;
 import com.github.javacliparser.FloatOption;
 import com.github.javacliparser.IntOption;
 import com.github.javacliparser.MultiChoiceOption;
 import com.yahoo.labs.samoa.instances.*;
 import moa.classifiers.AbstractMultiLabelLearner;
 import moa.classifiers.MultiLabelClassifier;
+import moa.classifiers.core.driftdetection.ChangeDetector;
+import moa.classifiers.multilabel.MLSAMPkNNMetricsSink.Counter;
+import moa.classifiers.multilabel.MLSAMPkNNMetricsSink.Phase;
 import moa.core.Measurement;
+import moa.core.StringUtils;
+import moa.options.ClassOption;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.*;
 
 /**
@@ -34,24 +42,121 @@ public class MLSAMPkNN extends AbstractMultiLabelLearner implements MultiLabelCl
 
 	public MultiChoiceOption metric = new MultiChoiceOption("metric", 'e', "Choose metric used to adjust memory", metrics, metrics, 0);
 
+	public FlagOption shrinkDistanceCache = new FlagOption("shrinkDistanceCache", 's', "Release the distance cache rows after the window stays below a quarter of the cache");
+
+	private String[] precisions = {"Double", "Float", "Int8"};
+
+	public MultiChoiceOption featurePrecision = new MultiChoiceOption("featurePrecision", 'f', "Precision of the window features kept on the heap and scanned for predictions, whose best candidates are re-ranked with the full-precision features kept off the heap (dense instances only)", precisions, precisions, 0);
+
+	public IntOption rerankFactor = new IntOption("rerankFactor", 'x', "Number of reduced-precision candidates re-ranked per neighbor", 4, 1, Integer.MAX_VALUE);
+
+	public IntOption projectedDimensions = new IntOption("projectedDimensions", 'd', "Number of dimensions of the sparse random projection of the input attributes, or 0 to keep them. The raw values are projected and the projected dimensions range-scaled, so distances are only preserved for attributes of similar ranges", 0, 0, Integer.MAX_VALUE);
+
+	public IntOption projectionSeed = new IntOption("projectionSeed", 'j', "Seed of the random projection", 1);
+
+	public FlagOption earlyAbandon = new FlagOption("earlyAbandon", 'a', "Select the neighbors of dense predictions in the distance scan, abandoning distances beyond the k-th best");
+
+	public IntOption numPivots = new IntOption("numPivots", 'v', "Number of window instances used as pivots to prune the prediction scan with the cached distances, or 0 to scan every instance", 0, 0, Integer.MAX_VALUE);
+
+	public FlagOption adaptiveK = new FlagOption("adaptiveK", 'y', "Take k as the maximum number of neighbors, and predict with the k of best metric over the full window history");
+
+	public FlagOption driftGated = new FlagOption("driftGated", 'g', "Evaluate the candidate window sizes only when the change detector flags the error of the full window, or after the maximum evaluation interval");
+
+	public ClassOption changeDetector = new ClassOption("changeDetector", 'c', "Change detector monitoring the error of the full window when drift gated", ChangeDetector.class, "ADWINChangeDetector");
+
+	public IntOption maxEvaluationInterval = new IntOption("maxEvaluationInterval", 'i', "Maximum number of instances between evaluations of the candidate window sizes when drift gated", 100, 1, Integer.MAX_VALUE);
+
+	private static final int INITIAL_DISTANCE_CACHE_ROWS = 16;
+
+	private static final int ATTRIBUTE_ORDER_REFRESH = 1024;
+
+	/**
+	 * Buffers of getScoresForInstance, sized to the window. They are kept by the learner, which is queried by one
+	 * thread at a time, and not serialized.
+	 */
+	private static final class PredictionScratch {
+		double[] distances = new double[0];
+		int[] indices = new int[0];
+	}
+
 	private int numLabels;
 	private List<Instance> window;
-	private double[][] distanceMatrix;
+	private double[][] distanceMatrix; // lower triangular, row i holds the distances to instances 0..i
+	private int instancesBelowQuarterCache;
+	private int firstCurrentRangeRow; // rows from here on were cached with the current attribute ranges
+	private boolean rangesShared; // ranges updated by other learners too, so firstCurrentRangeRow is not known
 	private double[] attributeRangeMin;
 	private double[] attributeRangeMax;
-	private Map<Integer, List<Integer>> predictionHistories;
-	private Map<Instance, Integer> errors;
+	private Map<Integer, PredictionHistory> predictionHistories;
+	private int[] errors; // punitive errors of every window instance, aligned with the window
+	private QuantizedFeatureStore featureStore;
+	private RandomProjection projection;
+	private double[] attributeMean;
+	private double[] attributeM2;
+	private long attributeStatisticsCount;
+	private int[] attributeOrder;
+	private SharedWindowDistances sharedDistances;
+	private WindowDistanceCache distanceCache; // replaces distanceMatrix when set
+	private int[] attributeBlocks; // block of every input attribute, with subspaceBlocks the subspace of the distances
+	private int[] subspaceBlocks;
+	private double[] subspaceBlockDistances; // partial distances of one pair, reused by getSubspaceDistance
+	private int selectedK;
+	private ChangeDetector detector;
+	private int instancesSinceEvaluation;
+
+	private long trainedInstances;
+	private long predictedInstances;
+	private long punitiveRemovals;
+	private long windowSizeCuts;
+	private long candidateSizesEvaluated;
+	private long distanceComputations;
+	private long abandonedDistances;
+	private long prunedDistances;
+	private long skippedEvaluations;
+	private LatencyHistogram predictionLatency = new LatencyHistogram();
+	private LatencyHistogram trainingLatency = new LatencyHistogram();
+	private transient PredictionScratch predictionScratch;
+
+	private transient MLSAMPkNNMetricsSink metricsSink = MLSAMPkNNMetricsSink.NOOP;
+
+	/**
+	 * Sets the sink receiving the hot path timings and counters, or disables them when null.
+	 */
+	public void setMetricsSink(MLSAMPkNNMetricsSink metricsSink) {
+		this.metricsSink = metricsSink == null ? MLSAMPkNNMetricsSink.NOOP : metricsSink;
+	}
+
+	public MLSAMPkNNMetricsSink getMetricsSink() {
+		return metricsSink;
+	}
 
 	@Override
 	public void setModelContext(InstancesHeader context) {
 		try {
+			modelContext = context;
 			numLabels = context.numOutputAttributes();
 			window = new ArrayList<Instance>();
-			attributeRangeMin = new double[context.numInputAttributes()];
-			attributeRangeMax = new double[context.numInputAttributes()];
-			distanceMatrix = new double[maxWindowSize.getValue()][maxWindowSize.getValue()];
-			predictionHistories = new HashMap<Integer, List<Integer>>();
-			errors = new HashMap<Instance, Integer>();
+
+			int numInputAttributes = context.numInputAttributes();
+			projection = null;
+
+			if(projectedDimensions.getValue() > 0 && projectedDimensions.getValue() < numInputAttributes)
+			{
+				projection = new RandomProjection(context, projectedDimensions.getValue(), projectionSeed.getValue());
+				numInputAttributes = projection.numDimensions();
+			}
+
+			attributeRangeMin = new double[numInputAttributes];
+			attributeRangeMax = new double[numInputAttributes];
+			rangesShared = false;
+			attributeMean = new double[numInputAttributes];
+			attributeM2 = new double[numInputAttributes];
+			attributeStatisticsCount = 0;
+			attributeOrder = null;
+			distanceMatrix = new double[0][];
+			predictionHistories = new HashMap<Integer, PredictionHistory>();
+			errors = new int[INITIAL_DISTANCE_CACHE_ROWS];
+			featureStore = createFeatureStore(numInputAttributes);
 
 		} catch(Exception e) {
 			System.err.println("Error: no Model Context available.");
@@ -65,73 +170,190 @@ public class MLSAMPkNN extends AbstractMultiLabelLearner implements MultiLabelCl
 		if(window != null)
 		{
 			window.clear();
-			distanceMatrix = new double[maxWindowSize.getValue()][maxWindowSize.getValue()];
-			predictionHistories = new HashMap<Integer, List<Integer>>();
-			errors = new HashMap<Instance, Integer>();
+			distanceMatrix = new double[0][];
+			instancesBelowQuarterCache = 0;
+			firstCurrentRangeRow = 0;
+			predictionHistories = new HashMap<Integer, PredictionHistory>();
+			errors = new int[INITIAL_DISTANCE_CACHE_ROWS];
+			featureStore = createFeatureStore(attributeRangeMin.length);
+			if(distanceCache != null)
+				distanceCache.clear();
+			attributeMean = new double[attributeRangeMin.length];
+			attributeM2 = new double[attributeRangeMin.length];
+			attributeStatisticsCount = 0;
+			attributeOrder = null;
 		}
+
+		selectedK = kOption.getValue();
+		detector = driftGated.isSet() ? ((ChangeDetector) getPreparedClassOption(changeDetector)).copy() : null;
+		instancesSinceEvaluation = 0;
+		skippedEvaluations = 0;
+		trainedInstances = 0;
+		predictedInstances = 0;
+		punitiveRemovals = 0;
+		windowSizeCuts = 0;
+		candidateSizesEvaluated = 0;
+		distanceComputations = 0;
+		abandonedDistances = 0;
+		prunedDistances = 0;
+		predictionLatency.reset();
+		trainingLatency.reset();
 	}
 
 	@Override
 	public void trainOnInstanceImpl(MultiLabelInstance inst) {
 
-		window.add(inst);
+		long startTime = System.nanoTime();
 
-		updateRanges(inst);
+		if(projection != null)
+			inst = projection.project(inst);
 
-		int windowSize = window.size();
+		insert(inst);
+
+		long phaseTime = phaseStart();
+
+		removePunishedInstances();
+
+		phaseEnd(Phase.PUNITIVE_REMOVAL, phaseTime);
+
+		phaseTime = phaseStart();
+
+		int newWindowSize = isWindowSizeEvaluationDue() ? getNewWindowSize() : window.size();
+
+		phaseEnd(Phase.WINDOW_SIZE, phaseTime);
+
+		phaseTime = phaseStart();
+
+		evict(newWindowSize);
+
+		phaseEnd(Phase.EVICTION, phaseTime);
+
+		trainedInstances++;
+		trainingLatency.record(System.nanoTime() - startTime);
+	}
+
+	/**
+	 * Appends an instance to the window and caches its distances to the window.
+	 */
+	private void insert(MultiLabelInstance inst) {
+
+		if(featureStore != null && inst.numValues() != inst.numAttributes())
+			featureStore = null; // Sparse streams are scanned with full precision
+
+		window.add(featureStore != null ? featureStore.add(inst) : inst);
 
-		get1ToNDistances(inst, window, distanceMatrix[windowSize-1]);
+		if(window.size() > errors.length)
+			errors = Arrays.copyOf(errors, Math.max(window.size(), Math.min(2 * errors.length, maxWindowSize.getValue())));
 
-		List<Instance> discarded = new ArrayList<Instance>();
+		errors[window.size() - 1] = 0;
 
-		for(Map.Entry<Instance, Integer> entry : errors.entrySet())
+		if(updateRanges(inst))
+			firstCurrentRangeRow = window.size() - 1;
+
+		if(earlyAbandon.isSet() && inst.numValues() == inst.numAttributes())
+			updateAttributeStatistics(inst);
+
+		int windowSize = window.size();
+
+		if(distanceCache != null)
 		{
-			if(entry.getValue() > penalty.getValue() * numLabels)
-			{
-				for(int idx = 0; idx < windowSize; idx++)
-				{
-					if(window.get(idx) == entry.getKey())
-					{
-						for (int i = idx; i < windowSize-1; i++)
-							for (int j = idx; j < i; j++)
-								distanceMatrix[i][j] = distanceMatrix[i+1][j+1];
+			long phaseTime = phaseStart();
 
-						discarded.add(window.get(idx));
-						window.remove(idx);
-						windowSize--;
-						break;
-					}
-				}
-			}
+			distanceCache.add(inst);
+			distanceComputations += windowSize;
+			metricsSink.incrementCounter(Counter.DISTANCE_COMPUTATIONS, windowSize);
+
+			phaseEnd(Phase.DISTANCES, phaseTime);
+			return;
 		}
 
-		for(Instance instance : discarded)
-			errors.remove(instance);
+		get1ToNDistances(inst, window, getDistanceCacheRow(windowSize-1));
+	}
+
+	/**
+	 * Removes from the window the instances whose errors exceed the penalty, oldest first, so that the repaired
+	 * prediction histories do not depend on the iteration order of the errors.
+	 */
+	private void removePunishedInstances() {
+
+		int windowSize = window.size();
 
-		int newWindowSize = getNewWindowSize();
+		for(int idx = 0; idx < windowSize; idx++)
+		{
+			if(errors[idx] <= penalty.getValue() * numLabels)
+				continue;
+
+			if(distanceCache != null)
+				distanceCache.remove(idx);
+			else
+				for (int i = idx; i < windowSize-1; i++)
+					for (int j = 0; j < i; j++)
+						distanceMatrix[i][j] = distanceMatrix[i+1][j < idx ? j : j+1];
+
+			if(idx < firstCurrentRangeRow)
+				firstCurrentRangeRow--;
+
+			System.arraycopy(errors, idx + 1, errors, idx, windowSize - idx - 1);
+			window.remove(idx);
+			if(featureStore != null)
+				featureStore.remove(idx);
+			windowSize--;
+			removeFromHistories(idx);
+			punitiveRemovals++;
+			metricsSink.incrementCounter(Counter.PUNITIVE_REMOVALS, 1);
+			idx--;
+		}
+	}
+
+	/**
+	 * Cuts the oldest instances down to the new window size, and slides the window once it is full.
+	 */
+	private void evict(int newWindowSize) {
+
+		int windowSize = window.size();
 
 		if (newWindowSize < windowSize) {
 			int diff = windowSize - newWindowSize;
+			windowSizeCuts++;
+			metricsSink.incrementCounter(Counter.WINDOW_SIZE_CUTS, 1);
+			metricsSink.incrementCounter(Counter.EVICTED_INSTANCES, diff);
+
+			System.arraycopy(errors, diff, errors, 0, newWindowSize);
 
-			for (int i = 0; i < diff; i++)
-				errors.remove(window.get(i));
+			// Cleared in place, as a subList view would keep the cut instances reachable from the backing list
+			window.subList(0, diff).clear();
+			firstCurrentRangeRow = Math.max(0, firstCurrentRangeRow - diff);
 
-			window = window.subList(diff, windowSize);
+			if(featureStore != null)
+				featureStore.removeRange(0, diff);
 
-			for (int i = 0; i < newWindowSize; i++)
-				for (int j = 0; j < i; j++)
-					distanceMatrix[i][j] = distanceMatrix[diff+i][diff+j];
+			if(distanceCache != null)
+				distanceCache.removeOldest(diff);
+			else
+				for (int i = 0; i < newWindowSize; i++)
+					for (int j = 0; j < i; j++)
+						distanceMatrix[i][j] = distanceMatrix[diff+i][diff+j];
 		}
 
 		if (newWindowSize == maxWindowSize.getValue()) {
 
-			for (int i = 0; i < newWindowSize-1; i++)
-				for (int j = 0; j < i; j++)
-					distanceMatrix[i][j] = distanceMatrix[i+1][j+1];
+			if(distanceCache != null)
+				distanceCache.removeOldest(1);
+			else
+				for (int i = 0; i < newWindowSize-1; i++)
+					for (int j = 0; j < i; j++)
+						distanceMatrix[i][j] = distanceMatrix[i+1][j+1];
 
-			errors.remove(window.get(0));
+			System.arraycopy(errors, 1, errors, 0, newWindowSize - 1);
 			window.remove(0);
+			firstCurrentRangeRow = Math.max(0, firstCurrentRangeRow - 1);
+			if(featureStore != null)
+				featureStore.remove(0);
+			metricsSink.incrementCounter(Counter.EVICTED_INSTANCES, 1);
 		}
+
+		if(shrinkDistanceCache.isSet() && distanceCache == null)
+			shrinkDistanceCache();
 	}
 
 	/**
@@ -140,56 +362,648 @@ public class MLSAMPkNN extends AbstractMultiLabelLearner implements MultiLabelCl
 	@Override
 	public Prediction getPredictionForInstance(MultiLabelInstance instance) {
 
-		MultiLabelPrediction prediction = new MultiLabelPrediction(instance.numberOutputTargets());
+		long startTime = System.nanoTime();
 
-		double distances[] = new double[window.size()];
-		get1ToNDistances(instance, window, distances);
-		int nnIndices[] = nArgMin(Math.min(distances.length, kOption.getValue()), distances);
-		prediction = getPrediction(nnIndices, window);
+		int nnIndices[] = selectNeighbors(getNearestNeighbors(projection == null ? instance : projection.project(instance)));
+		MultiLabelPrediction prediction = getPrediction(nnIndices, window);
 
 		for(int nnIdx : nnIndices)
+			punish(nnIdx, instance);
+
+		predictedInstances++;
+		predictionLatency.record(System.nanoTime() - startTime);
+
+		return prediction;
+	}
+
+	/**
+	 * Predicts the label of a given sample as getPredictionForInstance, writing the relative frequency of every
+	 * label among the neighbors into scores and, when labelBits is not null, the labels with a frequency of at
+	 * least 0.5 into it as bits. The neighbors are found with buffers of the learner, so no objects are allocated at
+	 * steady state with the full scan, i.e. without pivots, early abandoning, projection or reduced-precision
+	 * store, whose own buffers are still allocated per call.
+	 */
+	public void getScoresForInstance(MultiLabelInstance instance, double[] scores, long[] labelBits) {
+
+		long startTime = System.nanoTime();
+
+		if(predictionScratch == null)
+			predictionScratch = new PredictionScratch();
+
+		PredictionScratch scratch = predictionScratch;
+
+		int numNeighbors = getNearestNeighbors(projection == null ? instance : projection.project(instance), scratch);
+
+		if(adaptiveK.isSet())
+			numNeighbors = Math.min(numNeighbors, selectedK);
+
+		getScores(scratch.indices, numNeighbors, window, scores);
+
+		if(labelBits != null)
 		{
-			int error = 0;
+			Arrays.fill(labelBits, 0, (numLabels + 63) >>> 6, 0L);
 
-			for(int l = 0; l < numLabels; l++)
-				if(window.get(nnIdx).classValue(l) != instance.classValue(l))
-					error++;
+			for(int j = 0; j < numLabels; j++)
+				if(scores[j] >= 0.5)
+					labelBits[j >>> 6] |= 1L << j;
+		}
+
+		for(int n = 0; n < numNeighbors; n++)
+			punish(scratch.indices[n], instance);
 
-			if(error != 0)
+		predictedInstances++;
+		predictionLatency.record(System.nanoTime() - startTime);
+	}
+
+	/**
+	 * Predicts an instance given as buffers of label and input attribute values, then trains on it, as
+	 * getPredictionForInstance followed by trainOnInstance. The buffers are copied into the only instance
+	 * created, the one kept in the window, so the caller can reuse them for the next row.
+	 */
+	public Prediction testThenTrain(double[] labels, double[] features) {
+
+		double[] values = new double[numLabels + features.length];
+		System.arraycopy(labels, 0, values, 0, numLabels);
+		System.arraycopy(features, 0, values, numLabels, features.length);
+
+		DenseInstance instance = new DenseInstance(1, values);
+		instance.setDataset(modelContext);
+
+		return testThenTrain(instance);
+	}
+
+	/**
+	 * Sparse version of testThenTrain, given the indices and values of the non-zero input attributes.
+	 */
+	public Prediction testThenTrain(double[] labels, int[] featureIndices, double[] featureValues, int numFeatureValues) {
+
+		int numLabelValues = 0;
+		for(int j = 0; j < numLabels; j++)
+			if(labels[j] != 0)
+				numLabelValues++;
+
+		int[] indices = new int[numLabelValues + numFeatureValues];
+		double[] values = new double[numLabelValues + numFeatureValues];
+
+		for(int j = 0, p = 0; j < numLabels; j++)
+		{
+			if(labels[j] != 0)
 			{
-				Integer instanceErrors = errors.remove(window.get(nnIdx));
+				indices[p] = j;
+				values[p++] = labels[j];
+			}
+		}
 
-				if(instanceErrors == null)
-					errors.put(window.get(nnIdx), error);
-				else
-					errors.put(window.get(nnIdx), instanceErrors.intValue() + error);
+		for(int p = 0; p < numFeatureValues; p++)
+		{
+			indices[numLabelValues + p] = numLabels + featureIndices[p];
+			values[numLabelValues + p] = featureValues[p];
+		}
+
+		SparseInstance instance = new SparseInstance(1, values, indices, modelContext.numAttributes());
+		instance.setDataset(modelContext);
+
+		return testThenTrain(instance);
+	}
+
+	private Prediction testThenTrain(MultiLabelInstance instance) {
+
+		Prediction prediction = getPredictionForInstance(instance);
+		trainOnInstance(instance);
+
+		return prediction;
+	}
+
+	/**
+	 * Keeps the selected k nearest neighbors in adaptive k mode, given the nearest ones in increasing distance.
+	 */
+	private int[] selectNeighbors(int[] nnIndices) {
+
+		if(adaptiveK.isSet() && selectedK < nnIndices.length)
+			return Arrays.copyOf(nnIndices, selectedK);
+
+		return nnIndices;
+	}
+
+	/**
+	 * Returns the indices of the k nearest neighbors in the window. With a reduced-precision feature store, the
+	 * window is scanned with the approximate distances and only the best candidates are re-ranked exactly.
+	 */
+	private int[] getNearestNeighbors(Instance instance) {
+
+		int k = Math.min(window.size(), kOption.getValue());
+		long numCandidates = (long) k * rerankFactor.getValue();
+
+		if(distanceCache != null)
+		{
+			distanceComputations += window.size();
+			metricsSink.incrementCounter(Counter.DISTANCE_COMPUTATIONS, window.size());
+			return distanceCache.getNearestNeighbors(instance, k);
+		}
+
+		if(featureStore == null && usePivots(window.size(), k))
+			return getNearestNeighborsWithPivots(instance, k);
+
+		if(earlyAbandon.isSet() && featureStore == null && instance.numValues() == instance.numAttributes())
+			return getNearestNeighborsEarlyAbandon(instance, k);
+
+		if(featureStore == null || numCandidates >= window.size())
+		{
+			double distances[] = new double[window.size()];
+			get1ToNDistances(instance, window, distances);
+			return nArgMin(k, distances);
+		}
+
+		long phaseTime = phaseStart();
+
+		double approximateDistances[] = new double[window.size()];
+		featureStore.getSquaredDistances(instance, attributeRangeMin, attributeRangeMax, approximateDistances);
+
+		phaseEnd(Phase.DISTANCES, phaseTime);
+
+		int candidates[] = selectSmallest((int) numCandidates, approximateDistances);
+		Arrays.sort(candidates);
+
+		List<Instance> candidateInstances = new ArrayList<Instance>(candidates.length);
+		for(int candidate : candidates)
+			candidateInstances.add(window.get(candidate));
+
+		double distances[] = new double[candidates.length];
+		get1ToNDistances(instance, candidateInstances, distances);
+
+		int nnIndices[] = nArgMin(k, distances);
+		for(int i = 0; i < nnIndices.length; i++)
+			nnIndices[i] = candidates[nnIndices[i]];
+
+		return nnIndices;
+	}
+
+	/**
+	 * Finds the k nearest neighbors into the indices buffer of the scratch, returning their number. The full
+	 * scan reuses the distances buffer, and the other searches are copied from getNearestNeighbors.
+	 */
+	private int getNearestNeighbors(Instance instance, PredictionScratch scratch) {
+
+		int windowSize = window.size();
+		int k = Math.min(windowSize, kOption.getValue());
+
+		boolean fullScan = distanceCache == null && (featureStore == null
+				? !usePivots(windowSize, k)
+					&& !(earlyAbandon.isSet() && instance.numValues() == instance.numAttributes())
+				: (long) k * rerankFactor.getValue() >= windowSize);
+
+		if(!fullScan)
+		{
+			int nnIndices[] = getNearestNeighbors(instance);
+
+			if(scratch.indices.length < nnIndices.length)
+				scratch.indices = new int[nnIndices.length];
+
+			System.arraycopy(nnIndices, 0, scratch.indices, 0, nnIndices.length);
+			return nnIndices.length;
+		}
+
+		// Doubled as the window grows, and halved once the window is below a quarter of it, as the distance cache
+		if(scratch.distances.length < windowSize || scratch.distances.length > 4 * Math.max(windowSize, INITIAL_DISTANCE_CACHE_ROWS))
+			scratch.distances = new double[Math.max(windowSize, Math.min(maxWindowSize.getValue(), 2 * Math.max(windowSize, INITIAL_DISTANCE_CACHE_ROWS)))];
+
+		if(scratch.indices.length < k)
+			scratch.indices = new int[kOption.getValue()];
+
+		get1ToNDistances(instance, window, scratch.distances);
+		nArgMin(k, scratch.distances, 0, windowSize - 1, scratch.indices);
+
+		return k;
+	}
+
+	/**
+	 * Returns whether pivots prune the scan: there are enough rows cached with the current attribute ranges, which
+	 * are only known when the ranges are not shared.
+	 */
+	private boolean usePivots(int windowSize, int k) {
+		return numPivots.getValue() > 0 && !rangesShared && windowSize - firstCurrentRangeRow >= Math.max(k, numPivots.getValue());
+	}
+
+	/**
+	 * Computes the distances to a few pivots, evenly spread over the rows cached with the current attribute
+	 * ranges, and skips every instance whose triangle inequality bound, max |d(q, p) - d(p, x)| over the pivots,
+	 * exceeds the k-th best distance found so far. The cached pivot distances are exact, so the neighbors are the
+	 * same as those of the full scan, ties going to the oldest instance.
+	 */
+	private int[] getNearestNeighborsWithPivots(Instance instance, int k) {
+
+		long phaseTime = phaseStart();
+
+		int windowSize = window.size();
+		int numCurrentRows = windowSize - firstCurrentRangeRow;
+		int numPivots = this.numPivots.getValue();
+
+		int[] pivots = new int[numPivots];
+		double[] pivotDistances = new double[numPivots];
+		boolean[] isPivot = new boolean[windowSize];
+
+		int[] nearest = new int[k];
+		double[] nearestDistances = new double[k];
+		int found = 0;
+
+		for(int p = 0; p < numPivots; p++)
+		{
+			pivots[p] = firstCurrentRangeRow + (int) ((2L * p + 1) * numCurrentRows / (2L * numPivots));
+			pivotDistances[p] = getDistance(instance, window.get(pivots[p]));
+			isPivot[pivots[p]] = true;
+			found = insertNeighbor(nearest, nearestDistances, found, pivots[p], pivotDistances[p]);
+		}
+
+		long computed = numPivots;
+
+		for(int j = 0; j < windowSize; j++)
+		{
+			if(isPivot[j])
+				continue;
+
+			if(found == k)
+			{
+				double bound = nearestDistances[k - 1] * (1 + 1e-12);
+				boolean pruned = false;
+
+				for(int p = 0; p < numPivots && !pruned; p++)
+				{
+					double cached = pivots[p] > j ? distanceMatrix[pivots[p]][j] : distanceMatrix[j][pivots[p]];
+					pruned = Math.abs(pivotDistances[p] - cached) > bound;
+				}
+
+				if(pruned)
+				{
+					prunedDistances++;
+					continue;
+				}
 			}
+
+			found = insertNeighbor(nearest, nearestDistances, found, j, getDistance(instance, window.get(j)));
+			computed++;
+		}
+
+		distanceComputations += computed;
+		metricsSink.incrementCounter(Counter.DISTANCE_COMPUTATIONS, computed);
+
+		phaseEnd(Phase.DISTANCES, phaseTime);
+
+		return nearest;
+	}
+
+	/**
+	 * Inserts an instance in the sorted k nearest neighbors when it is closer than the last one, or as close and
+	 * older, and returns the new number of neighbors.
+	 */
+	private static int insertNeighbor(int[] nearest, double[] nearestDistances, int found, int index, double distance) {
+
+		int k = nearest.length;
+
+		if(found == k && (distance > nearestDistances[k - 1] || (distance == nearestDistances[k - 1] && index > nearest[k - 1])))
+			return found;
+
+		int pos = found < k ? found++ : k - 1;
+
+		while (pos > 0 && (nearestDistances[pos - 1] > distance || (nearestDistances[pos - 1] == distance && nearest[pos - 1] > index)))
+		{
+			nearest[pos] = nearest[pos - 1];
+			nearestDistances[pos] = nearestDistances[pos - 1];
+			pos--;
 		}
 
+		nearest[pos] = index;
+		nearestDistances[pos] = distance;
+
+		return found;
+	}
+
+	/**
+	 * Scans the window keeping the k best squared distances, and stops accumulating a distance as soon as it
+	 * reaches the k-th best. Attributes are accumulated by decreasing normalized variance, so that the bound is
+	 * reached early. Ties go to the oldest instance, as in nArgMin.
+	 */
+	private int[] getNearestNeighborsEarlyAbandon(Instance instance, int k) {
+
+		long phaseTime = phaseStart();
+
+		if(attributeOrder == null)
+			attributeOrder = getAttributesByVariance();
+
+		int numAttributes = attributeOrder.length;
+		double[] query = new double[numAttributes];
+		double[] rangeMin = new double[numAttributes];
+		double[] inverseRange = new double[numAttributes];
+
+		for(int p = 0; p < numAttributes; p++)
+		{
+			int i = attributeOrder[p];
+			double range = attributeRangeMax[i] - attributeRangeMin[i];
+			rangeMin[p] = attributeRangeMin[i];
+			inverseRange[p] = range == 0 ? 0 : 1 / range;
+			query[p] = (instance.valueInputAttribute(i) - rangeMin[p]) * inverseRange[p];
+		}
+
+		int[] nearest = new int[k];
+		double[] nearestDistances = new double[k];
+		int found = 0;
+		double bound = Double.POSITIVE_INFINITY;
+
+		for(int j = 0; j < window.size(); j++)
+		{
+			Instance sample = window.get(j);
+			double distance = 0;
+
+			if(sample.numValues() != sample.numAttributes())
+			{
+				distance = getDistance(instance, sample);
+				distance *= distance;
+			}
+			else
+			{
+				int p = 0;
+
+				for(; p < numAttributes; p++)
+				{
+					double diff = query[p] - (sample.valueInputAttribute(attributeOrder[p]) - rangeMin[p]) * inverseRange[p];
+					distance += diff * diff;
+
+					if(distance >= bound)
+						break;
+				}
+
+				if(p < numAttributes)
+				{
+					abandonedDistances++;
+					continue;
+				}
+			}
+
+			if(distance < bound)
+			{
+				int pos = found < k ? found++ : k - 1;
+
+				while (pos > 0 && nearestDistances[pos - 1] > distance)
+				{
+					nearest[pos] = nearest[pos - 1];
+					nearestDistances[pos] = nearestDistances[pos - 1];
+					pos--;
+				}
+
+				nearest[pos] = j;
+				nearestDistances[pos] = distance;
+
+				if(found == k)
+					bound = nearestDistances[k - 1];
+			}
+		}
+
+		distanceComputations += window.size();
+		metricsSink.incrementCounter(Counter.DISTANCE_COMPUTATIONS, window.size());
+
+		phaseEnd(Phase.DISTANCES, phaseTime);
+
+		return nearest;
+	}
+
+	/**
+	 * Updates the running mean and variance of the input attributes, and schedules a new attribute order at
+	 * doubling intervals first and then every ATTRIBUTE_ORDER_REFRESH instances.
+	 */
+	private void updateAttributeStatistics(Instance instance) {
+
+		attributeStatisticsCount++;
+
+		for(int i = 0; i < attributeMean.length; i++)
+		{
+			double delta = instance.valueInputAttribute(i) - attributeMean[i];
+			attributeMean[i] += delta / attributeStatisticsCount;
+			attributeM2[i] += delta * (instance.valueInputAttribute(i) - attributeMean[i]);
+		}
+
+		if(attributeStatisticsCount % ATTRIBUTE_ORDER_REFRESH == 0 || Long.bitCount(attributeStatisticsCount) == 1)
+			attributeOrder = null;
+	}
+
+	/**
+	 * Returns the input attributes sorted by decreasing variance of their normalized values.
+	 */
+	private int[] getAttributesByVariance() {
+
+		Integer[] order = new Integer[attributeMean.length];
+		double[] variances = new double[attributeMean.length];
+
+		for(int i = 0; i < order.length; i++)
+		{
+			double range = attributeRangeMax[i] - attributeRangeMin[i];
+			order[i] = i;
+			variances[i] = range == 0 ? 0 : attributeM2[i] / (range * range);
+		}
+
+		Arrays.sort(order, (a, b) -> Double.compare(variances[b], variances[a]));
+
+		int[] attributes = new int[order.length];
+		for(int i = 0; i < order.length; i++)
+			attributes[i] = order[i];
+
+		return attributes;
+	}
+
+	private QuantizedFeatureStore createFeatureStore(int numInputAttributes) {
+		if(featurePrecision.getChosenIndex() == 0)
+			return null;
+
+		return new QuantizedFeatureStore(featurePrecision.getChosenIndex() == 1 ? QuantizedFeatureStore.Precision.FLOAT : QuantizedFeatureStore.Precision.INT8, numInputAttributes);
+	}
+
+	List<Instance> getWindow() {
+		return window;
+	}
+
+	Map<Integer, PredictionHistory> getPredictionHistories() {
+		return predictionHistories;
+	}
+
+	/**
+	 * Returns the prediction history of the candidate window starting at a window position, built from the scratch.
+	 */
+	PredictionHistory rebuildPredictionHistory(int startIdx) {
+
+		PredictionHistory predictionHistory = new PredictionHistory(kOption.getValue(), adaptiveK.isSet());
+		getIncrementalTestTrainPredHistory(startIdx, predictionHistory);
+
+		return predictionHistory;
+	}
+
+	/**
+	 * Makes the learner normalize distances with attribute ranges shared with other learners. Pivots are not used
+	 * then, since the ranges can change without the learner knowing which of its rows were cached with them.
+	 */
+	void shareAttributeRanges(double[] rangeMin, double[] rangeMax) {
+		attributeRangeMin = rangeMin;
+		attributeRangeMax = rangeMax;
+		rangesShared = true;
+	}
+
+	/**
+	 * Makes the learner keep the distances among its window instances, and find the neighbors of its queries, in
+	 * the given cache instead of its own distance cache. Pivots, early abandoning and reduced-precision features
+	 * are not used with it.
+	 */
+	public void setDistanceCache(WindowDistanceCache distanceCache) {
+		this.distanceCache = distanceCache;
+		this.distanceMatrix = new double[0][];
+	}
+
+	/**
+	 * Makes the learner take the distances from its queries to the window from a union window shared with other
+	 * learners, computing its own only for the instances not found there.
+	 */
+	void shareDistances(SharedWindowDistances sharedDistances) {
+		this.sharedDistances = sharedDistances;
+	}
+
+	/**
+	 * Restricts the distances to the attributes of the given blocks.
+	 */
+	void setSubspace(int[] attributeBlocks, int[] subspaceBlocks) {
+		this.attributeBlocks = attributeBlocks;
+		this.subspaceBlocks = subspaceBlocks;
+
+		int numBlocks = 0;
+		for(int block : attributeBlocks)
+			numBlocks = Math.max(numBlocks, block + 1);
+
+		this.subspaceBlockDistances = new double[numBlocks];
+	}
+
+	int[] getSubspaceBlocks() {
+		return subspaceBlocks;
+	}
+
+	/**
+	 * Predicts an instance whose labels are not known yet, without updating the punitive errors. The neighbors
+	 * used are returned in the given list so that punishNeighbors can be applied once the labels arrive.
+	 */
+	public Prediction getPredictionForUnlabeledInstance(Instance instance, List<Instance> neighbors) {
+
+		long startTime = System.nanoTime();
+
+		int nnIndices[] = selectNeighbors(getNearestNeighbors(projection == null ? instance : projection.project(instance)));
+		MultiLabelPrediction prediction = getPrediction(nnIndices, window);
+
+		neighbors.clear();
+		for(int nnIdx : nnIndices)
+			neighbors.add(window.get(nnIdx));
+
+		predictedInstances++;
+		predictionLatency.record(System.nanoTime() - startTime);
+
 		return prediction;
 	}
 
+	/**
+	 * Punishes the neighbors that predicted a now labeled instance, skipping those no longer in the window.
+	 */
+	public void punishNeighbors(List<Instance> neighbors, Instance instance) {
+
+		int[] positions = new int[neighbors.size()];
+		Arrays.fill(positions, -1);
+
+		for(int idx = 0; idx < window.size(); idx++)
+			for(int i = 0; i < positions.length; i++)
+				if(window.get(idx) == neighbors.get(i))
+					positions[i] = idx;
+
+		for(int idx : positions)
+			if(idx != -1)
+				punish(idx, instance);
+	}
+
+	/**
+	 * Adds to the errors of the window instance at a position the number of labels in which it disagrees with
+	 * the instance.
+	 */
+	private void punish(int idx, Instance instance) {
+
+		Instance neighbor = window.get(idx);
+
+		for(int l = 0; l < numLabels; l++)
+			if(neighbor.classValue(l) != instance.classValue(l))
+				errors[idx]++;
+	}
+
 	/**
 	 * Returns the votes for each label.
 	 */
-	private MultiLabelPrediction getPrediction(int[] nnIndices, List<Instance> instances) {
+	MultiLabelPrediction getPrediction(int[] nnIndices, List<Instance> instances) {
 
 		MultiLabelPrediction prediction = new MultiLabelPrediction(numLabels);
 
+		double[] scores = new double[numLabels];
+		getScores(nnIndices, nnIndices.length, instances, scores);
+
 		for(int j = 0; j < numLabels; j++)
+			prediction.setVotes(j, new double[]{1.0 - scores[j], scores[j]});
+
+		return prediction;
+	}
+
+	/**
+	 * Writes the relative frequency of every label among the first numNeighbors neighbors into scores.
+	 */
+	private void getScores(int[] nnIndices, int numNeighbors, List<Instance> instances, double[] scores) {
+
+		for(int j = 0; j < numLabels; j++)
+			scores[j] = 0;
+
+		for(int n = 0; n < numNeighbors; n++)
 		{
-			int count = 0;
+			Instance neighbor = instances.get(nnIndices[n]);
+
+			for(int j = 0; j < numLabels; j++)
+				if(neighbor.classValue(j) == 1)
+					scores[j]++;
+		}
 
-			for (int nnIdx : nnIndices)
-				if(instances.get(nnIdx).classValue(j) == 1)
-					count++;
+		for(int j = 0; j < numLabels; j++)
+			scores[j] /= numNeighbors;
+	}
+
+	/**
+	 * Returns the labels correctly predicted by every prefix of 1 to k of the neighbors, sorted by increasing
+	 * distance, from the label counts of the prefixes. Prefixes longer than the neighbors use all of them.
+	 */
+	private int[] getMetricSumsByK(Instance instance, int[] nnIndices) {
 
-			double relativeFrequency = count / (double) nnIndices.length;
+		int k = kOption.getValue();
+		int[] sumsByK = new int[k];
+		int[] counts = new int[numLabels];
 
-			prediction.setVotes(j, new double[]{1.0 - relativeFrequency, relativeFrequency});
+		for(int n = 0; n < k; n++)
+		{
+			int numNeighbors = Math.min(n + 1, nnIndices.length);
+
+			if(n < nnIndices.length)
+			{
+				Instance neighbor = window.get(nnIndices[n]);
+				for(int j = 0; j < numLabels; j++)
+					if(neighbor.classValue(j) == 1)
+						counts[j]++;
+			}
+
+			int correct = 0;
+
+			for(int j = 0; j < numLabels; j++)
+			{
+				// As in getPrediction and getMetricSums, no neighbors predict 0
+				int yp = (numNeighbors > 0 && counts[j] / (double) numNeighbors >= 0.5) ? 1 : 0;
+				correct += ((int) instance.classValue(j) == yp) ? 1 : 0;
+			}
+
+			sumsByK[n] = correct;
 		}
 
-		return prediction;
+		return sumsByK;
 	}
 
 	private Integer getMetricSums(Instance instance, MultiLabelPrediction prediction) {
@@ -206,22 +1020,73 @@ public class MLSAMPkNN extends AbstractMultiLabelLearner implements MultiLabelCl
 		return correct;
 	}
 
-	private double getMetricFromHistory(List<Integer> history) {
+	private double getMetricFromHistory(PredictionHistory history) {
+		return getMetricSumFromHistory(history) / history.size();
+	}
+
+	/**
+	 * Returns the sum of the metric over the predictions of a history.
+	 */
+	private double getMetricSumFromHistory(PredictionHistory history) {
+		return getMetricSumFromHistory(history, adaptiveK.isSet() ? selectedK : 0);
+	}
+
+	/**
+	 * Returns the metric sum of the predictions of the given k, or of the history k when 0.
+	 */
+	private double getMetricSumFromHistory(PredictionHistory history, int k) {
 
 		double metric = 0.0;
 
-		if(this.metric.getChosenLabel() == "Subset Accuracy")
+		if(this.metric.getChosenLabel().equals("Subset Accuracy"))
 		{
-			for(Integer instanceSum : history)
-				metric += (instanceSum == numLabels) ? 1 : 0;
+			for(int row = 0; row < history.size(); row++)
+				metric += ((k == 0 ? history.getSum(row) : history.getSum(row, k)) == numLabels) ? 1 : 0;
 		}
-		else if (this.metric.getChosenLabel() == "Hamming Score")
+		else if (this.metric.getChosenLabel().equals("Hamming Score"))
 		{
-			for(Integer instanceSum : history)
-				metric += instanceSum / (double) numLabels;
+			for(int row = 0; row < history.size(); row++)
+				metric += (k == 0 ? history.getSum(row) : history.getSum(row, k)) / (double) numLabels;
 		}
 
-		return metric / history.size();
+		return metric;
+	}
+
+	/**
+	 * Selects the k of best metric over a history, the smallest among ties.
+	 */
+	private void selectK(PredictionHistory history) {
+
+		double bestMetric = Double.NEGATIVE_INFINITY;
+
+		for(int k = 1; k <= kOption.getValue(); k++)
+		{
+			double metric = getMetricSumFromHistory(history, k);
+
+			if(metric > bestMetric)
+			{
+				bestMetric = metric;
+				selectedK = k;
+			}
+		}
+	}
+
+	/**
+	 * Returns the n nearest neighbors of the window instance at a row among the instances from startIdx to row-1,
+	 * from the distance cache.
+	 */
+	private int[] getCachedNearestNeighbors(int n, int row, int startIdx) {
+
+		if(distanceCache == null)
+			return nArgMin(n, distanceMatrix[row], startIdx, row - 1);
+
+		long phaseTime = phaseStart();
+
+		int[] nnIndices = distanceCache.getNearestNeighbors(n, row, startIdx);
+
+		phaseEnd(Phase.NEAREST_NEIGHBORS, phaseTime);
+
+		return nnIndices;
 	}
 
 	/**
@@ -231,6 +1096,20 @@ public class MLSAMPkNN extends AbstractMultiLabelLearner implements MultiLabelCl
 
 		int indices[] = new int[n];
 
+		nArgMin(n, values, startIdx, endIdx, indices);
+
+		return indices;
+	}
+
+	/**
+	 * Writes the n smallest indices of the smallest values (sorted) into the first n positions of indices.
+	 */
+	private void nArgMin(int n, double[] values, int startIdx, int endIdx, int[] indices) {
+
+		long phaseTime = phaseStart();
+
+		Arrays.fill(indices, 0, n, 0);
+
 		for (int i = 0; i < n; i++){
 			double minValue = Double.MAX_VALUE;
 			for (int j = startIdx; j < endIdx + 1; j++){
@@ -249,26 +1128,135 @@ public class MLSAMPkNN extends AbstractMultiLabelLearner implements MultiLabelCl
 				}
 			}
 		}
-		return indices;
+
+		phaseEnd(Phase.NEAREST_NEIGHBORS, phaseTime);
 	}
 
 	public int[] nArgMin(int n, double[] values) {
 		return nArgMin(n, values, 0, values.length-1);
 	}
 
+	/**
+	 * Returns the indices of the n smallest values, in no particular order, ties going to the smallest index as
+	 * in nArgMin. A bounded max-heap keeps the n best seen, so it takes O(m log n) for m values.
+	 */
+	private int[] selectSmallest(int n, double[] values) {
+
+		long phaseTime = phaseStart();
+
+		int heap[] = new int[n];
+		int size = 0;
+
+		for(int j = 0; j < values.length; j++)
+		{
+			if(size < n)
+			{
+				// Sift up the new index
+				int pos = size++;
+				while (pos > 0 && isWorse(values, j, heap[(pos - 1) / 2]))
+				{
+					heap[pos] = heap[(pos - 1) / 2];
+					pos = (pos - 1) / 2;
+				}
+				heap[pos] = j;
+			}
+			else if(n > 0 && values[j] < values[heap[0]])
+			{
+				// Replace the worst index and sift it down
+				int pos = 0;
+				while (2 * pos + 1 < size)
+				{
+					int child = 2 * pos + 1;
+					if(child + 1 < size && isWorse(values, heap[child + 1], heap[child]))
+						child++;
+					if(!isWorse(values, heap[child], j))
+						break;
+					heap[pos] = heap[child];
+					pos = child;
+				}
+				heap[pos] = j;
+			}
+		}
+
+		phaseEnd(Phase.NEAREST_NEIGHBORS, phaseTime);
+
+		return size == n ? heap : Arrays.copyOf(heap, size);
+	}
+
+	/**
+	 * Returns whether the value at index i ranks after the one at index j, by value and then by index.
+	 */
+	private static boolean isWorse(double[] values, int i, int j) {
+		return values[i] > values[j] || (values[i] == values[j] && i > j);
+	}
+
+	/**
+	 * Returns a row of the distance cache, growing the cache geometrically up to the maximum window size.
+	 */
+	private double[] getDistanceCacheRow(int row) {
+
+		if(row >= distanceMatrix.length)
+		{
+			int capacity = Math.max(INITIAL_DISTANCE_CACHE_ROWS, 2 * distanceMatrix.length);
+			distanceMatrix = Arrays.copyOf(distanceMatrix, Math.max(row + 1, Math.min(maxWindowSize.getValue(), capacity)));
+		}
+
+		if(distanceMatrix[row] == null)
+			distanceMatrix[row] = new double[row + 1];
+
+		return distanceMatrix[row];
+	}
+
+	/**
+	 * Halves the distance cache once the window has stayed below a quarter of its rows for as many instances,
+	 * so the cost of shrinking is amortized over the instances that triggered it.
+	 */
+	private void shrinkDistanceCache() {
+
+		int capacity = distanceMatrix.length;
+
+		if(window.size() >= capacity / 4 || capacity <= INITIAL_DISTANCE_CACHE_ROWS)
+		{
+			instancesBelowQuarterCache = 0;
+			return;
+		}
+
+		if(++instancesBelowQuarterCache >= capacity / 4)
+		{
+			distanceMatrix = Arrays.copyOf(distanceMatrix, Math.max(INITIAL_DISTANCE_CACHE_ROWS, capacity / 2));
+			instancesBelowQuarterCache = 0;
+		}
+	}
+
 	/**
 	 * Computes the Euclidean distance between one sample and a collection of samples in an 1D-array.
 	 */
 	private void get1ToNDistances(Instance sample, List<Instance> samples, double[] distances) {
 
+		long phaseTime = phaseStart();
+
+		if(sharedDistances != null && sharedDistances.getDistances(sample, samples, distances, this))
+		{
+			phaseEnd(Phase.DISTANCES, phaseTime);
+			return;
+		}
+
+		distanceComputations += samples.size();
+		metricsSink.incrementCounter(Counter.DISTANCE_COMPUTATIONS, samples.size());
+
 		for (int i = 0; i < samples.size(); i++)
 			distances[i] = getDistance(sample, samples.get(i));
+
+		phaseEnd(Phase.DISTANCES, phaseTime);
 	}
 
 	/**
 	 * Returns the Euclidean distance.
 	 */
-	private double getDistance(Instance instance1, Instance instance2) {
+	double getDistance(Instance instance1, Instance instance2) {
+
+		if(subspaceBlocks != null)
+			return getSubspaceDistance(instance1, instance2);
 
 		double distance = 0;
 
@@ -356,88 +1344,275 @@ public class MLSAMPkNN extends AbstractMultiLabelLearner implements MultiLabelCl
 		return Math.sqrt(distance);
 	}
 
-	private void updateRanges(MultiLabelInstance instance) {
+	/**
+	 * Returns the Euclidean distance in the subspace, not to be called concurrently since its partial distances
+	 * are kept in a buffer of the learner.
+	 */
+	private double getSubspaceDistance(Instance instance1, Instance instance2) {
+
+		Arrays.fill(subspaceBlockDistances, 0);
+		addSquaredBlockDistances(instance1, instance2, attributeBlocks, subspaceBlockDistances, 0);
+
+		double distance = 0;
+		for(int block : subspaceBlocks)
+			distance += subspaceBlockDistances[block];
+
+		return Math.sqrt(distance);
+	}
+
+	/**
+	 * Adds the squared normalized differences of every attribute to the partial distance of its block, at the
+	 * given offset of the array, so that the distance in any union of blocks is the root of their sum.
+	 */
+	void addSquaredBlockDistances(Instance instance1, Instance instance2, int[] attributeBlocks, double[] blockDistances, int offset) {
+
+		if(instance1.numValues() == instance1.numAttributes()) // Dense Instance
+		{
+			for(int i = 0; i < instance1.numInputAttributes(); i++)
+			{
+				double range = attributeRangeMax[i] - attributeRangeMin[i];
+
+				if(range != 0)
+				{
+					double diff = (instance1.valueInputAttribute(i) - instance2.valueInputAttribute(i)) / range;
+					blockDistances[offset + attributeBlocks[i]] += diff * diff;
+				}
+			}
+		}
+		else // Sparse Instance
+		{
+			int numOutputs = instance1.numOutputAttributes();
+			int p1 = 0, p2 = 0;
+
+			while(p1 < instance1.numValues() || p2 < instance2.numValues())
+			{
+				int firstI = p1 < instance1.numValues() ? instance1.index(p1) : Integer.MAX_VALUE;
+				int secondI = p2 < instance2.numValues() ? instance2.index(p2) : Integer.MAX_VALUE;
+
+				if(firstI < numOutputs) { p1++; continue; }
+				if(secondI < numOutputs) { p2++; continue; }
+
+				// As in getDistance, an attribute missing from one instance is normalized to 0 in it
+				int idx = Math.min(firstI, secondI) - numOutputs;
+				double range = attributeRangeMax[idx] - attributeRangeMin[idx];
+				double diff;
+
+				if(firstI == secondI)
+					diff = (instance1.valueSparse(p1++) - instance2.valueSparse(p2++)) / range;
+				else if(firstI < secondI)
+					diff = (instance1.valueSparse(p1++) - attributeRangeMin[idx]) / range;
+				else
+					diff = (instance2.valueSparse(p2++) - attributeRangeMin[idx]) / range;
+
+				if(range != 0)
+					blockDistances[offset + attributeBlocks[idx]] += diff * diff;
+			}
+		}
+	}
+
+	/**
+	 * Extends the attribute ranges with an instance, returning whether any of them changed.
+	 */
+	boolean updateRanges(MultiLabelInstance instance) {
+		boolean changed = false;
+
 		for(int i = 0; i < instance.numInputAttributes(); i++)
 		{
 			if(instance.valueInputAttribute(i) < attributeRangeMin[i])
+			{
 				attributeRangeMin[i] = instance.valueInputAttribute(i);
+				changed = true;
+			}
 			if(instance.valueInputAttribute(i) > attributeRangeMax[i])
+			{
 				attributeRangeMax[i] = instance.valueInputAttribute(i);
+				changed = true;
+			}
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Feeds the change detector with the error of the test-then-train prediction of the newest instance over the
+	 * full window, from its cached distances, and returns whether the candidate window sizes must be evaluated:
+	 * always without drift gating, and otherwise on a warning or change, or once the maximum interval has passed.
+	 * Skipped evaluations leave the histories behind, and the next one brings them up to date.
+	 */
+	private boolean isWindowSizeEvaluationDue() {
+
+		if(detector == null)
+			return true;
+
+		int numSamples = window.size();
+
+		if(numSamples >= 2)
+		{
+			int nnIndices[] = selectNeighbors(getCachedNearestNeighbors(Math.min(kOption.getValue(), numSamples - 1), numSamples - 1, 0));
+			int correct = getMetricSums(window.get(numSamples - 1), getPrediction(nnIndices, window));
+
+			if(this.metric.getChosenLabel().equals("Subset Accuracy"))
+				detector.input(correct == numLabels ? 0 : 1);
+			else
+				detector.input(1 - correct / (double) numLabels);
+		}
+
+		if(detector.getWarningZone() || detector.getChange() || ++instancesSinceEvaluation >= maxEvaluationInterval.getValue())
+		{
+			instancesSinceEvaluation = 0;
+			return true;
 		}
+
+		skippedEvaluations++;
+		return false;
 	}
 
 	/**
 	 * Returns the bisected size which maximized the metric
 	 */
-	private int getNewWindowSize() {
+	int getNewWindowSize() {
+
+		List<Integer> numSamplesRange = getCandidateWindowSizes();
+
+		if (numSamplesRange == null)
+			return window.size();
+
+		List<PredictionHistory> histories = updatePredictionHistories(numSamplesRange);
+
+		if(adaptiveK.isSet())
+			selectK(histories.get(0));
+
+		List<Double> metricList = new ArrayList<Double>();
+		for (PredictionHistory predHistory : histories)
+			metricList.add(getMetricFromHistory(predHistory));
+
+		return chooseWindowSize(numSamplesRange, metricList.indexOf(Collections.max(metricList)));
+	}
+
+	/**
+	 * Returns the candidate window sizes, from the current size down by the reduction ratio, or null when the
+	 * window is too small to be cut.
+	 */
+	private List<Integer> getCandidateWindowSizes() {
 
 		int numSamples = window.size();
 		if (numSamples < 2 * minWindowSize.getValue())
-			return numSamples;
-		else {
-			List<Integer> numSamplesRange = new ArrayList<Integer>();
-			numSamplesRange.add(numSamples);
-			while (numSamplesRange.get(numSamplesRange.size() - 1) >= 2 * minWindowSize.getValue())
-				numSamplesRange.add((int) (numSamplesRange.get(numSamplesRange.size() - 1) * reductionRatio.getValue()));
-
-			Iterator<Integer> it = predictionHistories.keySet().iterator();
-			while (it.hasNext()) {
-				Integer key = (Integer) it.next();
-				if (!numSamplesRange.contains(numSamples - key))
-					it.remove();
-			}
+			return null;
 
-			List<Double> metricList = new ArrayList<Double>();
-			for (Integer numSamplesIt : numSamplesRange) {
-				int idx = numSamples - numSamplesIt;
-				List<Integer> predHistory;
-				if (predictionHistories.containsKey(idx))
-					predHistory = getIncrementalTestTrainPredHistory(window, idx, predictionHistories.get(idx));
-				else
-					predHistory = getTestTrainPredHistory(window, idx);
+		List<Integer> numSamplesRange = new ArrayList<Integer>();
+		numSamplesRange.add(numSamples);
+		while (numSamplesRange.get(numSamplesRange.size() - 1) >= 2 * minWindowSize.getValue())
+			numSamplesRange.add((int) (numSamplesRange.get(numSamplesRange.size() - 1) * reductionRatio.getValue()));
 
-				predictionHistories.put(idx, predHistory);
+		candidateSizesEvaluated += numSamplesRange.size();
 
-				metricList.add(getMetricFromHistory(predHistory));
-			}
-			int maxMetricIdx = metricList.indexOf(Collections.max(metricList));
-			int windowSize = numSamplesRange.get(maxMetricIdx);
+		return numSamplesRange;
+	}
+
+	/**
+	 * Brings the prediction history of every candidate window size up to date, dropping the histories of sizes
+	 * no longer evaluated, and returns them in the order of the candidates.
+	 */
+	private List<PredictionHistory> updatePredictionHistories(List<Integer> numSamplesRange) {
+
+		int numSamples = window.size();
+
+		Iterator<Integer> it = predictionHistories.keySet().iterator();
+		while (it.hasNext()) {
+			Integer key = (Integer) it.next();
+			if (!numSamplesRange.contains(numSamples - key))
+				it.remove();
+		}
 
-			if (windowSize < numSamples)
-				adaptHistories(maxMetricIdx);
+		List<PredictionHistory> histories = new ArrayList<PredictionHistory>();
+		for (Integer numSamplesIt : numSamplesRange) {
+			int idx = numSamples - numSamplesIt;
+			PredictionHistory predHistory = predictionHistories.get(idx);
+			if (predHistory == null)
+				predHistory = new PredictionHistory(kOption.getValue(), adaptiveK.isSet());
 
-			return windowSize;
+			getIncrementalTestTrainPredHistory(idx, predHistory);
+
+			predictionHistories.put(idx, predHistory);
+
+			histories.add(predHistory);
 		}
+
+		return histories;
 	}
 
 	/**
-	 * Creates a prediction history from the scratch.
+	 * Returns the chosen candidate window size, shifting the histories when the window is going to be cut.
 	 */
-	private List<Integer> getTestTrainPredHistory(List<Instance> instances, int startIdx) {
+	private int chooseWindowSize(List<Integer> numSamplesRange, int maxMetricIdx) {
 
-		List<Integer> predictionHistory = new ArrayList<Integer>();
+		int windowSize = numSamplesRange.get(maxMetricIdx);
 
-		for (int i = startIdx; i < instances.size(); i++) {
-			int nnIndices[] = nArgMin(Math.min(kOption.getValue(), i - startIdx), distanceMatrix[i], startIdx, i-1);
-			MultiLabelPrediction prediction = getPrediction(nnIndices, instances);
-			predictionHistory.add(getMetricSums(instances.get(i),prediction));
-		}
+		if (windowSize < window.size())
+			adaptHistories(maxMetricIdx);
 
-		return predictionHistory;
+		return windowSize;
 	}
 
 	/**
-	 * Creates a prediction history incrementally by using the previous predictions.
+	 * Extends a prediction history, empty when created from the scratch, with the instances not predicted yet.
 	 */
-	private List<Integer> getIncrementalTestTrainPredHistory(List<Instance> instances, int startIdx, List<Integer> predictionHistory) {
+	private void getIncrementalTestTrainPredHistory(int startIdx, PredictionHistory predictionHistory) {
+
+		for (int i = startIdx + predictionHistory.size(); i < window.size(); i++) {
+			int nnIndices[] = getCachedNearestNeighbors(Math.min(kOption.getValue(), i - startIdx), i, startIdx);
+
+			if(adaptiveK.isSet())
+			{
+				int[] sumsByK = getMetricSumsByK(window.get(i), nnIndices);
+				predictionHistory.add(sumsByK[sumsByK.length - 1], sumsByK, nnIndices, startIdx);
+				continue;
+			}
 
-		for (int i = startIdx + predictionHistory.size(); i < instances.size(); i++) {
-			int nnIndices[] = nArgMin(Math.min(kOption.getValue(), distanceMatrix[i].length), distanceMatrix[i], startIdx, i-1);
-			MultiLabelPrediction prediction = getPrediction(nnIndices, instances);
-			predictionHistory.add(getMetricSums(instances.get(i),prediction));
+			MultiLabelPrediction prediction = getPrediction(nnIndices, window);
+			predictionHistory.add(getMetricSums(window.get(i),prediction), nnIndices, startIdx);
 		}
+	}
 
-		return predictionHistory;
+	/**
+	 * Removes an instance punitively removed from the window from the prediction histories. Only the rows whose
+	 * neighbors included it are predicted again, from the already shifted distance cache, and the histories
+	 * starting after it move one position back.
+	 */
+	private void removeFromHistories(int idx) {
+
+		Map<Integer, PredictionHistory> updated = new HashMap<Integer, PredictionHistory>();
+
+		for (Map.Entry<Integer, PredictionHistory> entry : predictionHistories.entrySet()) {
+			int startIdx = entry.getKey();
+			PredictionHistory predHistory = entry.getValue();
+
+			if (idx < startIdx) {
+				updated.put(startIdx - 1, predHistory);
+			}
+			else if (startIdx < idx || !predictionHistories.containsKey(idx + 1)) {
+				// A history starting at the removed instance is superseded by the one starting right after it
+				for (int row : predHistory.remove(idx - startIdx)) {
+					int i = startIdx + row;
+					int nnIndices[] = getCachedNearestNeighbors(Math.min(kOption.getValue(), row), i, startIdx);
+
+					if(adaptiveK.isSet())
+					{
+						int[] sumsByK = getMetricSumsByK(window.get(i), nnIndices);
+						predHistory.set(row, sumsByK[sumsByK.length - 1], sumsByK, nnIndices, startIdx);
+						continue;
+					}
+
+					MultiLabelPrediction prediction = getPrediction(nnIndices, window);
+					predHistory.set(row, getMetricSums(window.get(i), prediction), nnIndices, startIdx);
+				}
+
+				if (!updated.containsKey(startIdx))
+					updated.put(startIdx, predHistory);
+			}
+		}
+
+		predictionHistories = updated;
 	}
 
 	/**
@@ -449,19 +1624,244 @@ public class MLSAMPkNN extends AbstractMultiLabelLearner implements MultiLabelCl
 			predictionHistories.remove(keys.first());
 			keys = new TreeSet<Integer>(predictionHistories.keySet());
 			for (Integer key : keys){
-				List<Integer> predHistory = predictionHistories.remove(key);
+				PredictionHistory predHistory = predictionHistories.remove(key);
 				predictionHistories.put(key-keys.first(), predHistory);
 			}
 		}
 	}
 
+	/**
+	 * Reads the clock only when the metrics sink is enabled.
+	 */
+	private long phaseStart() {
+		return metricsSink.isEnabled() ? System.nanoTime() : 0L;
+	}
+
+	private void phaseEnd(Phase phase, long startTime) {
+		if(startTime != 0L)
+			metricsSink.recordTime(phase, System.nanoTime() - startTime);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		metricsSink = MLSAMPkNNMetricsSink.NOOP;
+	}
+
+	/**
+	 * Object sizes of a 64-bit JVM with compressed references, as used by the memory estimates.
+	 */
+	private static final int OBJECT_HEADER_BYTES = 12;
+	private static final int REFERENCE_BYTES = 4;
+	private static final int ARRAY_HEADER_BYTES = 16;
+	private static final int BOXED_INTEGER_BYTES = 16;
+	private static final int ARRAY_LIST_BYTES = 24;
+	private static final int HASH_MAP_BYTES = 48;
+	private static final int HASH_MAP_ENTRY_BYTES = 32;
+	private static final int INSTANCE_BYTES = 24;
+	private static final int INSTANCE_DATA_BYTES = 24;
+
+	private static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	private static long arrayBytes(long length, int elementBytes) {
+		return align(ARRAY_HEADER_BYTES + length * elementBytes);
+	}
+
+	/**
+	 * Returns the bytes of a hash map with the given number of entries, excluding keys and values.
+	 */
+	private static long hashMapBytes(int entries) {
+		int tableLength = Integer.highestOneBit(Math.max(16, (int) Math.ceil(entries / 0.75) - 1)) << 1;
+		return HASH_MAP_BYTES + arrayBytes(tableLength, REFERENCE_BYTES) + (long) entries * HASH_MAP_ENTRY_BYTES;
+	}
+
+	/**
+	 * Returns the bytes of a window instance, dense or sparse.
+	 */
+	static long instanceBytes(Instance instance) {
+
+		long bytes = INSTANCE_BYTES + INSTANCE_DATA_BYTES;
+
+		// The input attributes of a feature store instance are counted with the store
+		if(instance instanceof QuantizedFeatureStore.StoredInstance)
+			bytes += arrayBytes(instance.numAttributes() - instance.numInputAttributes(), 8);
+		else if(instance.numValues() == instance.numAttributes())
+			bytes += arrayBytes(instance.numAttributes(), 8);
+		else
+			bytes += arrayBytes(instance.numValues(), 8) + arrayBytes(instance.numValues(), 4);
+
+		return bytes;
+	}
+
+	/**
+	 * Returns the bytes of a boxed sum, which is cached by Integer.valueOf for small values.
+	 */
+	private static long boxedIntegerBytes(int value) {
+		return value >= -128 && value <= 127 ? 0 : BOXED_INTEGER_BYTES;
+	}
+
+	/**
+	 * Returns the bytes held by the pairwise distance cache.
+	 */
+	private long getDistanceCacheBytes() {
+
+		if(distanceCache != null)
+			return distanceCache.estimateMemoryBytes();
+
+		if(distanceMatrix == null)
+			return 0;
+
+		long bytes = arrayBytes(distanceMatrix.length, REFERENCE_BYTES);
+
+		for(double[] row : distanceMatrix)
+			if(row != null)
+				bytes += arrayBytes(row.length, 8);
+
+		return bytes;
+	}
+
+	private long getWindowBytes() {
+
+		if(window == null)
+			return 0;
+
+		long bytes = ARRAY_LIST_BYTES + arrayBytes(window.size(), REFERENCE_BYTES);
+
+		for(Instance instance : window)
+			bytes += instanceBytes(instance);
+
+		return bytes;
+	}
+
+	private long getPredictionHistoriesBytes() {
+
+		if(predictionHistories == null)
+			return 0;
+
+		long bytes = hashMapBytes(predictionHistories.size());
+
+		for(Map.Entry<Integer, PredictionHistory> entry : predictionHistories.entrySet())
+			bytes += boxedIntegerBytes(entry.getKey()) + entry.getValue().estimateMemoryBytes();
+
+		return bytes;
+	}
+
+	private long getErrorsBytes() {
+		return errors == null ? 0 : arrayBytes(errors.length, 4);
+	}
+
+	/**
+	 * Returns the estimated bytes held by the learner: window instances, distance cache, prediction histories,
+	 * punitive errors, attribute ranges, latency histograms and the feature store, on and off the heap.
+	 */
+	public long estimateMemoryBytes() {
+
+		long bytes = align(OBJECT_HEADER_BYTES + 128);
+
+		if(attributeRangeMin != null)
+			bytes += 2 * arrayBytes(attributeRangeMin.length, 8);
+
+		if(attributeMean != null)
+			bytes += 2 * arrayBytes(attributeMean.length, 8);
+
+		if(attributeOrder != null)
+			bytes += arrayBytes(attributeOrder.length, 4);
+
+		bytes += predictionLatency.estimateMemoryBytes() + trainingLatency.estimateMemoryBytes();
+
+		if(featureStore != null)
+			bytes += featureStore.estimateMemoryBytes() + featureStore.estimateOffHeapBytes();
+
+		if(projection != null)
+			bytes += projection.estimateMemoryBytes();
+
+		if(predictionScratch != null)
+			bytes += align(OBJECT_HEADER_BYTES + 2 * REFERENCE_BYTES) + arrayBytes(predictionScratch.distances.length, 8) + arrayBytes(predictionScratch.indices.length, 4);
+
+		return bytes + getWindowBytes() + getDistanceCacheBytes() + getPredictionHistoriesBytes() + getErrorsBytes();
+	}
+
+	/**
+	 * Predicts the bytes the learner will hold with the current options once its window is full of dense
+	 * instances with the given number of features (before any projection) and labels, every instance has been punished and the
+	 * prediction histories cover every candidate window size.
+	 */
+	public long predictMemoryBytes(int numFeatures, int numLabels) {
+
+		int windowSize = maxWindowSize.getValue();
+
+		long projectionBytes = 0;
+
+		if(projectedDimensions.getValue() > 0 && projectedDimensions.getValue() < numFeatures)
+		{
+			projectionBytes = RandomProjection.predictMemoryBytes(numFeatures, projectedDimensions.getValue());
+			numFeatures = projectedDimensions.getValue();
+		}
+
+		long bytes = projectionBytes + align(OBJECT_HEADER_BYTES + 128) + 2 * arrayBytes(numFeatures, 8) + 2 * new LatencyHistogram().estimateMemoryBytes();
+
+		// With a feature store, the window instances keep only their labels
+		bytes += ARRAY_LIST_BYTES + arrayBytes(windowSize, REFERENCE_BYTES) + windowSize * (INSTANCE_BYTES + INSTANCE_DATA_BYTES
+				+ arrayBytes((featurePrecision.getChosenIndex() == 0 ? numFeatures : 0) + numLabels, 8));
+
+		bytes += arrayBytes(windowSize, REFERENCE_BYTES);
+		for(int row = 0; row < windowSize; row++)
+			bytes += arrayBytes(row + 1, 8);
+
+		List<Integer> candidateSizes = new ArrayList<Integer>();
+		candidateSizes.add(windowSize);
+		if(windowSize >= 2 * minWindowSize.getValue())
+			while (candidateSizes.get(candidateSizes.size() - 1) >= 2 * minWindowSize.getValue())
+				candidateSizes.add((int) (candidateSizes.get(candidateSizes.size() - 1) * reductionRatio.getValue()));
+
+		bytes += hashMapBytes(candidateSizes.size());
+		for(int candidateSize : candidateSizes)
+			bytes += BOXED_INTEGER_BYTES + PredictionHistory.predictMemoryBytes(candidateSize, kOption.getValue(), adaptiveK.isSet());
+
+		bytes += arrayBytes(windowSize, 4);
+
+		if(featurePrecision.getChosenIndex() != 0)
+			bytes += QuantizedFeatureStore.predictMemoryBytes(featurePrecision.getChosenIndex() == 1 ? QuantizedFeatureStore.Precision.FLOAT : QuantizedFeatureStore.Precision.INT8, numFeatures, windowSize);
+
+		return bytes;
+	}
+
+	@Override
+	public int measureByteSize() {
+		return (int) Math.min(Integer.MAX_VALUE, estimateMemoryBytes());
+	}
+
 	@Override
 	protected Measurement[] getModelMeasurementsImpl() {
-		return null;
+
+		return new Measurement[]{
+				new Measurement("window size", window == null ? 0 : window.size()),
+				new Measurement("punitive removals", punitiveRemovals),
+				new Measurement("window size cuts", windowSizeCuts),
+				new Measurement("candidate window sizes evaluated", candidateSizesEvaluated),
+				// Prequentially every stream instance is both predicted and trained, so it is counted once
+				new Measurement("distance computations per instance", trainedInstances == 0 ? 0 : distanceComputations / (double) trainedInstances),
+				new Measurement("early abandoned distances", abandonedDistances),
+				new Measurement("pivot pruned distances", prunedDistances),
+				new Measurement("selected k", adaptiveK.isSet() ? selectedK : kOption.getValue()),
+				new Measurement("skipped window size evaluations", skippedEvaluations),
+				new Measurement("distance cache size (bytes)", getDistanceCacheBytes()),
+				new Measurement("feature store size (bytes)", featureStore == null ? 0 : featureStore.estimateMemoryBytes()),
+				new Measurement("feature store off-heap size (bytes)", featureStore == null ? 0 : featureStore.estimateOffHeapBytes()),
+				new Measurement("model size estimate (bytes)", estimateMemoryBytes()),
+				new Measurement("prediction time p50 (ns)", predictionLatency.getValueAtPercentile(50)),
+				new Measurement("prediction time p99 (ns)", predictionLatency.getValueAtPercentile(99)),
+				new Measurement("training time p50 (ns)", trainingLatency.getValueAtPercentile(50)),
+				new Measurement("training time p99 (ns)", trainingLatency.getValueAtPercentile(99))
+		};
 	}
 
 	@Override
 	public void getModelDescription(StringBuilder out, int indent) {
+		StringUtils.appendIndented(out, indent, "MLSAMPkNN with k = " + kOption.getValue() + ", window size " + (window == null ? 0 : window.size())
+				+ " of [" + minWindowSize.getValue() + ", " + maxWindowSize.getValue() + "], " + punitiveRemovals + " punitive removals and " + windowSizeCuts + " window size cuts");
+		StringUtils.appendNewline(out);
 	}
 
 	public boolean isRandomizable() {
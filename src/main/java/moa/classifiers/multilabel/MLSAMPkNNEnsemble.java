@@ -0,0 +1,268 @@
+package moa.classifiers.multilabel;
+
+import com.github.javacliparser.FlagOption;
+import com.github.javacliparser.FloatOption;
+import com.github.javacliparser.IntOption;
+import com.github.javacliparser.MultiChoiceOption;
+import com.yahoo.labs.samoa.instances.*;
+import moa.classifiers.AbstractMultiLabelLearner;
+import moa.classifiers.MultiLabelClassifier;
+import moa.core.Measurement;
+import moa.core.StringUtils;
+
+import java.util.*;
+
+/**
+* Random subspace ensemble of MLSAMPkNN members sharing their instances and distance work
+*
+* The input attributes are split at random in blocks, and every member measures distances in a random subset of
+* the blocks. The members keep references to the same instances, and normalize with the same attribute ranges,
+* so the squared partial distances from every query, and among the instances of the union of their windows, to
+* each block are computed and kept once, and every member sums those of its own blocks. Each member keeps its own
+* window, punitive errors and prediction histories, optionally trains on an online bagging sample of the stream,
+* and the members are trained and queried in parallel. The prediction averages the votes of the members. The
+* member threads exit when idle, or at once on close.
+*
+* @author Alberto Cano
+*/
+
+public class MLSAMPkNNEnsemble extends AbstractMultiLabelLearner implements MultiLabelClassifier, AutoCloseable {
+
+	private static final long serialVersionUID = 1L;
+
+	public IntOption kOption = new IntOption("k", 'k', "The number of neighbors", 3, 1, Integer.MAX_VALUE);
+
+	public IntOption maxWindowSize = new IntOption("maxWindowSize", 'w', "The maximum number of instances to store", 1000, 1, Integer.MAX_VALUE);
+
+	public IntOption minWindowSize = new IntOption("minWindowSize", 'm', "The minimum number of instances to sotre",   50, 1, Integer.MAX_VALUE);
+
+	public FloatOption penalty = new FloatOption("penalty", 'p', "Penalty ratio", 1, 0, Float.MAX_VALUE);
+
+	public FloatOption reductionRatio = new FloatOption("reductionRatio", 'r', "Reduction ratio", 0.5, 0, 1);
+
+	private String[] metrics = {"Subset Accuracy", "Hamming Score"};
+
+	public MultiChoiceOption metric = new MultiChoiceOption("metric", 'e', "Choose metric used to adjust memory", metrics, metrics, 0);
+
+	public IntOption ensembleSize = new IntOption("ensembleSize", 'n', "The number of members", 10, 1, Integer.MAX_VALUE);
+
+	public IntOption numBlocks = new IntOption("numBlocks", 'b', "The number of blocks the input attributes are split in", 8, 1, Integer.MAX_VALUE);
+
+	public FloatOption subspaceRatio = new FloatOption("subspaceRatio", 'u', "Fraction of the blocks in the subspace of every member", 0.7, 0, 1);
+
+	public FlagOption bagging = new FlagOption("bagging", 'g', "Train every member on an online bagging sample, skipping instances whose Poisson(1) weight is 0");
+
+	public IntOption numThreads = new IntOption("numThreads", 't', "The number of threads the members are processed in", 1, 1, Integer.MAX_VALUE);
+
+	public IntOption ensembleSeed = new IntOption("ensembleSeed", 'j', "Seed of the subspaces and bagging samples", 1);
+
+	private InstancesHeader context;
+	private MLSAMPkNN[] members;
+	private SharedWindowDistances sharedDistances;
+	private int numLabels;
+	private Random random;
+
+	private final ParallelTasks tasks = new ParallelTasks("MLSAMPkNN member");
+
+	@Override
+	public void setModelContext(InstancesHeader context) {
+		this.context = context;
+		createMembers();
+	}
+
+	@Override
+	public void resetLearningImpl() {
+		if(context != null)
+			createMembers();
+	}
+
+	private void createMembers() {
+
+		numLabels = context.numOutputAttributes();
+		random = new Random(ensembleSeed.getValue());
+
+		int numAttributes = context.numInputAttributes();
+		int numBlocks = Math.max(1, Math.min(this.numBlocks.getValue(), numAttributes));
+
+		// Random permutation of the attributes, split in blocks of equal size
+		int[] permutation = new int[numAttributes];
+		for(int i = 0; i < numAttributes; i++)
+			permutation[i] = i;
+		for(int i = numAttributes - 1; i > 0; i--)
+		{
+			int swap = random.nextInt(i + 1);
+			int attribute = permutation[i];
+			permutation[i] = permutation[swap];
+			permutation[swap] = attribute;
+		}
+
+		int[] attributeBlocks = new int[numAttributes];
+		for(int i = 0; i < numAttributes; i++)
+			attributeBlocks[permutation[i]] = (int) ((long) i * numBlocks / numAttributes);
+
+		double[] attributeRangeMin = new double[numAttributes];
+		double[] attributeRangeMax = new double[numAttributes];
+
+		sharedDistances = new SharedWindowDistances(maxWindowSize.getValue() + 1, attributeBlocks, numBlocks);
+
+		int subspaceSize = Math.max(1, (int) Math.round(subspaceRatio.getValue() * numBlocks));
+
+		members = new MLSAMPkNN[ensembleSize.getValue()];
+
+		for(int m = 0; m < members.length; m++)
+		{
+			int[] blocks = new int[numBlocks];
+			for(int b = 0; b < numBlocks; b++)
+				blocks[b] = b;
+			for(int b = 0; b < subspaceSize; b++)
+			{
+				int swap = b + random.nextInt(numBlocks - b);
+				int block = blocks[swap];
+				blocks[swap] = blocks[b];
+				blocks[b] = block;
+			}
+
+			int[] subspaceBlocks = Arrays.copyOf(blocks, subspaceSize);
+			Arrays.sort(subspaceBlocks);
+
+			MLSAMPkNN member = new MLSAMPkNN();
+			member.kOption.setValue(kOption.getValue());
+			member.maxWindowSize.setValue(maxWindowSize.getValue());
+			member.minWindowSize.setValue(minWindowSize.getValue());
+			member.penalty.setValue(penalty.getValue());
+			member.reductionRatio.setValue(reductionRatio.getValue());
+			member.metric.setChosenIndex(metric.getChosenIndex());
+			member.setModelContext(context);
+			member.prepareForUse();
+			member.shareAttributeRanges(attributeRangeMin, attributeRangeMax);
+			member.setDistanceCache(new SharedSubspaceDistanceCache(member, sharedDistances));
+			member.setSubspace(attributeBlocks, subspaceBlocks);
+			members[m] = member;
+		}
+	}
+
+	@Override
+	public void trainOnInstanceImpl(MultiLabelInstance inst) {
+
+		sharedDistances.add(inst);
+
+		// The shared ranges and distances are updated before the members read them in parallel
+		members[0].updateRanges(inst);
+		sharedDistances.prepare(inst, members[0]);
+
+		final boolean[] train = new boolean[members.length];
+		for(int m = 0; m < members.length; m++)
+			train[m] = !bagging.isSet() || poisson1() > 0;
+
+		tasks.run(members.length, numThreads.getValue(), m -> {
+			if(train[m])
+				members[m].trainOnInstance(inst);
+		});
+
+		sharedDistances.retainWindows(members);
+	}
+
+	/**
+	 * Returns a Poisson(1) sample, by inversion.
+	 */
+	private int poisson1() {
+		double u = random.nextDouble();
+		double p = Math.exp(-1);
+		double cumulative = p;
+		int k = 0;
+
+		while(u > cumulative && k < 100)
+		{
+			k++;
+			p /= k;
+			cumulative += p;
+		}
+
+		return k;
+	}
+
+	/**
+	 * Predicts the label of a given sample with the average votes of the members
+	 */
+	@Override
+	public Prediction getPredictionForInstance(MultiLabelInstance instance) {
+
+		sharedDistances.prepare(instance, members[0]);
+
+		final Prediction[] predictions = new Prediction[members.length];
+
+		tasks.run(members.length, numThreads.getValue(), m -> predictions[m] = members[m].getPredictionForInstance(instance));
+
+		MultiLabelPrediction prediction = new MultiLabelPrediction(numLabels);
+
+		for(int j = 0; j < numLabels; j++)
+		{
+			double relativeFrequency = 0;
+
+			for(Prediction memberPrediction : predictions)
+				relativeFrequency += memberPrediction.getVote(j, 1);
+
+			relativeFrequency /= predictions.length;
+
+			prediction.setVotes(j, new double[]{1.0 - relativeFrequency, relativeFrequency});
+		}
+
+		return prediction;
+	}
+
+	/**
+	 * Stops the member threads. The ensemble can still be used, starting them again.
+	 */
+	@Override
+	public void close() {
+		tasks.close();
+	}
+
+	public long estimateMemoryBytes() {
+		long bytes = sharedDistances.estimateMemoryBytes();
+
+		for(MLSAMPkNN member : members)
+			bytes += member.estimateMemoryBytes();
+
+		return bytes;
+	}
+
+	@Override
+	public int measureByteSize() {
+		return (int) Math.min(Integer.MAX_VALUE, estimateMemoryBytes());
+	}
+
+	@Override
+	protected Measurement[] getModelMeasurementsImpl() {
+
+		int minWindow = Integer.MAX_VALUE, maxWindow = 0;
+		long windowSum = 0;
+
+		for(MLSAMPkNN member : members)
+		{
+			int windowSize = member.getWindow().size();
+			windowSum += windowSize;
+			minWindow = Math.min(minWindow, windowSize);
+			maxWindow = Math.max(maxWindow, windowSize);
+		}
+
+		return new Measurement[]{
+				new Measurement("members", members.length),
+				new Measurement("mean member window size", windowSum / (double) members.length),
+				new Measurement("smallest member window size", minWindow),
+				new Measurement("largest member window size", maxWindow),
+				new Measurement("shared distance computations", sharedDistances.getDistanceComputations()),
+				new Measurement("model size estimate (bytes)", estimateMemoryBytes())
+		};
+	}
+
+	@Override
+	public void getModelDescription(StringBuilder out, int indent) {
+		StringUtils.appendIndented(out, indent, "Ensemble of " + members.length + " MLSAMPkNN with k = " + kOption.getValue() + " over random subspaces of " + numBlocks.getValue() + " attribute blocks");
+		StringUtils.appendNewline(out);
+	}
+
+	public boolean isRandomizable() {
+		return false;
+	}
+}
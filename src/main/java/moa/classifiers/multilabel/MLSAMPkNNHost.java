@@ -0,0 +1,409 @@
+package moa.classifiers.multilabel;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.yahoo.labs.samoa.instances.Prediction;
+
+import moa.core.InstanceExample;
+
+/**
+* Hosts many MLSAMPkNN models, one per key, on a shared pool of workers
+*
+* Every model owns a bounded queue of pending instances and is drained by at most one task at a time, so the
+* models are used by a single thread at any moment and their state needs no locks. A task processes a limited
+* batch and then yields the worker, so busy streams cannot starve the others. When a queue is full, submit
+* either blocks the caller or rejects the instance, which gives backpressure to the producers. A removed model
+* drains its queue before a new model for its key is created, and a closed host accepts no more instances.
+*
+* @author Alberto Cano
+*/
+
+public class MLSAMPkNNHost<K> implements AutoCloseable {
+
+	/**
+	 * Receives the prediction of every instance before the model trains on it.
+	 */
+	public interface PredictionListener<K> {
+
+		void onPrediction(K key, InstanceExample example, Prediction prediction);
+
+		/**
+		 * Receives any exception of a model, with a null example when it was not raised by an instance.
+		 */
+		default void onError(K key, InstanceExample example, Throwable error) {
+			System.err.println("Error: model " + key + " failed on an instance.");
+			error.printStackTrace();
+		}
+	}
+
+	private final Map<K, ModelSlot> models = new ConcurrentHashMap<K, ModelSlot>();
+
+	private final Function<K, MLSAMPkNN> modelFactory;
+	private final PredictionListener<K> listener;
+	private final ExecutorService executor;
+	private final boolean ownsExecutor;
+	private final int queueCapacity;
+	private final int batchSize;
+
+	private final AtomicLong pendingInstances = new AtomicLong();
+	private final Object idleMonitor = new Object();
+	private volatile boolean closed;
+
+	/**
+	 * @param modelFactory creates the model of a new key, with its model context already set
+	 * @param listener receives the predictions, or null to only train
+	 * @param executor shared pool running the models, shut down by close() only when created by the host
+	 * @param queueCapacity maximum number of pending instances per model
+	 * @param batchSize maximum number of instances a model processes before yielding its worker
+	 */
+	public MLSAMPkNNHost(Function<K, MLSAMPkNN> modelFactory, PredictionListener<K> listener, ExecutorService executor, int queueCapacity, int batchSize) {
+		this(modelFactory, listener, executor, false, queueCapacity, batchSize);
+	}
+
+	private MLSAMPkNNHost(Function<K, MLSAMPkNN> modelFactory, PredictionListener<K> listener, ExecutorService executor, boolean ownsExecutor, int queueCapacity, int batchSize) {
+		if(queueCapacity < 1 || batchSize < 1)
+			throw new IllegalArgumentException("The queue capacity and the batch size must be positive");
+
+		this.modelFactory = modelFactory;
+		this.listener = listener;
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+		this.queueCapacity = queueCapacity;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Creates a host running on its own work-stealing pool with the given number of threads.
+	 */
+	public static <K> MLSAMPkNNHost<K> withSharedPool(Function<K, MLSAMPkNN> modelFactory, PredictionListener<K> listener, int threads, int queueCapacity, int batchSize) {
+		return new MLSAMPkNNHost<K>(modelFactory, listener, new ForkJoinPool(threads), true, queueCapacity, batchSize);
+	}
+
+	/**
+	 * Creates a host running every model drain on a virtual thread (JDK 21+), falling back to a work-stealing pool
+	 * with one thread per core on older JDKs.
+	 */
+	public static <K> MLSAMPkNNHost<K> withVirtualThreads(Function<K, MLSAMPkNN> modelFactory, PredictionListener<K> listener, int queueCapacity, int batchSize) {
+		ExecutorService executor;
+
+		try {
+			executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			executor = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		}
+
+		return new MLSAMPkNNHost<K>(modelFactory, listener, executor, true, queueCapacity, batchSize);
+	}
+
+	/**
+	 * Queues an instance for the model of the key, which predicts it and then trains on it. Blocks while the
+	 * queue of the model is full, or while a removed model of the key is still draining.
+	 *
+	 * @throws IllegalStateException when the host is closed
+	 * @throws RejectedExecutionException when the executor refuses to run the model, its queued instances dropped
+	 */
+	public void submit(K key, InstanceExample example) throws InterruptedException {
+		ModelSlot slot = getSlot(key);
+
+		try {
+			pendingInstances.incrementAndGet();
+
+			try {
+				slot.queue.put(example);
+			} catch (InterruptedException e) {
+				instanceDone();
+				throw e;
+			}
+
+			slot.schedule();
+		} finally {
+			slot.exit();
+		}
+	}
+
+	/**
+	 * Queues an instance like submit, but waits at most the given time for room in the queue of the model.
+	 *
+	 * @return false when the instance was rejected because the queue stayed full
+	 */
+	public boolean offer(K key, InstanceExample example, long timeout, TimeUnit unit) throws InterruptedException {
+		ModelSlot slot = getSlot(key);
+		boolean accepted = false;
+
+		try {
+			pendingInstances.incrementAndGet();
+
+			try {
+				accepted = slot.queue.offer(example, timeout, unit);
+			} finally {
+				if(!accepted)
+					instanceDone();
+			}
+
+			if(accepted)
+				slot.schedule();
+		} finally {
+			slot.exit();
+		}
+
+		return accepted;
+	}
+
+	/**
+	 * Waits until every queued instance has been processed.
+	 *
+	 * @return false when the timeout elapsed first
+	 */
+	public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		synchronized (idleMonitor) {
+			while (pendingInstances.get() > 0)
+			{
+				long remaining = deadline - System.nanoTime();
+
+				if(remaining <= 0)
+					return false;
+
+				TimeUnit.NANOSECONDS.timedWait(idleMonitor, remaining);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the model of a key, or null if the key has not been seen. The model must not be used while the
+	 * host may still be processing instances for it.
+	 */
+	public MLSAMPkNN getModel(K key) {
+		ModelSlot slot = models.get(key);
+		return slot == null || slot.isRemoved() ? null : slot.learner;
+	}
+
+	/**
+	 * Forgets the model of a key. Instances already queued for it are processed before it is released, and the
+	 * next instance of the key waits for that to create a new model.
+	 */
+	public MLSAMPkNN removeModel(K key) {
+		ModelSlot slot = models.get(key);
+		return slot != null && slot.remove() ? slot.learner : null;
+	}
+
+	public int numModels() {
+		return models.size();
+	}
+
+	public long numPendingInstances() {
+		return pendingInstances.get();
+	}
+
+	/**
+	 * Returns the estimated bytes held by all the models, as of the last batch each one processed. The models
+	 * are not walked here, since their workers may be changing them.
+	 */
+	public long estimateMemoryBytes() {
+		long bytes = 0;
+
+		for(ModelSlot slot : models.values())
+			bytes += slot.memoryBytes;
+
+		return bytes;
+	}
+
+	/**
+	 * Refuses new instances. Those already queued are still processed, unless the executor was given to the host
+	 * and is shut down first.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+
+		if(ownsExecutor)
+			executor.shutdown();
+	}
+
+	/**
+	 * Returns the slot of a key, accepting instances until exit is called. A removed slot is waited for until it
+	 * is released, so that two models of the same key never run at once.
+	 */
+	private ModelSlot getSlot(K key) throws InterruptedException {
+		while (true)
+		{
+			if(closed)
+				throw new IllegalStateException("The host is closed");
+
+			ModelSlot slot = models.computeIfAbsent(key, k -> new ModelSlot(k, modelFactory.apply(k)));
+
+			if(slot.enter())
+				return slot;
+
+			slot.awaitReleased();
+		}
+	}
+
+	private void reportError(K key, InstanceExample example, Throwable error) {
+		if(listener != null)
+			listener.onError(key, example, error);
+		else
+		{
+			System.err.println("Error: model " + key + " failed on an instance.");
+			error.printStackTrace();
+		}
+	}
+
+	private void instanceDone() {
+		if(pendingInstances.decrementAndGet() == 0)
+			synchronized (idleMonitor) {
+				idleMonitor.notifyAll();
+			}
+	}
+
+	/**
+	 * A model with its queue. The scheduled flag guarantees that at most one drain task runs per model. The
+	 * memory estimate is published by the drain task, the only one touching the model. Once removed, the slot
+	 * accepts no more instances and leaves the map when the producers in flight are done and its queue is empty.
+	 */
+	private final class ModelSlot implements Runnable {
+
+		private final K key;
+		private final MLSAMPkNN learner;
+		private final ArrayBlockingQueue<InstanceExample> queue = new ArrayBlockingQueue<InstanceExample>(queueCapacity);
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private volatile long memoryBytes;
+
+		private boolean removed;
+		private boolean released;
+		private int producers; // submit and offer calls between getSlot and exit
+
+		ModelSlot(K key, MLSAMPkNN learner) {
+			this.key = key;
+			this.learner = learner;
+			this.memoryBytes = learner.estimateMemoryBytes();
+		}
+
+		synchronized boolean enter() {
+			if(removed)
+				return false;
+
+			producers++;
+			return true;
+		}
+
+		void exit() {
+			synchronized (this) {
+				producers--;
+			}
+
+			releaseIfDrained();
+		}
+
+		synchronized boolean isRemoved() {
+			return removed;
+		}
+
+		boolean remove() {
+			synchronized (this) {
+				if(removed)
+					return false;
+
+				removed = true;
+			}
+
+			releaseIfDrained();
+			return true;
+		}
+
+		private synchronized void releaseIfDrained() {
+			if(removed && !released && producers == 0 && queue.isEmpty() && !scheduled.get())
+			{
+				models.remove(key, this);
+				released = true;
+				notifyAll();
+			}
+		}
+
+		synchronized void awaitReleased() throws InterruptedException {
+			while (!released)
+				wait();
+		}
+
+		/**
+		 * Starts a drain task unless one is running. When the executor refuses it, the queued instances are
+		 * dropped and reported, so that they are not left pending.
+		 */
+		void schedule() {
+			if(scheduled.compareAndSet(false, true))
+			{
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					scheduled.set(false);
+
+					InstanceExample example;
+					while ((example = queue.poll()) != null)
+					{
+						reportError(key, example, e);
+						instanceDone();
+					}
+
+					releaseIfDrained();
+					throw e;
+				}
+			}
+		}
+
+		public void run() {
+			try {
+				for(int i = 0; i < batchSize; i++)
+				{
+					InstanceExample example = queue.poll();
+
+					if(example == null)
+						break;
+
+					try {
+						Prediction prediction = learner.getPredictionForInstance(example);
+
+						if(listener != null)
+							listener.onPrediction(key, example, prediction);
+
+						learner.trainOnInstance(example);
+					} catch (Exception e) {
+						reportError(key, example, e);
+					} finally {
+						instanceDone();
+					}
+				}
+
+				memoryBytes = learner.estimateMemoryBytes();
+			} catch (Exception e) {
+				reportError(key, null, e);
+			} finally {
+				scheduled.set(false);
+
+				// An instance queued after the last poll but before the flag was cleared would otherwise wait
+				if(!queue.isEmpty())
+				{
+					try {
+						schedule();
+					} catch (RejectedExecutionException e) {
+						// Already reported for every dropped instance
+					}
+				}
+				else
+					releaseIfDrained();
+			}
+		}
+	}
+}
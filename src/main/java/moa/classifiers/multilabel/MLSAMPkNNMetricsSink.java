@@ -0,0 +1,52 @@
+package moa.classifiers.multilabel;
+
+/**
+* Receives timings and counters from the hot paths of MLSAMPkNN
+*
+* The learner checks isEnabled() before reading the clock, so the default NOOP sink reduces every hook to a
+* constant false branch that the JIT removes once the call site is monomorphic.
+*
+* @author Alberto Cano
+*/
+
+public interface MLSAMPkNNMetricsSink {
+
+	enum Phase {
+		/** Distances from one instance to the window */
+		DISTANCES,
+		/** Selection of the nearest neighbors */
+		NEAREST_NEIGHBORS,
+		/** Evaluation of the candidate window sizes */
+		WINDOW_SIZE,
+		/** Removal of the instances exceeding the penalty */
+		PUNITIVE_REMOVAL,
+		/** Window cuts, sliding and the distance cache shifts they require */
+		EVICTION
+	}
+
+	enum Counter {
+		DISTANCE_COMPUTATIONS,
+		PUNITIVE_REMOVALS,
+		WINDOW_SIZE_CUTS,
+		EVICTED_INSTANCES
+	}
+
+	MLSAMPkNNMetricsSink NOOP = new MLSAMPkNNMetricsSink() {
+
+		public boolean isEnabled() {
+			return false;
+		}
+
+		public void recordTime(Phase phase, long nanos) {
+		}
+
+		public void incrementCounter(Counter counter, long delta) {
+		}
+	};
+
+	boolean isEnabled();
+
+	void recordTime(Phase phase, long nanos);
+
+	void incrementCounter(Counter counter, long delta);
+}
@@ -0,0 +1,141 @@
+package moa.classifiers.multilabel;
+
+import com.github.javacliparser.FloatOption;
+import com.github.javacliparser.IntOption;
+import com.github.javacliparser.MultiChoiceOption;
+import com.yahoo.labs.samoa.instances.*;
+import moa.classifiers.AbstractMultiLabelLearner;
+import moa.classifiers.MultiLabelClassifier;
+import moa.core.Measurement;
+import moa.core.StringUtils;
+
+/**
+* MLSAMPkNN with its window split in shards processed in parallel
+*
+* The window, punitive errors and prediction histories are those of a single MLSAMPkNN, whose distance cache is
+* split in shards: every shard owns a share of the instances, inserted round-robin, and keeps the distances from
+* every window instance to its own ones. The distances of a new instance, and of a query, are computed by all the
+* shards in parallel, and a prediction merges the local top-k of the shards. Every row of the histories of the
+* self-adjusting memory is predicted from the merged top-k of the shards too, so the window sizes are those of
+* the unsharded learner. The shard threads exit when idle, or at once on close.
+*
+* @author Alberto Cano
+*/
+
+public class MLSAMPkNNSharded extends AbstractMultiLabelLearner implements MultiLabelClassifier, AutoCloseable {
+
+	private static final long serialVersionUID = 1L;
+
+	public IntOption kOption = new IntOption("k", 'k', "The number of neighbors", 3, 1, Integer.MAX_VALUE);
+
+	public IntOption maxWindowSize = new IntOption("maxWindowSize", 'w', "The maximum number of instances to store", 1000, 1, Integer.MAX_VALUE);
+
+	public IntOption minWindowSize = new IntOption("minWindowSize", 'm', "The minimum number of instances to sotre",   50, 1, Integer.MAX_VALUE);
+
+	public FloatOption penalty = new FloatOption("penalty", 'p', "Penalty ratio", 1, 0, Float.MAX_VALUE);
+
+	public FloatOption reductionRatio = new FloatOption("reductionRatio", 'r', "Reduction ratio", 0.5, 0, 1);
+
+	private String[] metrics = {"Subset Accuracy", "Hamming Score"};
+
+	public MultiChoiceOption metric = new MultiChoiceOption("metric", 'e', "Choose metric used to adjust memory", metrics, metrics, 0);
+
+	public IntOption numShards = new IntOption("numShards", 'n', "The number of shards the window is split in", 4, 1, Integer.MAX_VALUE);
+
+	private InstancesHeader context;
+	private MLSAMPkNN learner;
+	private ShardedDistanceCache distanceCache;
+
+	private final ParallelTasks tasks = new ParallelTasks("MLSAMPkNN shard");
+
+	@Override
+	public void setModelContext(InstancesHeader context) {
+		this.context = context;
+		createLearner();
+	}
+
+	@Override
+	public void resetLearningImpl() {
+		if(context != null)
+			createLearner();
+	}
+
+	private void createLearner() {
+
+		learner = new MLSAMPkNN();
+		learner.kOption.setValue(kOption.getValue());
+		learner.maxWindowSize.setValue(maxWindowSize.getValue());
+		learner.minWindowSize.setValue(minWindowSize.getValue());
+		learner.penalty.setValue(penalty.getValue());
+		learner.reductionRatio.setValue(reductionRatio.getValue());
+		learner.metric.setChosenIndex(metric.getChosenIndex());
+		learner.setModelContext(context);
+		learner.prepareForUse();
+
+		distanceCache = new ShardedDistanceCache(learner, numShards.getValue(), tasks);
+		learner.setDistanceCache(distanceCache);
+	}
+
+	@Override
+	public void trainOnInstanceImpl(MultiLabelInstance inst) {
+		learner.trainOnInstance(inst);
+	}
+
+	/**
+	 * Predicts the label of a given sample from the merged top-k of the shards
+	 */
+	@Override
+	public Prediction getPredictionForInstance(MultiLabelInstance instance) {
+		return learner.getPredictionForInstance(instance);
+	}
+
+	/**
+	 * Stops the shard threads. The learner can still be used, starting them again.
+	 */
+	@Override
+	public void close() {
+		tasks.close();
+	}
+
+	public long estimateMemoryBytes() {
+		return learner == null ? 0 : learner.estimateMemoryBytes();
+	}
+
+	@Override
+	public int measureByteSize() {
+		return (int) Math.min(Integer.MAX_VALUE, estimateMemoryBytes());
+	}
+
+	@Override
+	protected Measurement[] getModelMeasurementsImpl() {
+
+		if(learner == null)
+			return new Measurement[]{new Measurement("window size", 0)};
+
+		int minShardSize = Integer.MAX_VALUE, maxShardSize = 0;
+
+		for(int s = 0; s < distanceCache.numShards(); s++)
+		{
+			minShardSize = Math.min(minShardSize, distanceCache.getShardSize(s));
+			maxShardSize = Math.max(maxShardSize, distanceCache.getShardSize(s));
+		}
+
+		return new Measurement[]{
+				new Measurement("window size", learner.getWindow().size()),
+				new Measurement("shards", distanceCache.numShards()),
+				new Measurement("smallest shard window size", minShardSize),
+				new Measurement("largest shard window size", maxShardSize),
+				new Measurement("model size estimate (bytes)", estimateMemoryBytes())
+		};
+	}
+
+	@Override
+	public void getModelDescription(StringBuilder out, int indent) {
+		StringUtils.appendIndented(out, indent, "MLSAMPkNN with k = " + kOption.getValue() + " and the window split in " + numShards.getValue() + " shards");
+		StringUtils.appendNewline(out);
+	}
+
+	public boolean isRandomizable() {
+		return false;
+	}
+}
@@ -0,0 +1,242 @@
+package moa.classifiers.multilabel;
+
+import com.github.javacliparser.IntOption;
+import com.github.javacliparser.MultiChoiceOption;
+import com.github.javacliparser.StringOption;
+import com.yahoo.labs.samoa.instances.*;
+import moa.classifiers.AbstractMultiLabelLearner;
+import moa.classifiers.MultiLabelClassifier;
+import moa.core.Measurement;
+import moa.core.StringUtils;
+
+import java.util.*;
+
+/**
+* Hyperparameter sweep of MLSAMPkNN evaluating many configurations in one pass over the stream
+*
+* Every combination of the given k, penalty, reduction ratio and metric values is an MLSAMPkNN member with its own
+* window, distance cache, punitive errors and prediction histories. All the members are fed the same instances
+* and normalize distances with the same attribute ranges, so their windows are subsequences of a union window of
+* the latest instances, and the distances from every query to the union are computed once and shared by all
+* the members. Every member is evaluated prequentially, scoring its last prediction of an instance once the
+* sweep trains on it, and the prediction returned is the one of the member with the best selection metric so far.
+*
+* @author Alberto Cano
+*/
+
+public class MLSAMPkNNSweep extends AbstractMultiLabelLearner implements MultiLabelClassifier {
+
+	private static final long serialVersionUID = 1L;
+
+	public StringOption kValues = new StringOption("kValues", 'k', "Comma-separated numbers of neighbors", "3");
+
+	public IntOption maxWindowSize = new IntOption("maxWindowSize", 'w', "The maximum number of instances to store", 1000, 1, Integer.MAX_VALUE);
+
+	public IntOption minWindowSize = new IntOption("minWindowSize", 'm', "The minimum number of instances to sotre",   50, 1, Integer.MAX_VALUE);
+
+	public StringOption penaltyValues = new StringOption("penaltyValues", 'p', "Comma-separated penalty ratios", "1");
+
+	public StringOption reductionRatioValues = new StringOption("reductionRatioValues", 'r', "Comma-separated reduction ratios", "0.5");
+
+	private String[] metrics = {"Subset Accuracy", "Hamming Score"};
+
+	public StringOption metricValues = new StringOption("metricValues", 'e', "Comma-separated metrics used to adjust memory: Subset Accuracy, Hamming Score", "Subset Accuracy");
+
+	public MultiChoiceOption selectionMetric = new MultiChoiceOption("selectionMetric", 's', "Metric choosing the member whose prediction is returned", metrics, metrics, 0);
+
+	private InstancesHeader context;
+	private MLSAMPkNN[] members;
+	private String[] configurations;
+	private SharedWindowDistances sharedDistances;
+	private int numLabels;
+
+	private long evaluatedInstances;
+	private double[] sumSubsetAccuracy;
+	private double[] sumHammingScore;
+
+	/** Predictions of the members for the last instance predicted, scored when the sweep trains on it */
+	private transient Instance predictedInstance;
+	private transient Prediction[] memberPredictions;
+
+	@Override
+	public void setModelContext(InstancesHeader context) {
+		this.context = context;
+		createMembers();
+	}
+
+	@Override
+	public void resetLearningImpl() {
+		if(context != null)
+			createMembers();
+	}
+
+	private void createMembers() {
+
+		numLabels = context.numOutputAttributes();
+
+		double[] attributeRangeMin = new double[context.numInputAttributes()];
+		double[] attributeRangeMax = new double[context.numInputAttributes()];
+
+		sharedDistances = new SharedWindowDistances(maxWindowSize.getValue() + 1);
+
+		List<MLSAMPkNN> memberList = new ArrayList<MLSAMPkNN>();
+		List<String> configurationList = new ArrayList<String>();
+
+		for(String k : kValues.getValue().split(","))
+			for(String penalty : penaltyValues.getValue().split(","))
+				for(String reductionRatio : reductionRatioValues.getValue().split(","))
+					for(String metric : metricValues.getValue().split(","))
+					{
+						MLSAMPkNN member = new MLSAMPkNN();
+						member.kOption.setValue(Integer.parseInt(k.trim()));
+						member.maxWindowSize.setValue(maxWindowSize.getValue());
+						member.minWindowSize.setValue(minWindowSize.getValue());
+						member.penalty.setValue(Double.parseDouble(penalty.trim()));
+						member.reductionRatio.setValue(Double.parseDouble(reductionRatio.trim()));
+						member.metric.setChosenIndex(getMetricIndex(metric.trim()));
+						member.setModelContext(context);
+						member.prepareForUse();
+						member.shareAttributeRanges(attributeRangeMin, attributeRangeMax);
+						member.shareDistances(sharedDistances);
+						memberList.add(member);
+						configurationList.add("k = " + k.trim() + ", penalty = " + penalty.trim() + ", reduction ratio = " + reductionRatio.trim() + ", metric = " + metric.trim());
+					}
+
+		members = memberList.toArray(new MLSAMPkNN[0]);
+		configurations = configurationList.toArray(new String[0]);
+
+		evaluatedInstances = 0;
+		sumSubsetAccuracy = new double[members.length];
+		sumHammingScore = new double[members.length];
+		predictedInstance = null;
+		memberPredictions = null;
+	}
+
+	private int getMetricIndex(String metric) {
+
+		for(int i = 0; i < metrics.length; i++)
+			if(metrics[i].equalsIgnoreCase(metric))
+				return i;
+
+		throw new IllegalArgumentException("Unknown metric " + metric + ", expected one of " + Arrays.toString(metrics));
+	}
+
+	@Override
+	public void trainOnInstanceImpl(MultiLabelInstance inst) {
+
+		if(predictedInstance == inst)
+			evaluateMembers(inst);
+
+		// The ranges may change with the instance, so its distances are computed again after the prediction
+		sharedDistances.add(inst);
+
+		for(MLSAMPkNN member : members)
+			member.trainOnInstance(inst);
+
+		sharedDistances.retainWindows(members);
+	}
+
+	/**
+	 * Predicts the label of a given sample with every member, keeping their predictions to evaluate them when the
+	 * sweep trains on it, and returns the prediction of the best member before this instance.
+	 */
+	@Override
+	public Prediction getPredictionForInstance(MultiLabelInstance instance) {
+
+		if(memberPredictions == null)
+			memberPredictions = new Prediction[members.length];
+
+		for(int m = 0; m < members.length; m++)
+			memberPredictions[m] = members[m].getPredictionForInstance(instance);
+
+		predictedInstance = instance;
+
+		return memberPredictions[getBestMember()];
+	}
+
+	/**
+	 * Scores the predictions of the members for the instance being trained on, once.
+	 */
+	private void evaluateMembers(Instance instance) {
+
+		for(int m = 0; m < members.length; m++)
+		{
+			int correct = 0;
+
+			for(int j = 0; j < numLabels; j++)
+			{
+				int yp = (memberPredictions[m].getVote(j, 1) >= 0.5) ? 1 : 0;
+				correct += ((int) instance.classValue(j) == yp) ? 1 : 0;
+			}
+
+			sumSubsetAccuracy[m] += correct == numLabels ? 1 : 0;
+			sumHammingScore[m] += correct / (double) numLabels;
+		}
+
+		evaluatedInstances++;
+		predictedInstance = null;
+	}
+
+	/**
+	 * Returns the members, in the order of their configurations.
+	 */
+	MLSAMPkNN[] getMembers() {
+		return members;
+	}
+
+	private int getBestMember() {
+
+		double[] sums = selectionMetric.getChosenIndex() == 0 ? sumSubsetAccuracy : sumHammingScore;
+
+		int best = 0;
+		for(int m = 1; m < members.length; m++)
+			if(sums[m] > sums[best])
+				best = m;
+
+		return best;
+	}
+
+	public long estimateMemoryBytes() {
+		long bytes = sharedDistances.estimateMemoryBytes();
+
+		for(MLSAMPkNN member : members)
+			bytes += member.estimateMemoryBytes();
+
+		return bytes;
+	}
+
+	@Override
+	public int measureByteSize() {
+		return (int) Math.min(Integer.MAX_VALUE, estimateMemoryBytes());
+	}
+
+	@Override
+	protected Measurement[] getModelMeasurementsImpl() {
+
+		List<Measurement> measurements = new ArrayList<Measurement>();
+
+		measurements.add(new Measurement("configurations", members.length));
+		measurements.add(new Measurement("best configuration", getBestMember()));
+		measurements.add(new Measurement("shared distance computations", sharedDistances.getDistanceComputations()));
+		measurements.add(new Measurement("model size estimate (bytes)", estimateMemoryBytes()));
+
+		for(int m = 0; m < members.length; m++)
+		{
+			measurements.add(new Measurement("[" + configurations[m] + "] subset accuracy", evaluatedInstances == 0 ? 0 : sumSubsetAccuracy[m] / evaluatedInstances));
+			measurements.add(new Measurement("[" + configurations[m] + "] hamming score", evaluatedInstances == 0 ? 0 : sumHammingScore[m] / evaluatedInstances));
+			measurements.add(new Measurement("[" + configurations[m] + "] window size", members[m].getWindow().size()));
+		}
+
+		return measurements.toArray(new Measurement[0]);
+	}
+
+	@Override
+	public void getModelDescription(StringBuilder out, int indent) {
+		StringUtils.appendIndented(out, indent, "MLSAMPkNN sweep of " + members.length + " configurations, the best being " + configurations[getBestMember()]);
+		StringUtils.appendNewline(out);
+	}
+
+	public boolean isRandomizable() {
+		return false;
+	}
+}
@@ -0,0 +1,110 @@
+package moa.classifiers.multilabel;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+* Runs a task for every index over the calling thread and a few worker threads, and waits for all of them
+*
+* The workers are daemon threads that exit after being idle for a second, so a learner dropped or copied without
+* being closed does not keep them alive, and close releases them at once. The pool is not serialized, and is
+* created again the next time tasks are run.
+*
+* @author Alberto Cano
+*/
+
+final class ParallelTasks implements Serializable, AutoCloseable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final long IDLE_SECONDS = 1;
+
+	private final String threadName;
+
+	private transient ThreadPoolExecutor executor;
+
+	ParallelTasks(String threadName) {
+		this.threadName = threadName;
+	}
+
+	/**
+	 * Runs the tasks 0 to numTasks-1 over numThreads threads, the caller included, every thread taking every
+	 * numThreads-th task.
+	 */
+	void run(int numTasks, int numThreads, IntConsumer task) {
+
+		int threads = Math.min(numThreads, numTasks);
+
+		if(threads <= 1)
+		{
+			for(int t = 0; t < numTasks; t++)
+				task.accept(t);
+			return;
+		}
+
+		ThreadPoolExecutor executor = getExecutor(threads - 1);
+
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		for(int t = 1; t < threads; t++)
+		{
+			final int thread = t;
+			futures.add(executor.submit(() -> {
+				for(int i = thread; i < numTasks; i += threads)
+					task.accept(i);
+			}));
+		}
+
+		for(int i = 0; i < numTasks; i += threads)
+			task.accept(i);
+
+		try {
+			for(Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the " + threadName + " tasks", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("A " + threadName + " task failed", e.getCause());
+		}
+	}
+
+	private synchronized ThreadPoolExecutor getExecutor(int workers) {
+
+		if(executor == null)
+		{
+			executor = new ThreadPoolExecutor(workers, workers, IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+				Thread thread = new Thread(runnable, threadName);
+				thread.setDaemon(true);
+				return thread;
+			});
+			executor.allowCoreThreadTimeOut(true);
+		}
+		else if(executor.getMaximumPoolSize() < workers)
+		{
+			executor.setMaximumPoolSize(workers);
+			executor.setCorePoolSize(workers);
+		}
+
+		return executor;
+	}
+
+	/**
+	 * Stops the worker threads. Tasks run afterwards start a new pool.
+	 */
+	@Override
+	public synchronized void close() {
+		if(executor != null)
+		{
+			executor.shutdown();
+			executor = null;
+		}
+	}
+}
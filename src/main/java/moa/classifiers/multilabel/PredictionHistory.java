@@ -0,0 +1,146 @@
+package moa.classifiers.multilabel;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+* Test-then-train predictions of a candidate window, with the neighbors used by every prediction
+*
+* Row t is the prediction of the t-th instance from the start of the candidate window, made with its min(k, t)
+* nearest neighbors among the instances before it. Neighbors are stored as offsets from the start of the
+* candidate window, in a flat array with k slots per row, so that cutting the window from the oldest side
+* keeps them valid, and removing an instance from the middle only needs to recompute the rows that used it.
+* For adaptive k, every row also keeps the labels correctly predicted by each prefix of its neighbors.
+*
+* @author Alberto Cano
+*/
+
+final class PredictionHistory implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int k;
+	private int size;
+	private int[] sums = new int[16];
+	private int[] neighbors;
+	private int[] sumsByK;
+
+	PredictionHistory(int k) {
+		this(k, false);
+	}
+
+	/**
+	 * @param keepSumsByK whether to keep the labels correctly predicted by every k' &lt;= k
+	 */
+	PredictionHistory(int k, boolean keepSumsByK) {
+		this.k = k;
+		this.neighbors = new int[16 * k];
+		this.sumsByK = keepSumsByK ? new int[16 * k] : null;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of labels correctly predicted at a row.
+	 */
+	int getSum(int row) {
+		return sums[row];
+	}
+
+	/**
+	 * Returns the number of labels correctly predicted at a row by its k' nearest neighbors.
+	 */
+	int getSum(int row, int kPrefix) {
+		return sumsByK[row * k + kPrefix - 1];
+	}
+
+	/**
+	 * Appends a row, given its neighbors as window positions and the position of the start of the history.
+	 */
+	void add(int sum, int[] nnIndices, int startIdx) {
+		add(sum, null, nnIndices, startIdx);
+	}
+
+	/**
+	 * Appends a row, with the labels correctly predicted by every k' &lt;= k when they are kept.
+	 */
+	void add(int sum, int[] rowSumsByK, int[] nnIndices, int startIdx) {
+
+		if(size == sums.length)
+		{
+			sums = Arrays.copyOf(sums, 2 * size);
+			neighbors = Arrays.copyOf(neighbors, 2 * size * k);
+			if(sumsByK != null)
+				sumsByK = Arrays.copyOf(sumsByK, 2 * size * k);
+		}
+
+		set(size++, sum, rowSumsByK, nnIndices, startIdx);
+	}
+
+	void set(int row, int sum, int[] nnIndices, int startIdx) {
+		set(row, sum, null, nnIndices, startIdx);
+	}
+
+	void set(int row, int sum, int[] rowSumsByK, int[] nnIndices, int startIdx) {
+
+		sums[row] = sum;
+
+		if(sumsByK != null)
+			System.arraycopy(rowSumsByK, 0, sumsByK, row * k, k);
+
+		for(int n = 0; n < nnIndices.length; n++)
+			neighbors[row * k + n] = nnIndices[n] - startIdx;
+	}
+
+	/**
+	 * Removes an instance of the candidate window, given as offset from its start, with its row. Returns the rows,
+	 * as numbered after the removal, whose neighbors included the instance and must be recomputed.
+	 */
+	int[] remove(int offset) {
+
+		if(offset >= size)
+			return new int[0];
+
+		int[] stale = new int[size];
+		int numStale = 0;
+
+		for(int row = offset + 1; row < size; row++)
+		{
+			int numNeighbors = Math.min(k, row);
+			boolean used = false;
+
+			for(int n = row * k; n < row * k + numNeighbors; n++)
+			{
+				if(neighbors[n] == offset)
+					used = true;
+				else if(neighbors[n] > offset)
+					neighbors[n]--;
+			}
+
+			if(used)
+				stale[numStale++] = row - 1;
+		}
+
+		System.arraycopy(sums, offset + 1, sums, offset, size - offset - 1);
+		System.arraycopy(neighbors, (offset + 1) * k, neighbors, offset * k, (size - offset - 1) * k);
+		if(sumsByK != null)
+			System.arraycopy(sumsByK, (offset + 1) * k, sumsByK, offset * k, (size - offset - 1) * k);
+		size--;
+
+		return Arrays.copyOf(stale, numStale);
+	}
+
+	long estimateMemoryBytes() {
+		return 32 + 16 + 4L * sums.length + 16 + 4L * neighbors.length + (sumsByK == null ? 0 : 16 + 4L * sumsByK.length);
+	}
+
+	/**
+	 * Returns the bytes of a history with the given number of rows.
+	 */
+	static long predictMemoryBytes(int rows, int k, boolean keepSumsByK) {
+		int capacity = Math.max(16, Integer.highestOneBit(Math.max(1, rows - 1)) << 1);
+		return 32 + 16 + 4L * capacity + 16 + 4L * capacity * k + (keepSumsByK ? 16 + 4L * capacity * k : 0);
+	}
+}
@@ -0,0 +1,479 @@
+package moa.classifiers.multilabel;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+import com.yahoo.labs.samoa.instances.DenseInstanceData;
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstanceData;
+import com.yahoo.labs.samoa.instances.InstanceImpl;
+import com.yahoo.labs.samoa.instances.InstanceInformation;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+
+/**
+* Input attributes of the window instances, as reduced-precision rows for approximate distance scans on the heap
+* and as full-precision values off the heap for exact distances
+*
+* Rows are stored contiguously, aligned with the window, as 32-bit floats or as 8-bit codes of a per-attribute
+* grid. The grid covers the attribute ranges with some margin, and when the ranges outgrow it the grid is widened
+* and the rows are quantized again from the exact values. The distances are asymmetric: only the window side is
+* quantized, and they are normalized by the attribute ranges as in MLSAMPkNN.
+*
+* The window keeps the instances returned by add, which hold their output attributes and read their input
+* attributes from a slot of the off-heap values, following the attribute layout of the stream header, so the exact distances of the re-rank and of the distance cache are unchanged.
+* The slot is released with the row, and the instance cannot be read afterwards.
+*
+* @author Alberto Cano
+*/
+
+public class QuantizedFeatureStore implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Precision {FLOAT, INT8}
+
+	/** Fraction of the range added at both sides of the grid, so that slowly growing ranges seldom requantize */
+	private static final double GRID_MARGIN = 0.125;
+
+	private final Precision precision;
+	private final int numAttributes;
+	private int numRows;
+
+	private float[] floatValues;
+	private byte[] codes;
+	private final double[] gridMin;
+	private final double[] gridStep;
+	private boolean gridValid;
+
+	/** Input index of every attribute, or -1 minus its position among the output attributes */
+	private int[] attributeLayout;
+
+	/** Slot of the exact values of every row, and the instance reading it */
+	private int[] rowSlots = new int[16];
+	private SlotData[] slotData = new SlotData[16];
+	private int[] freeSlots = new int[16];
+	private int numFreeSlots;
+	private int numSlots;
+
+	/** Exact values of the slots, numAttributes per slot, serialized by writeObject */
+	private transient DoubleBuffer exactValues;
+
+	public QuantizedFeatureStore(Precision precision, int numAttributes) {
+		this.precision = precision;
+		this.numAttributes = numAttributes;
+		this.gridMin = new double[numAttributes];
+		this.gridStep = new double[numAttributes];
+
+		if(precision == Precision.FLOAT)
+			floatValues = new float[0];
+		else
+			codes = new byte[0];
+
+		exactValues = allocate(16);
+	}
+
+	public int size() {
+		return numRows;
+	}
+
+	/**
+	 * Appends the input attributes of a dense instance, and returns the instance to keep in the window in its place.
+	 */
+	public Instance add(Instance instance) {
+
+		if(attributeLayout == null)
+			attributeLayout = getAttributeLayout(instance);
+
+		int slot = allocateSlot();
+
+		for(int i = 0; i < numAttributes; i++)
+			exactValues.put(slot * numAttributes + i, instance.valueInputAttribute(i));
+
+		double[] outputs = new double[attributeLayout.length - numAttributes];
+		for(int a = 0; a < attributeLayout.length; a++)
+			if(attributeLayout[a] < 0)
+				outputs[-1 - attributeLayout[a]] = instance.value(a);
+
+		slotData[slot] = new SlotData(this, slot, outputs);
+
+		ensureCapacity(numRows + 1);
+
+		if(numRows == rowSlots.length)
+			rowSlots = Arrays.copyOf(rowSlots, 2 * numRows);
+
+		rowSlots[numRows] = slot;
+		setRow(numRows++, slot);
+
+		StoredInstance stored = new StoredInstance(instance.weight(), slotData[slot]);
+		stored.setDataset(instance.dataset());
+
+		return stored;
+	}
+
+	private int[] getAttributeLayout(Instance instance) {
+
+		InstanceInformation information = new InstancesHeader(instance.dataset()).getInstanceInformation();
+		int[] layout = new int[instance.numAttributes()];
+		Arrays.fill(layout, -1);
+
+		for(int i = 0; i < numAttributes; i++)
+			layout[information.inputAttributeIndex(i)] = i;
+
+		for(int a = 0, o = 0; a < layout.length; a++)
+			if(layout[a] < 0)
+				layout[a] = -1 - o++;
+
+		return layout;
+	}
+
+	public void remove(int row) {
+		removeRange(row, row + 1);
+	}
+
+	/**
+	 * Removes the rows from start (inclusive) to end (exclusive), releasing their slots.
+	 */
+	public void removeRange(int start, int end) {
+
+		for(int row = start; row < end; row++)
+			releaseSlot(rowSlots[row]);
+
+		int length = (numRows - end) * numAttributes;
+
+		if(precision == Precision.FLOAT)
+			System.arraycopy(floatValues, end * numAttributes, floatValues, start * numAttributes, length);
+		else
+			System.arraycopy(codes, end * numAttributes, codes, start * numAttributes, length);
+
+		System.arraycopy(rowSlots, end, rowSlots, start, numRows - end);
+
+		numRows -= end - start;
+	}
+
+	public void clear() {
+		removeRange(0, numRows);
+		gridValid = false;
+	}
+
+	/**
+	 * Computes the approximate squared distances from an instance to every row, normalized by the given ranges.
+	 */
+	public void getSquaredDistances(Instance instance, double[] rangeMin, double[] rangeMax, double[] distances) {
+
+		double[] query = new double[numAttributes];
+		double[] weights = new double[numAttributes];
+
+		if(precision == Precision.FLOAT)
+		{
+			for(int i = 0; i < numAttributes; i++)
+			{
+				double range = rangeMax[i] - rangeMin[i];
+				query[i] = instance.valueInputAttribute(i);
+				weights[i] = range == 0 ? 0 : 1 / (range * range);
+			}
+
+			for(int row = 0, offset = 0; row < numRows; row++, offset += numAttributes)
+			{
+				double distance = 0;
+
+				for(int i = 0; i < numAttributes; i++)
+				{
+					double diff = query[i] - floatValues[offset + i];
+					distance += weights[i] * diff * diff;
+				}
+
+				distances[row] = distance;
+			}
+		}
+		else
+		{
+			if(!gridCovers(rangeMin, rangeMax))
+				requantize(rangeMin, rangeMax);
+
+			for(int i = 0; i < numAttributes; i++)
+			{
+				double range = rangeMax[i] - rangeMin[i];
+				query[i] = gridStep[i] == 0 ? -128 : (instance.valueInputAttribute(i) - gridMin[i]) / gridStep[i] - 128;
+				weights[i] = range == 0 ? 0 : (gridStep[i] / range) * (gridStep[i] / range);
+			}
+
+			for(int row = 0, offset = 0; row < numRows; row++, offset += numAttributes)
+			{
+				double distance = 0;
+
+				for(int i = 0; i < numAttributes; i++)
+				{
+					double diff = query[i] - codes[offset + i];
+					distance += weights[i] * diff * diff;
+				}
+
+				distances[row] = distance;
+			}
+		}
+	}
+
+	/**
+	 * Returns the heap bytes of the store: the reduced-precision rows and the slot bookkeeping. The labels of the
+	 * window instances are counted with the window.
+	 */
+	public long estimateMemoryBytes() {
+
+		long bytes = 64 + 2 * (16 + 8L * numAttributes) + 3 * (16 + 4L * rowSlots.length);
+
+		if(precision == Precision.FLOAT)
+			bytes += 16 + 4L * floatValues.length;
+		else
+			bytes += 16 + codes.length;
+
+		return bytes;
+	}
+
+	/**
+	 * Returns the bytes of the exact values, held off the heap.
+	 */
+	public long estimateOffHeapBytes() {
+		return 8L * exactValues.capacity();
+	}
+
+	/**
+	 * Returns the heap and off-heap bytes of a store holding the given number of rows.
+	 */
+	public static long predictMemoryBytes(Precision precision, int numAttributes, int numRows) {
+		return 64 + 2 * (16 + 8L * numAttributes) + 3 * (16 + 4L * numRows) + 16 + (precision == Precision.FLOAT ? 4L : 1L) * numAttributes * numRows
+				+ 8L * numAttributes * numRows;
+	}
+
+	private boolean gridCovers(double[] rangeMin, double[] rangeMax) {
+
+		if(!gridValid)
+			return false;
+
+		for(int i = 0; i < numAttributes; i++)
+			if(rangeMin[i] < gridMin[i] || rangeMax[i] > gridMin[i] + 255 * gridStep[i])
+				return false;
+
+		return true;
+	}
+
+	private void requantize(double[] rangeMin, double[] rangeMax) {
+
+		for(int i = 0; i < numAttributes; i++)
+		{
+			double margin = GRID_MARGIN * (rangeMax[i] - rangeMin[i]);
+			gridMin[i] = rangeMin[i] - margin;
+			gridStep[i] = (rangeMax[i] - rangeMin[i] + 2 * margin) / 255;
+		}
+
+		gridValid = true;
+
+		for(int row = 0; row < numRows; row++)
+			setRow(row, rowSlots[row]);
+	}
+
+	/**
+	 * Sets a reduced-precision row from the exact values of a slot.
+	 */
+	private void setRow(int row, int slot) {
+
+		int offset = row * numAttributes;
+		int slotOffset = slot * numAttributes;
+
+		if(precision == Precision.FLOAT)
+		{
+			for(int i = 0; i < numAttributes; i++)
+				floatValues[offset + i] = (float) exactValues.get(slotOffset + i);
+		}
+		else
+		{
+			// Values outside a stale grid are clamped, and requantized before the next scan
+			for(int i = 0; i < numAttributes; i++)
+			{
+				double code = gridStep[i] == 0 ? 0 : Math.rint((exactValues.get(slotOffset + i) - gridMin[i]) / gridStep[i]);
+				codes[offset + i] = (byte) (Math.max(0, Math.min(255, code)) - 128);
+			}
+		}
+	}
+
+	private int allocateSlot() {
+
+		if(numFreeSlots > 0)
+			return freeSlots[--numFreeSlots];
+
+		if(numSlots == slotData.length)
+		{
+			slotData = Arrays.copyOf(slotData, 2 * numSlots);
+			freeSlots = Arrays.copyOf(freeSlots, 2 * numSlots);
+
+			DoubleBuffer values = allocate(2 * numSlots);
+			// The values are read and written at absolute positions, so both buffers are copied from the start
+			DoubleBuffer used = exactValues.duplicate();
+			used.position(0);
+			used.limit(numSlots * numAttributes);
+			values.put(used);
+			values.rewind();
+			exactValues = values;
+		}
+
+		return numSlots++;
+	}
+
+	private void releaseSlot(int slot) {
+		slotData[slot].slot = -1;
+		slotData[slot] = null;
+		freeSlots[numFreeSlots++] = slot;
+	}
+
+	private DoubleBuffer allocate(int slots) {
+		return ByteBuffer.allocateDirect(8 * Math.max(1, slots * numAttributes)).asDoubleBuffer();
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+
+		out.defaultWriteObject();
+
+		for(int i = 0; i < numSlots * numAttributes; i++)
+			out.writeDouble(exactValues.get(i));
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+
+		in.defaultReadObject();
+
+		exactValues = allocate(slotData.length);
+
+		for(int i = 0; i < numSlots * numAttributes; i++)
+			exactValues.put(i, in.readDouble());
+	}
+
+	/**
+	 * A window instance of the store, whose input attributes are the exact values of its slot.
+	 */
+	static final class StoredInstance extends InstanceImpl {
+
+		private static final long serialVersionUID = 1L;
+
+		StoredInstance(double weight, InstanceData instanceData) {
+			super(weight, instanceData);
+		}
+	}
+
+	private static final class SlotData implements InstanceData {
+
+		private static final long serialVersionUID = 1L;
+
+		private final QuantizedFeatureStore store;
+		private int slot;
+		private final double[] outputs;
+
+		SlotData(QuantizedFeatureStore store, int slot, double[] outputs) {
+			this.store = store;
+			this.slot = slot;
+			this.outputs = outputs;
+		}
+
+		@Override
+		public int numAttributes() {
+			return store.attributeLayout.length;
+		}
+
+		@Override
+		public double value(int attribute) {
+
+			int input = store.attributeLayout[attribute];
+
+			if(input < 0)
+				return outputs[-1 - input];
+
+			if(slot < 0)
+				throw new IllegalStateException("The input attributes of a window instance are released when it leaves the window");
+
+			return store.exactValues.get(slot * store.numAttributes + input);
+		}
+
+		@Override
+		public boolean isMissing(int attribute) {
+			return Double.isNaN(value(attribute));
+		}
+
+		@Override
+		public int numValues() {
+			return numAttributes();
+		}
+
+		@Override
+		public int index(int indexAttribute) {
+			return indexAttribute;
+		}
+
+		@Override
+		public double valueSparse(int indexAttribute) {
+			return value(indexAttribute);
+		}
+
+		@Override
+		public boolean isMissingSparse(int indexAttribute) {
+			return isMissing(indexAttribute);
+		}
+
+		@Override
+		public double[] toDoubleArray() {
+
+			double[] values = new double[numAttributes()];
+
+			for(int i = 0; i < values.length; i++)
+				values[i] = value(i);
+
+			return values;
+		}
+
+		@Override
+		public void setValue(int attribute, double value) {
+
+			int input = store.attributeLayout[attribute];
+
+			if(input >= 0)
+				throw new UnsupportedOperationException("The input attributes of a window instance are read-only");
+
+			outputs[-1 - input] = value;
+		}
+
+		@Override
+		public void deleteAttributeAt(int index) {
+			throw new UnsupportedOperationException("The attributes of a window instance are fixed");
+		}
+
+		@Override
+		public void insertAttributeAt(int index) {
+			throw new UnsupportedOperationException("The attributes of a window instance are fixed");
+		}
+
+		/**
+		 * Returns a dense copy, which no longer depends on the slot.
+		 */
+		@Override
+		public InstanceData copy() {
+			return new DenseInstanceData(toDoubleArray());
+		}
+	}
+
+	private void ensureCapacity(int rows) {
+
+		long required = (long) rows * numAttributes;
+		int capacity = precision == Precision.FLOAT ? floatValues.length : codes.length;
+
+		if(required <= capacity)
+			return;
+
+		int newCapacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(required, Math.max(16L * numAttributes, 2L * capacity)));
+
+		if(precision == Precision.FLOAT)
+			floatValues = Arrays.copyOf(floatValues, newCapacity);
+		else
+			codes = Arrays.copyOf(codes, newCapacity);
+	}
+}
@@ -0,0 +1,165 @@
+package moa.classifiers.multilabel;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.yahoo.labs.samoa.instances.Attribute;
+import com.yahoo.labs.samoa.instances.DenseInstance;
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.Instances;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+import com.yahoo.labs.samoa.instances.MultiLabelInstance;
+import com.yahoo.labs.samoa.instances.Range;
+
+import moa.core.MultilabelInstancesHeader;
+
+/**
+* Sparse Johnson-Lindenstrauss projection of the input attributes of multi-label instances
+*
+* Every input attribute is added, with a random sign, to a fixed number of distinct random output dimensions and
+* scaled by the inverse square root of that number, as in the sparse JL transform of Kane and Nelson. Squared
+* Euclidean distances are preserved in expectation, and projecting costs the number of non-zero values times the
+* non-zeros per column, so sparse instances are cheap. The labels are copied unchanged at the first attributes.
+*
+* The raw attribute values are projected, so the guarantee holds for the unscaled Euclidean distances. MLSAMPkNN
+* range-scales the projected dimensions instead of the input attributes, which is not the same distance, so
+* attributes of very different ranges should be scaled before the stream reaches a projected learner.
+*
+* @author Alberto Cano
+*/
+
+public class RandomProjection implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int numLabels;
+	private final int numInputAttributes;
+	private final int numDimensions;
+	private final int nonZerosPerColumn;
+	private final int[] targets;
+	private final boolean[] negative;
+	private final double scale;
+	private final InstancesHeader header;
+
+	/**
+	 * @param context header of the instances to project, with the labels as first attributes
+	 * @param numDimensions number of output dimensions
+	 * @param seed seed of the random matrix
+	 */
+	public RandomProjection(InstancesHeader context, int numDimensions, int seed) {
+
+		this.numLabels = context.numOutputAttributes();
+		this.numInputAttributes = context.numInputAttributes();
+		this.numDimensions = numDimensions;
+		this.nonZerosPerColumn = nonZerosPerColumn(numInputAttributes, numDimensions);
+		this.targets = new int[numInputAttributes * nonZerosPerColumn];
+		this.negative = new boolean[numInputAttributes * nonZerosPerColumn];
+		this.scale = 1 / Math.sqrt(nonZerosPerColumn);
+
+		Random random = new Random(seed);
+		int[] dimensions = new int[numDimensions];
+		for(int j = 0; j < numDimensions; j++)
+			dimensions[j] = j;
+
+		for(int i = 0; i < numInputAttributes; i++)
+		{
+			// Partial Fisher-Yates shuffle, drawing distinct dimensions for the column
+			for(int c = 0; c < nonZerosPerColumn; c++)
+			{
+				int pick = c + random.nextInt(numDimensions - c);
+				int dimension = dimensions[pick];
+				dimensions[pick] = dimensions[c];
+				dimensions[c] = dimension;
+
+				targets[i * nonZerosPerColumn + c] = dimension;
+				negative[i * nonZerosPerColumn + c] = random.nextBoolean();
+			}
+		}
+
+		this.header = createHeader(context);
+	}
+
+	private static int nonZerosPerColumn(int numInputAttributes, int numDimensions) {
+		return Math.min(numDimensions, Math.max(1, (int) Math.ceil(numDimensions / Math.sqrt(numInputAttributes))));
+	}
+
+	private InstancesHeader createHeader(InstancesHeader context) {
+
+		List<Attribute> attributes = new ArrayList<Attribute>();
+
+		for(int j = 0; j < numLabels; j++)
+			attributes.add(context.attribute(j));
+
+		for(int j = 0; j < numDimensions; j++)
+			attributes.add(new Attribute("projection" + j));
+
+		Range range = new Range(Integer.toString(numLabels));
+
+		Instances template = new Instances(context.getRelationName() + " projected to " + numDimensions, attributes, 0);
+		template.setClassIndex(Integer.MAX_VALUE);
+		template.setRangeOutputIndices(range);
+
+		MultilabelInstancesHeader projectedHeader = new MultilabelInstancesHeader(template, numLabels);
+		projectedHeader.setRangeOutputIndices(range);
+		return projectedHeader;
+	}
+
+	public InstancesHeader getHeader() {
+		return header;
+	}
+
+	public int numDimensions() {
+		return numDimensions;
+	}
+
+	/**
+	 * Returns a dense instance with the labels and the projected input attributes of the given one.
+	 */
+	public MultiLabelInstance project(Instance instance) {
+
+		double[] values = new double[numLabels + numDimensions];
+
+		for(int j = 0; j < numLabels; j++)
+			values[j] = instance.classValue(j);
+
+		if(instance.numValues() == instance.numAttributes()) // Dense Instance
+		{
+			for(int i = 0; i < numInputAttributes; i++)
+				addColumn(i, instance.valueInputAttribute(i), values);
+		}
+		else // Sparse Instance
+		{
+			for(int p = 0; p < instance.numValues(); p++)
+				if(instance.index(p) >= numLabels)
+					addColumn(instance.index(p) - numLabels, instance.valueSparse(p), values);
+		}
+
+		DenseInstance projected = new DenseInstance(instance.weight(), values);
+		projected.setDataset(header);
+		return projected;
+	}
+
+	private void addColumn(int attribute, double value, double[] values) {
+
+		if(value == 0)
+			return;
+
+		double scaled = scale * value;
+
+		for(int c = attribute * nonZerosPerColumn, end = c + nonZerosPerColumn; c < end; c++)
+			values[numLabels + targets[c]] += negative[c] ? -scaled : scaled;
+	}
+
+	public long estimateMemoryBytes() {
+		return 64 + 2 * 16 + 5L * targets.length;
+	}
+
+	/**
+	 * Returns the bytes of the projection of the given number of input attributes.
+	 */
+	public static long predictMemoryBytes(int numInputAttributes, int numDimensions) {
+		return 64 + 2 * 16 + 5L * numInputAttributes * nonZerosPerColumn(numInputAttributes, numDimensions);
+	}
+}
@@ -0,0 +1,304 @@
+package moa.classifiers.multilabel;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+* Distance cache of an MLSAMPkNN window split in shards, processed in parallel
+*
+* Every window instance is owned by one shard, the one with the fewest instances when it arrives, so inserts go
+* round-robin. Every shard keeps, for every window instance, the distances to its own instances older than it,
+* so the shards together hold the triangular distance cache of the window, and the distances of a new instance
+* or a query are computed by all the shards in parallel. The nearest neighbors within a suffix of the window
+* merge those of every shard, ties going to the oldest instance, so they are the same as with the distance cache
+* of the learner, and so are its prediction histories and window sizes.
+*
+* Cutting the oldest instances only moves the start of the rows, which are compacted once most of their entries
+* are gone.
+*
+* @author Alberto Cano
+*/
+
+final class ShardedDistanceCache implements WindowDistanceCache {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The instances of a shard, as window positions, and the distances from every window instance to those older
+	 * than it, from its offset on.
+	 */
+	private static final class Shard implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		int size;
+		int[] positions = new int[16];
+		double[][] rows = new double[16][];
+		int[] rowOffsets = new int[16];
+		int[] rowLengths = new int[16];
+	}
+
+	private final MLSAMPkNN learner;
+	private final Shard[] shards;
+	private final ParallelTasks tasks;
+	private int[] owners = new int[16];
+	private int size;
+
+	ShardedDistanceCache(MLSAMPkNN learner, int numShards, ParallelTasks tasks) {
+		this.learner = learner;
+		this.tasks = tasks;
+		this.shards = new Shard[numShards];
+
+		for(int s = 0; s < numShards; s++)
+			shards[s] = new Shard();
+	}
+
+	int numShards() {
+		return shards.length;
+	}
+
+	int getShardSize(int shard) {
+		return shards[shard].size;
+	}
+
+	@Override
+	public void add(Instance instance) {
+
+		final int position = size;
+		final List<Instance> window = learner.getWindow();
+
+		if(position == owners.length)
+		{
+			owners = Arrays.copyOf(owners, 2 * position);
+
+			for(Shard shard : shards)
+			{
+				shard.rows = Arrays.copyOf(shard.rows, 2 * position);
+				shard.rowOffsets = Arrays.copyOf(shard.rowOffsets, 2 * position);
+				shard.rowLengths = Arrays.copyOf(shard.rowLengths, 2 * position);
+			}
+		}
+
+		tasks.run(shards.length, shards.length, s -> {
+			Shard shard = shards[s];
+			double[] row = new double[shard.size];
+
+			for(int c = 0; c < shard.size; c++)
+				row[c] = learner.getDistance(instance, window.get(shard.positions[c]));
+
+			shard.rows[position] = row;
+			shard.rowOffsets[position] = 0;
+			shard.rowLengths[position] = shard.size;
+		});
+
+		int owner = 0;
+		for(int s = 1; s < shards.length; s++)
+			if(shards[s].size < shards[owner].size)
+				owner = s;
+
+		Shard shard = shards[owner];
+
+		if(shard.size == shard.positions.length)
+			shard.positions = Arrays.copyOf(shard.positions, 2 * shard.size);
+
+		shard.positions[shard.size++] = position;
+		owners[position] = owner;
+		size++;
+	}
+
+	@Override
+	public void remove(int idx) {
+
+		final int owner = owners[idx];
+		final int column = Arrays.binarySearch(shards[owner].positions, 0, shards[owner].size, idx);
+		final int oldSize = size;
+
+		tasks.run(shards.length, shards.length, s -> {
+			Shard shard = shards[s];
+
+			removeRows(shard, idx, 1, oldSize);
+
+			for(int c = 0; c < shard.size; c++)
+				if(shard.positions[c] > idx)
+					shard.positions[c]--;
+
+			if(s == owner)
+			{
+				// Only the rows newer than the removed instance have a distance to it
+				for(int r = idx; r < oldSize - 1; r++)
+				{
+					if(shard.rowLengths[r] > column)
+					{
+						int offset = shard.rowOffsets[r];
+						System.arraycopy(shard.rows[r], offset + column + 1, shard.rows[r], offset + column, shard.rowLengths[r] - column - 1);
+						shard.rowLengths[r]--;
+					}
+				}
+
+				System.arraycopy(shard.positions, column + 1, shard.positions, column, shard.size - column - 1);
+				shard.size--;
+			}
+		});
+
+		System.arraycopy(owners, idx + 1, owners, idx, oldSize - idx - 1);
+		size--;
+	}
+
+	@Override
+	public void removeOldest(int count) {
+
+		if(count <= 0)
+			return;
+
+		final int oldSize = size;
+
+		tasks.run(shards.length, shards.length, s -> {
+			Shard shard = shards[s];
+
+			int removed = 0;
+			while(removed < shard.size && shard.positions[removed] < count)
+				removed++;
+
+			removeRows(shard, 0, count, oldSize);
+
+			// The remaining rows are newer than every removed instance, so they all start with their distances
+			for(int r = 0; r < oldSize - count; r++)
+			{
+				shard.rowOffsets[r] += removed;
+				shard.rowLengths[r] -= removed;
+
+				if(shard.rowOffsets[r] > shard.rowLengths[r])
+				{
+					shard.rows[r] = Arrays.copyOfRange(shard.rows[r], shard.rowOffsets[r], shard.rowOffsets[r] + shard.rowLengths[r]);
+					shard.rowOffsets[r] = 0;
+				}
+			}
+
+			for(int c = removed; c < shard.size; c++)
+				shard.positions[c - removed] = shard.positions[c] - count;
+
+			shard.size -= removed;
+		});
+
+		System.arraycopy(owners, count, owners, 0, oldSize - count);
+		size -= count;
+	}
+
+	/**
+	 * Removes the rows of the given number of instances from a window position.
+	 */
+	private static void removeRows(Shard shard, int idx, int count, int size) {
+		System.arraycopy(shard.rows, idx + count, shard.rows, idx, size - idx - count);
+		System.arraycopy(shard.rowOffsets, idx + count, shard.rowOffsets, idx, size - idx - count);
+		System.arraycopy(shard.rowLengths, idx + count, shard.rowLengths, idx, size - idx - count);
+		Arrays.fill(shard.rows, size - count, size, null);
+	}
+
+	@Override
+	public void clear() {
+		for(int s = 0; s < shards.length; s++)
+			shards[s] = new Shard();
+
+		owners = new int[16];
+		size = 0;
+	}
+
+	@Override
+	public int[] getNearestNeighbors(int n, int row, int startIdx) {
+
+		double[] nearestDistances = new double[n];
+		int[] nearest = new int[n];
+		int found = 0;
+
+		for(Shard shard : shards)
+		{
+			double[] distances = shard.rows[row];
+			int offset = shard.rowOffsets[row];
+
+			// The instances of the shard from startIdx on follow those older than the instance at startIdx
+			for(int c = shard.rowLengths[startIdx]; c < shard.rowLengths[row]; c++)
+				found = offer(nearestDistances, nearest, found, distances[offset + c], shard.positions[c]);
+		}
+
+		return found == n ? nearest : Arrays.copyOf(nearest, found);
+	}
+
+	@Override
+	public int[] getNearestNeighbors(Instance query, int n) {
+
+		final List<Instance> window = learner.getWindow();
+		final double[][] shardDistances = new double[shards.length][n];
+		final int[][] shardNearest = new int[shards.length][n];
+		final int[] shardFound = new int[shards.length];
+
+		tasks.run(shards.length, shards.length, s -> {
+			Shard shard = shards[s];
+			int found = 0;
+
+			for(int c = 0; c < shard.size; c++)
+				found = offer(shardDistances[s], shardNearest[s], found, learner.getDistance(query, window.get(shard.positions[c])), shard.positions[c]);
+
+			shardFound[s] = found;
+		});
+
+		double[] nearestDistances = new double[n];
+		int[] nearest = new int[n];
+		int found = 0;
+
+		for(int s = 0; s < shards.length; s++)
+			for(int j = 0; j < shardFound[s]; j++)
+				found = offer(nearestDistances, nearest, found, shardDistances[s][j], shardNearest[s][j]);
+
+		return found == n ? nearest : Arrays.copyOf(nearest, found);
+	}
+
+	/**
+	 * Inserts a candidate into the nearest ones found so far, sorted by distance and then by window position,
+	 * if it is among the nearest. Returns the new number found.
+	 */
+	static int offer(double[] nearestDistances, int[] nearest, int found, double distance, int position) {
+
+		int n = nearest.length;
+
+		if(found == n && (n == 0 || !isCloser(distance, position, nearestDistances[n - 1], nearest[n - 1])))
+			return found;
+
+		int pos = found < n ? found++ : n - 1;
+
+		while(pos > 0 && isCloser(distance, position, nearestDistances[pos - 1], nearest[pos - 1]))
+		{
+			nearestDistances[pos] = nearestDistances[pos - 1];
+			nearest[pos] = nearest[pos - 1];
+			pos--;
+		}
+
+		nearestDistances[pos] = distance;
+		nearest[pos] = position;
+
+		return found;
+	}
+
+	private static boolean isCloser(double distance1, int position1, double distance2, int position2) {
+		return distance1 < distance2 || (distance1 == distance2 && position1 < position2);
+	}
+
+	@Override
+	public long estimateMemoryBytes() {
+
+		long bytes = 32 + 16 + 4L * owners.length;
+
+		for(Shard shard : shards)
+		{
+			bytes += 32 + 16 + 4L * shard.positions.length + 16 + 4L * shard.rows.length + 2 * (16 + 4L * shard.rowOffsets.length);
+
+			for(double[] row : shard.rows)
+				if(row != null)
+					bytes += 16 + 8L * row.length;
+		}
+
+		return bytes;
+	}
+}
@@ -0,0 +1,97 @@
+package moa.classifiers.multilabel;
+
+import java.util.Arrays;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+* Distance cache of an MLSAMPkNN ensemble member reading the partial distances shared by all the members
+*
+* The squared partial distances of every attribute block among the instances of the union window are kept once,
+* in the shared distances, and every member only keeps the sequence numbers of its window instances in the
+* union, summing the partial distances of its own subspace when asked for neighbors. The neighbors are those of
+* the distance cache of the member, ties going to the oldest instance, so are its prediction histories.
+*
+* @author Alberto Cano
+*/
+
+final class SharedSubspaceDistanceCache implements WindowDistanceCache {
+
+	private static final long serialVersionUID = 1L;
+
+	private final MLSAMPkNN learner;
+	private final SharedWindowDistances sharedDistances;
+	private long[] sequences = new long[16];
+	private int size;
+
+	SharedSubspaceDistanceCache(MLSAMPkNN learner, SharedWindowDistances sharedDistances) {
+		this.learner = learner;
+		this.sharedDistances = sharedDistances;
+	}
+
+	/**
+	 * Appends the instance, which must be the latest one added to the shared distances and prepared.
+	 */
+	@Override
+	public void add(Instance instance) {
+
+		if(!sharedDistances.isLatest(instance))
+			throw new IllegalStateException("The instance is not the latest one added to the shared distances");
+
+		if(size == sequences.length)
+			sequences = Arrays.copyOf(sequences, 2 * size);
+
+		sequences[size++] = sharedDistances.getLatest();
+	}
+
+	@Override
+	public void remove(int idx) {
+		System.arraycopy(sequences, idx + 1, sequences, idx, size - idx - 1);
+		size--;
+	}
+
+	@Override
+	public void removeOldest(int count) {
+		System.arraycopy(sequences, count, sequences, 0, size - count);
+		size -= count;
+	}
+
+	@Override
+	public void clear() {
+		sequences = new long[16];
+		size = 0;
+	}
+
+	@Override
+	public int[] getNearestNeighbors(int n, int row, int startIdx) {
+
+		int[] subspaceBlocks = learner.getSubspaceBlocks();
+		double[] nearestDistances = new double[n];
+		int[] nearest = new int[n];
+		int found = 0;
+
+		for(int j = startIdx; j < row; j++)
+			found = ShardedDistanceCache.offer(nearestDistances, nearest, found, sharedDistances.getDistance(sequences[row], sequences[j], subspaceBlocks), j);
+
+		return found == n ? nearest : Arrays.copyOf(nearest, found);
+	}
+
+	@Override
+	public int[] getNearestNeighbors(Instance query, int n) {
+
+		int[] subspaceBlocks = learner.getSubspaceBlocks();
+		double[] nearestDistances = new double[n];
+		int[] nearest = new int[n];
+		int found = 0;
+
+		for(int j = 0; j < size; j++)
+			found = ShardedDistanceCache.offer(nearestDistances, nearest, found, sharedDistances.getQueryDistance(query, sequences[j], subspaceBlocks, learner), j);
+
+		return found == n ? nearest : Arrays.copyOf(nearest, found);
+	}
+
+	@Override
+	public long estimateMemoryBytes() {
+		return 32 + 16 + 8L * sequences.length;
+	}
+}
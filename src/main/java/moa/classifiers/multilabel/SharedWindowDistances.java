@@ -0,0 +1,342 @@
+package moa.classifiers.multilabel;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+* Distances from the current query to the union of the windows of several learners fed the same instances
+*
+* The union is a ring with the latest instances, from the oldest one still in the window of any learner, which
+* grows when it is full. The distances from a query to every instance of the ring still in a window are computed
+* once, the first time a learner asks for them, and every learner window, being a subsequence of the ring in
+* insertion order, is matched against it in a single pass. The learners must normalize distances with the same
+* attribute ranges.
+*
+* With attribute blocks, the squared partial distances of every block are kept instead, and every learner sums
+* those of its own subspace. The partial distances of every instance prepared right after being added, as the
+* instances trained on are, are also kept as its row, so that the distances among the window instances are kept
+* once for all the learners. The rows drop the distances to the instances left by every window once those take
+* half of them. Once a query is prepared, learners can read its distances concurrently.
+*
+* @author Alberto Cano
+*/
+
+final class SharedWindowDistances implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private Instance[] ring;
+	private boolean[] live; // whether the instance of a slot is still in the window of a learner
+	private int numLive;
+	private long first; // sequence number of the oldest instance kept
+	private long added;
+
+	private Instance query;
+	private double[] queryDistances;
+	private final int[] attributeBlocks;
+	private final int numBlocks;
+	private double[] blockDistances;
+	private double[][] rows; // partial distances from the instance of a slot to the older ones, with blocks
+	private long[][] rowColumns; // sequence numbers of the instances in the row of a slot
+	private long rowEntries;
+	private long distanceComputations;
+
+	SharedWindowDistances(int capacity) {
+		this(capacity, null, 0);
+	}
+
+	/**
+	 * @param attributeBlocks block of every input attribute, or null to share whole distances
+	 * @param numBlocks number of blocks
+	 */
+	SharedWindowDistances(int capacity, int[] attributeBlocks, int numBlocks) {
+		this.ring = new Instance[capacity];
+		this.live = new boolean[capacity];
+		this.attributeBlocks = attributeBlocks;
+		this.numBlocks = numBlocks;
+		this.queryDistances = attributeBlocks == null ? new double[capacity] : null;
+		this.blockDistances = attributeBlocks == null ? null : new double[capacity * numBlocks];
+		this.rows = attributeBlocks == null ? null : new double[capacity][];
+		this.rowColumns = attributeBlocks == null ? null : new long[capacity][];
+	}
+
+	private int slot(long seq) {
+		return (int) (seq % ring.length);
+	}
+
+	/**
+	 * Appends an instance, growing the ring when it is full.
+	 */
+	void add(Instance instance) {
+
+		if(added - first == ring.length)
+			grow();
+
+		int slot = slot(added);
+		ring[slot] = instance;
+		live[slot] = true;
+		numLive++;
+
+		added++;
+		query = null;
+	}
+
+	/**
+	 * Doubles the capacity of the ring, moving every instance kept to its slot in the new one.
+	 */
+	private void grow() {
+
+		int capacity = 2 * ring.length;
+
+		Instance[] grownRing = new Instance[capacity];
+		boolean[] grownLive = new boolean[capacity];
+		double[] grownQueryDistances = queryDistances == null ? null : new double[capacity];
+		double[] grownBlockDistances = blockDistances == null ? null : new double[capacity * numBlocks];
+		double[][] grownRows = rows == null ? null : new double[capacity][];
+		long[][] grownRowColumns = rowColumns == null ? null : new long[capacity][];
+
+		for(long seq = first; seq < added; seq++)
+		{
+			int from = slot(seq);
+			int to = (int) (seq % capacity);
+
+			grownRing[to] = ring[from];
+			grownLive[to] = live[from];
+
+			if(queryDistances != null)
+				grownQueryDistances[to] = queryDistances[from];
+			else
+			{
+				System.arraycopy(blockDistances, from * numBlocks, grownBlockDistances, to * numBlocks, numBlocks);
+				grownRows[to] = rows[from];
+				grownRowColumns[to] = rowColumns[from];
+			}
+		}
+
+		ring = grownRing;
+		live = grownLive;
+		queryDistances = grownQueryDistances;
+		blockDistances = grownBlockDistances;
+		rows = grownRows;
+		rowColumns = grownRowColumns;
+	}
+
+	/**
+	 * Drops the instances in the window of none of the learners.
+	 */
+	void retainWindows(MLSAMPkNN[] learners) {
+
+		Set<Instance> held = Collections.newSetFromMap(new IdentityHashMap<Instance, Boolean>());
+
+		for(MLSAMPkNN learner : learners)
+			held.addAll(learner.getWindow());
+
+		for(long seq = first; seq < added; seq++)
+		{
+			int slot = slot(seq);
+
+			if(live[slot] && !held.contains(ring[slot]))
+			{
+				live[slot] = false;
+				ring[slot] = null;
+				numLive--;
+
+				if(rows != null && rows[slot] != null)
+				{
+					rowEntries -= rowColumns[slot].length;
+					rows[slot] = null;
+					rowColumns[slot] = null;
+				}
+			}
+		}
+
+		while(first < added && !live[slot(first)])
+			first++;
+
+		if(rows != null && rowEntries > (long) numLive * (numLive + 1))
+			compactRows();
+	}
+
+	/**
+	 * Drops from every row the distances to the instances no longer in a window.
+	 */
+	private void compactRows() {
+
+		rowEntries = 0;
+
+		for(long seq = first; seq < added; seq++)
+		{
+			int slot = slot(seq);
+
+			if(rows[slot] == null)
+				continue;
+
+			long[] columns = rowColumns[slot];
+			int kept = 0;
+
+			for(int c = 0; c < columns.length; c++)
+			{
+				if(columns[c] >= first && live[slot(columns[c])])
+				{
+					System.arraycopy(rows[slot], c * numBlocks, rows[slot], kept * numBlocks, numBlocks);
+					columns[kept++] = columns[c];
+				}
+			}
+
+			rows[slot] = Arrays.copyOf(rows[slot], kept * numBlocks);
+			rowColumns[slot] = Arrays.copyOf(columns, kept);
+			rowEntries += kept;
+		}
+	}
+
+	long getDistanceComputations() {
+		return distanceComputations;
+	}
+
+	/**
+	 * Returns whether an instance is the latest one added.
+	 */
+	boolean isLatest(Instance instance) {
+		return added > first && ring[slot(added - 1)] == instance;
+	}
+
+	/**
+	 * Returns the sequence number of the latest instance added.
+	 */
+	long getLatest() {
+		return added - 1;
+	}
+
+	/**
+	 * Fills the distances from a query to the given window instances, computing them with the learner the first
+	 * time the query is seen. Returns false, leaving the distances incomplete, when an instance is not in the ring.
+	 */
+	boolean getDistances(Instance sample, List<Instance> samples, double[] distances, MLSAMPkNN learner) {
+
+		if(sample != query)
+			prepare(sample, learner);
+
+		int[] subspaceBlocks = learner.getSubspaceBlocks();
+		long seq = first;
+
+		for(int i = 0; i < samples.size(); i++, seq++)
+		{
+			Instance instance = samples.get(i);
+
+			while(seq < added && ring[slot(seq)] != instance)
+				seq++;
+
+			if(seq == added)
+				return false;
+
+			int slot = slot(seq);
+
+			if(attributeBlocks == null)
+				distances[i] = queryDistances[slot];
+			else
+				distances[i] = sumBlocks(blockDistances, slot * numBlocks, subspaceBlocks);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the distance in the given blocks from a query to the instance of the ring with a sequence number,
+	 * computing the distances of the query with the learner the first time it is seen.
+	 */
+	double getQueryDistance(Instance sample, long seq, int[] subspaceBlocks, MLSAMPkNN learner) {
+
+		if(sample != query)
+			prepare(sample, learner);
+
+		return sumBlocks(blockDistances, slot(seq) * numBlocks, subspaceBlocks);
+	}
+
+	/**
+	 * Returns the distance in the given blocks between two instances of the ring, from the row of the newer one.
+	 */
+	double getDistance(long newer, long older, int[] subspaceBlocks) {
+
+		int slot = slot(newer);
+
+		return sumBlocks(rows[slot], Arrays.binarySearch(rowColumns[slot], older) * numBlocks, subspaceBlocks);
+	}
+
+	private static double sumBlocks(double[] partialDistances, int offset, int[] subspaceBlocks) {
+
+		double distance = 0;
+		for(int block : subspaceBlocks)
+			distance += partialDistances[offset + block];
+
+		return Math.sqrt(distance);
+	}
+
+	/**
+	 * Computes the distances from a query to every instance of the ring still in a window, with the attribute
+	 * ranges of the learner. With blocks, those of the latest instance added are kept as its row.
+	 */
+	void prepare(Instance sample, MLSAMPkNN learner) {
+
+		for(long seq = first; seq < added; seq++)
+		{
+			int slot = slot(seq);
+
+			if(!live[slot])
+				continue;
+
+			if(attributeBlocks == null)
+				queryDistances[slot] = learner.getDistance(sample, ring[slot]);
+			else
+			{
+				Arrays.fill(blockDistances, slot * numBlocks, (slot + 1) * numBlocks, 0);
+				learner.addSquaredBlockDistances(sample, ring[slot], attributeBlocks, blockDistances, slot * numBlocks);
+			}
+
+			distanceComputations++;
+		}
+
+		query = sample;
+
+		if(rows != null && isLatest(sample) && rows[slot(added - 1)] == null)
+		{
+			double[] row = new double[numLive * numBlocks];
+			long[] columns = new long[numLive];
+			int c = 0;
+
+			for(long seq = first; seq < added; seq++)
+			{
+				if(live[slot(seq)])
+				{
+					System.arraycopy(blockDistances, slot(seq) * numBlocks, row, c * numBlocks, numBlocks);
+					columns[c++] = seq;
+				}
+			}
+
+			rows[slot(added - 1)] = row;
+			rowColumns[slot(added - 1)] = columns;
+			rowEntries += numLive;
+		}
+	}
+
+	long estimateMemoryBytes() {
+
+		long bytes = 64 + 16 + 8L * ring.length + 16 + ring.length + 16 + 8L * (attributeBlocks == null ? queryDistances.length : blockDistances.length + attributeBlocks.length / 2);
+
+		if(rows != null)
+		{
+			bytes += 2 * (16 + 8L * rows.length);
+
+			for(int slot = 0; slot < rows.length; slot++)
+				if(rows[slot] != null)
+					bytes += 16 + 8L * rows[slot].length + 16 + 8L * rowColumns[slot].length;
+		}
+
+		return bytes;
+	}
+}
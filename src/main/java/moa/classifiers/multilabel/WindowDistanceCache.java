@@ -0,0 +1,51 @@
+package moa.classifiers.multilabel;
+
+import java.io.Serializable;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+* Distances among the window instances of an MLSAMPkNN kept outside of its own distance cache
+*
+* The learner tells the cache about every instance appended to or removed from its window, and asks it for the
+* nearest neighbors of a window instance within a suffix of the window, as the prediction histories of the
+* self-adjusting memory need, and for those of a query. Neighbors are window positions sorted by increasing
+* distance, ties going to the oldest instance, as the full scan of the learner returns them.
+*
+* @author Alberto Cano
+*/
+
+public interface WindowDistanceCache extends Serializable {
+
+	/**
+	 * Caches the distances from the instance just appended to the window to the older ones.
+	 */
+	void add(Instance instance);
+
+	/**
+	 * Forgets the instance at a window position, the newer ones moving one position back.
+	 */
+	void remove(int idx);
+
+	/**
+	 * Forgets the given number of oldest instances.
+	 */
+	void removeOldest(int count);
+
+	/**
+	 * Forgets every instance.
+	 */
+	void clear();
+
+	/**
+	 * Returns the n nearest neighbors of the window instance at a row among the instances from startIdx to row-1.
+	 */
+	int[] getNearestNeighbors(int n, int row, int startIdx);
+
+	/**
+	 * Returns the n nearest window instances to a query.
+	 */
+	int[] getNearestNeighbors(Instance query, int n);
+
+	long estimateMemoryBytes();
+}
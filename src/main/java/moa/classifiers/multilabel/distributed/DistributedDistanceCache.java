@@ -0,0 +1,412 @@
+package moa.classifiers.multilabel.distributed;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.classifiers.multilabel.WindowDistanceCache;
+
+/**
+* Distance cache of an MLSAMPkNN window partitioned across the workers of MLSAMPkNNDistributed
+*
+* The input attributes of every window instance are stored by one worker, the one with the smallest partition
+* when it arrives. Adding an instance announces it to every worker, which updates its attribute ranges and
+* returns the nearest-neighbor skyline of the instance over its partition: the instances, from newest to oldest,
+* that are among the k nearest of all the instances not older than them. The merged skyline replaces the row of
+* the distance cache, since it answers the k nearest neighbors of the instance within any suffix of the window,
+* which is all the self-adjusting memory asks. Once an instance is removed by punishment, the skylines holding it
+* may miss older instances it was shadowing, so the workers compute them again, with the attribute ranges they
+* were first computed with, before they are read. A query merges the local top-k of every worker.
+*
+* @author Alberto Cano
+*/
+
+final class DistributedDistanceCache implements WindowDistanceCache {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * A window instance as known by the coordinator, with its merged skyline.
+	 */
+	private static final class Row implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final long seq;
+		final int owner;
+		long[] skylineSeqs;
+		double[] skylineDistances;
+		boolean stale; // holds an instance removed by punishment, so it must be computed again
+
+		Row(long seq, int owner) {
+			this.seq = seq;
+			this.owner = owner;
+		}
+	}
+
+	private final MLSAMPkNNDistributed coordinator;
+	private final int k;
+	private final int numInputAttributes;
+	private final List<Row> rows = new ArrayList<Row>();
+	private int numStale;
+	private long nextSeq;
+	private int[] partitionSizes = new int[0];
+
+	private long skylineEntries;
+	private long skylineRecomputations;
+	private long addedInstances;
+
+	/**
+	 * @param k number of neighbors every skyline answers
+	 */
+	DistributedDistanceCache(MLSAMPkNNDistributed coordinator, int k, int numInputAttributes) {
+		this.coordinator = coordinator;
+		this.k = k;
+		this.numInputAttributes = numInputAttributes;
+	}
+
+	int size() {
+		return rows.size();
+	}
+
+	int numWorkers() {
+		return partitionSizes.length;
+	}
+
+	int getPartitionSize(int worker) {
+		return partitionSizes[worker];
+	}
+
+	double getSkylineSizePerInstance() {
+		return addedInstances == 0 ? 0 : skylineEntries / (double) addedInstances;
+	}
+
+	long getSkylineRecomputations() {
+		return skylineRecomputations;
+	}
+
+	/**
+	 * Forgets every instance, resetting the workers of the coordinator.
+	 */
+	@Override
+	public void clear() {
+
+		rows.clear();
+		numStale = 0;
+		nextSeq = 0;
+		partitionSizes = new int[coordinator.numWorkers()];
+
+		for(int worker = 0; worker < partitionSizes.length; worker++)
+			coordinator.call(worker, new WorkerMessage.Reset(worker, numInputAttributes));
+	}
+
+	@Override
+	public void add(Instance instance) {
+
+		long seq = nextSeq++;
+		int owner = 0;
+
+		for(int worker = 1; worker < partitionSizes.length; worker++)
+			if(partitionSizes[worker] < partitionSizes[owner])
+				owner = worker;
+
+		List<WorkerMessage> skylines = coordinator.broadcast(new WorkerMessage.Train(seq, FeatureVector.of(instance), k, owner));
+
+		Row row = new Row(seq, owner);
+		mergeSkylines(row, skylines);
+		skylineEntries += row.skylineSeqs.length;
+		addedInstances++;
+
+		rows.add(row);
+		partitionSizes[owner]++;
+	}
+
+	@Override
+	public void remove(int idx) {
+
+		Row removed = rows.remove(idx);
+
+		if(removed.stale)
+			numStale--;
+
+		evictFromWorkers(Collections.singletonList(removed));
+
+		// Only newer instances can hold the removed one in their skylines
+		for(int i = idx; i < rows.size(); i++)
+		{
+			Row row = rows.get(i);
+
+			if(!row.stale)
+			{
+				for(long skylineSeq : row.skylineSeqs)
+				{
+					if(skylineSeq == removed.seq)
+					{
+						row.stale = true;
+						numStale++;
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public void removeOldest(int count) {
+
+		if(count <= 0)
+			return;
+
+		List<Row> oldest = rows.subList(0, count);
+		List<Row> evicted = new ArrayList<Row>(oldest);
+
+		for(Row row : evicted)
+			if(row.stale)
+				numStale--;
+
+		oldest.clear();
+
+		evictFromWorkers(evicted);
+	}
+
+	private void evictFromWorkers(List<Row> evicted) {
+
+		long[] evictedSeqs = new long[evicted.size()];
+
+		for(int i = 0; i < evictedSeqs.length; i++)
+		{
+			evictedSeqs[i] = evicted.get(i).seq;
+			partitionSizes[evicted.get(i).owner]--;
+		}
+
+		coordinator.broadcast(new WorkerMessage.Evict(evictedSeqs, rows.isEmpty() ? nextSeq : rows.get(0).seq));
+	}
+
+	/**
+	 * Computes again the stale skylines, since the instances they were shadowing may now be among the nearest
+	 * within some suffix of the window. The owners of the rows hand their input attributes over, and every worker
+	 * returns their skylines over its partition.
+	 */
+	private void recomputeStaleSkylines() {
+
+		List<Row> stale = new ArrayList<Row>(numStale);
+
+		for(Row row : rows)
+			if(row.stale)
+				stale.add(row);
+
+		long[] seqs = new long[stale.size()];
+		FeatureVector[] instances = new FeatureVector[stale.size()];
+
+		for(int r = 0; r < seqs.length; r++)
+			seqs[r] = stale.get(r).seq;
+
+		for(int worker = 0; worker < partitionSizes.length; worker++)
+		{
+			List<Integer> owned = new ArrayList<Integer>();
+
+			for(int r = 0; r < seqs.length; r++)
+				if(stale.get(r).owner == worker)
+					owned.add(r);
+
+			if(owned.isEmpty())
+				continue;
+
+			long[] ownedSeqs = new long[owned.size()];
+			for(int o = 0; o < ownedSeqs.length; o++)
+				ownedSeqs[o] = seqs[owned.get(o)];
+
+			FeatureVector[] fetched = ((WorkerMessage.Instances) coordinator.call(worker, new WorkerMessage.Fetch(ownedSeqs))).instances;
+
+			for(int o = 0; o < fetched.length; o++)
+				instances[owned.get(o)] = fetched[o];
+		}
+
+		List<WorkerMessage> responses = coordinator.broadcast(new WorkerMessage.Recompute(seqs, instances, k));
+
+		for(int r = 0; r < seqs.length; r++)
+		{
+			List<WorkerMessage> skylines = new ArrayList<WorkerMessage>(responses.size());
+			for(WorkerMessage response : responses)
+				skylines.add(((WorkerMessage.Skylines) response).skylines[r]);
+
+			Row row = stale.get(r);
+			mergeSkylines(row, skylines);
+			row.stale = false;
+		}
+
+		numStale = 0;
+		skylineRecomputations += seqs.length;
+	}
+
+	/**
+	 * Merges the skylines of the partitions into a row, walking them from the newest instance to the oldest and
+	 * keeping those within the k nearest seen so far.
+	 */
+	private void mergeSkylines(Row row, List<WorkerMessage> responses) {
+
+		int total = 0;
+
+		WorkerMessage.Neighbors[] skylines = new WorkerMessage.Neighbors[responses.size()];
+		for(int w = 0; w < skylines.length; w++)
+		{
+			skylines[w] = (WorkerMessage.Neighbors) responses.get(w);
+			total += skylines[w].seqs.length;
+		}
+
+		long[] skylineSeqs = new long[total];
+		double[] skylineDistances = new double[total];
+		int skylineSize = 0;
+
+		PriorityQueue<Double> kNearest = new PriorityQueue<Double>(Math.max(1, k), Collections.reverseOrder());
+		int[] next = new int[skylines.length];
+
+		while (true)
+		{
+			int newest = -1;
+
+			for(int w = 0; w < skylines.length; w++)
+				if(next[w] < skylines[w].seqs.length && (newest == -1 || skylines[w].seqs[next[w]] > skylines[newest].seqs[next[newest]]))
+					newest = w;
+
+			if(newest == -1)
+				break;
+
+			double distance = skylines[newest].distances[next[newest]];
+
+			if(kNearest.size() < k || distance <= kNearest.peek())
+			{
+				skylineSeqs[skylineSize] = skylines[newest].seqs[next[newest]];
+				skylineDistances[skylineSize++] = distance;
+
+				kNearest.add(distance);
+				if(kNearest.size() > k)
+					kNearest.poll();
+			}
+
+			next[newest]++;
+		}
+
+		row.skylineSeqs = Arrays.copyOf(skylineSeqs, skylineSize);
+		row.skylineDistances = Arrays.copyOf(skylineDistances, skylineSize);
+	}
+
+	/**
+	 * Returns the n nearest neighbors of the window instance at a row among the instances from startIdx to row-1,
+	 * read from its skyline. Ties go to the oldest instance, as in the distance cache of the learner.
+	 */
+	@Override
+	public int[] getNearestNeighbors(int n, int row, int startIdx) {
+
+		if(numStale > 0)
+			recomputeStaleSkylines();
+
+		Row entry = rows.get(row);
+		long startSeq = rows.get(startIdx).seq;
+		n = Math.min(n, row - startIdx);
+
+		int[] nearest = new int[n];
+		int found = 0;
+
+		// The skyline goes from the newest instance to the oldest, so ties are resolved by a non-strict comparison
+		for(int s = 0; s < entry.skylineSeqs.length && entry.skylineSeqs[s] >= startSeq; s++)
+		{
+			double distance = entry.skylineDistances[s];
+
+			if(n > 0 && (found < n || distance <= entry.skylineDistances[nearest[found - 1]]))
+			{
+				int pos = found < n ? found++ : found - 1;
+
+				while (pos > 0 && entry.skylineDistances[nearest[pos - 1]] >= distance)
+				{
+					nearest[pos] = nearest[pos - 1];
+					pos--;
+				}
+
+				nearest[pos] = s;
+			}
+		}
+
+		int[] positions = new int[found];
+		for(int j = 0; j < found; j++)
+			positions[j] = indexOf(entry.skylineSeqs[nearest[j]]);
+
+		return positions;
+	}
+
+	/**
+	 * Returns the n nearest window instances to a query, merging the local top-n of the workers by distance and
+	 * then by age.
+	 */
+	@Override
+	public int[] getNearestNeighbors(Instance query, int n) {
+
+		List<WorkerMessage> responses = coordinator.broadcast(new WorkerMessage.Query(FeatureVector.of(query), n));
+
+		WorkerMessage.Neighbors[] nearest = new WorkerMessage.Neighbors[responses.size()];
+		for(int w = 0; w < nearest.length; w++)
+			nearest[w] = (WorkerMessage.Neighbors) responses.get(w);
+
+		int[] positions = new int[n];
+		int[] next = new int[nearest.length];
+		int found = 0;
+
+		while (found < n)
+		{
+			int best = -1;
+
+			for(int w = 0; w < nearest.length; w++)
+			{
+				if(next[w] < nearest[w].seqs.length && (best == -1 || nearest[w].distances[next[w]] < nearest[best].distances[next[best]]
+						|| (nearest[w].distances[next[w]] == nearest[best].distances[next[best]] && nearest[w].seqs[next[w]] < nearest[best].seqs[next[best]])))
+					best = w;
+			}
+
+			if(best == -1)
+				break;
+
+			positions[found++] = indexOf(nearest[best].seqs[next[best]++]);
+		}
+
+		return found == n ? positions : Arrays.copyOf(positions, found);
+	}
+
+	/**
+	 * Returns the position of an instance in the window, or a negative value when it is no longer there.
+	 */
+	private int indexOf(long seq) {
+
+		int low = 0, high = rows.size() - 1;
+
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			long midSeq = rows.get(mid).seq;
+
+			if(midSeq < seq)
+				low = mid + 1;
+			else if(midSeq > seq)
+				high = mid - 1;
+			else
+				return mid;
+		}
+
+		return -(low + 1);
+	}
+
+	@Override
+	public long estimateMemoryBytes() {
+
+		long bytes = 64 + 16 + 4L * rows.size() + 16 + 4L * partitionSizes.length;
+
+		for(Row row : rows)
+			bytes += 40 + 2 * 16 + 16L * row.skylineSeqs.length;
+
+		return bytes;
+	}
+}
@@ -0,0 +1,95 @@
+package moa.classifiers.multilabel.distributed;
+
+import java.io.Serializable;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+/**
+* Input attributes of an instance as sent to the workers, dense or sparse
+*
+* @author Alberto Cano
+*/
+
+public class FeatureVector implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Input attribute indices of the values, or null when dense */
+	final int[] indices;
+
+	final double[] values;
+
+	FeatureVector(int[] indices, double[] values) {
+		this.indices = indices;
+		this.values = values;
+	}
+
+	/**
+	 * Extracts the input attributes of an instance whose labels are its first attributes.
+	 */
+	public static FeatureVector of(Instance instance) {
+
+		if(instance.numValues() == instance.numAttributes()) // Dense Instance
+		{
+			double[] values = new double[instance.numInputAttributes()];
+
+			for(int i = 0; i < values.length; i++)
+				values[i] = instance.valueInputAttribute(i);
+
+			return new FeatureVector(null, values);
+		}
+
+		int numOutputs = instance.numOutputAttributes();
+		int numValues = 0;
+
+		for(int p = 0; p < instance.numValues(); p++)
+			if(instance.index(p) >= numOutputs)
+				numValues++;
+
+		int[] indices = new int[numValues];
+		double[] values = new double[numValues];
+
+		for(int p = 0, v = 0; p < instance.numValues(); p++)
+		{
+			if(instance.index(p) >= numOutputs)
+			{
+				indices[v] = instance.index(p) - numOutputs;
+				values[v++] = instance.valueSparse(p);
+			}
+		}
+
+		return new FeatureVector(indices, values);
+	}
+
+	boolean isDense() {
+		return indices == null;
+	}
+
+	int numValues() {
+		return values.length;
+	}
+
+	int index(int p) {
+		return indices == null ? p : indices[p];
+	}
+
+	/**
+	 * Returns the dense values of the vector.
+	 */
+	double[] toDense(int numAttributes) {
+
+		if(indices == null)
+			return values;
+
+		double[] dense = new double[numAttributes];
+
+		for(int p = 0; p < indices.length; p++)
+			dense[indices[p]] = values[p];
+
+		return dense;
+	}
+
+	long estimateMemoryBytes() {
+		return 32 + 16 + 8L * values.length + (indices == null ? 0 : 16 + 4L * indices.length);
+	}
+}
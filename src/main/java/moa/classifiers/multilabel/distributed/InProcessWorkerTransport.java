@@ -0,0 +1,30 @@
+package moa.classifiers.multilabel.distributed;
+
+/**
+* Transport calling workers living in the coordinator JVM, without serialization
+*
+* @author Alberto Cano
+*/
+
+public class InProcessWorkerTransport implements WorkerTransport {
+
+	private final KnnWorker[] workers;
+
+	public InProcessWorkerTransport(int numWorkers) {
+		workers = new KnnWorker[numWorkers];
+
+		for(int i = 0; i < numWorkers; i++)
+			workers[i] = new KnnWorker();
+	}
+
+	public int numWorkers() {
+		return workers.length;
+	}
+
+	public WorkerMessage call(int worker, WorkerMessage request) {
+		return workers[worker].handle(request);
+	}
+
+	public void close() {
+	}
+}
@@ -0,0 +1,361 @@
+package moa.classifiers.multilabel.distributed;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Collections;
+
+/**
+* Holds one partition of a distributed MLSAMPkNN window and answers nearest neighbor requests over it
+*
+* Every training instance is announced to every worker, so all of them keep the same attribute ranges and
+* compute the same normalized Euclidean distances as MLSAMPkNN. Every change of the ranges is logged with the
+* instance that caused it until that instance leaves the window, so the skyline of a window instance can be
+* computed again with the ranges it was trained with, as its row of the MLSAMPkNN distance cache.
+*
+* @author Alberto Cano
+*/
+
+public class KnnWorker {
+
+	private int workerId;
+	private double[] attributeRangeMin = new double[0];
+	private double[] attributeRangeMax = new double[0];
+
+	private long[] seqs = new long[16];
+	private final List<FeatureVector> instances = new ArrayList<FeatureVector>();
+
+	/** Previous range of an attribute before the instance of each sequence number changed it, oldest first */
+	private long[] rangeLogSeqs = new long[16];
+	private int[] rangeLogAttributes = new int[16];
+	private double[] rangeLogMins = new double[16];
+	private double[] rangeLogMaxs = new double[16];
+	private int rangeLogSize;
+
+	public synchronized WorkerMessage handle(WorkerMessage request) {
+
+		if(request instanceof WorkerMessage.Query)
+			return query((WorkerMessage.Query) request);
+		else if(request instanceof WorkerMessage.Train)
+			return train((WorkerMessage.Train) request);
+		else if(request instanceof WorkerMessage.Evict)
+			return evict((WorkerMessage.Evict) request);
+		else if(request instanceof WorkerMessage.Fetch)
+			return fetch((WorkerMessage.Fetch) request);
+		else if(request instanceof WorkerMessage.Recompute)
+			return recompute((WorkerMessage.Recompute) request);
+		else if(request instanceof WorkerMessage.Snapshot)
+			return snapshot();
+		else if(request instanceof WorkerMessage.Partition)
+			return restore((WorkerMessage.Partition) request);
+		else if(request instanceof WorkerMessage.Reset)
+			return reset((WorkerMessage.Reset) request);
+
+		throw new IllegalArgumentException("Unknown request " + request.getClass().getName());
+	}
+
+	public synchronized int size() {
+		return instances.size();
+	}
+
+	private WorkerMessage reset(WorkerMessage.Reset request) {
+		workerId = request.workerId;
+		attributeRangeMin = new double[request.numInputAttributes];
+		attributeRangeMax = new double[request.numInputAttributes];
+		instances.clear();
+		rangeLogSize = 0;
+		return new WorkerMessage.Ack();
+	}
+
+	/**
+	 * Returns the k nearest instances sorted by distance, the oldest first among ties.
+	 */
+	private WorkerMessage query(WorkerMessage.Query request) {
+
+		int n = Math.min(request.k, instances.size());
+		int[] nearest = new int[n];
+		double[] nearestDistances = new double[n];
+		int found = 0;
+
+		for(int i = 0; i < instances.size(); i++)
+		{
+			double distance = getDistance(request.query, instances.get(i));
+
+			if(found < n || distance < nearestDistances[found - 1])
+			{
+				int pos = found < n ? found++ : found - 1;
+
+				while (pos > 0 && nearestDistances[pos - 1] > distance)
+				{
+					nearest[pos] = nearest[pos - 1];
+					nearestDistances[pos] = nearestDistances[pos - 1];
+					pos--;
+				}
+
+				nearest[pos] = i;
+				nearestDistances[pos] = distance;
+			}
+		}
+
+		long[] nearestSeqs = new long[n];
+		for(int i = 0; i < n; i++)
+			nearestSeqs[i] = seqs[nearest[i]];
+
+		return new WorkerMessage.Neighbors(nearestSeqs, nearestDistances);
+	}
+
+	/**
+	 * Updates the ranges with a training instance, returns its skyline and stores it when this worker owns it.
+	 * The skyline holds, from newest to oldest, the instances that are among the k nearest of all the instances
+	 * of the partition not older than them, which answers any k nearest query restricted to a suffix of the window.
+	 */
+	private WorkerMessage train(WorkerMessage.Train request) {
+
+		updateRanges(request.seq, request.instance);
+
+		WorkerMessage.Neighbors skyline = getSkyline(request.instance, instances.size(), request.k, attributeRangeMin, attributeRangeMax);
+
+		if(request.ownerId == workerId)
+		{
+			if(instances.size() == seqs.length)
+				seqs = Arrays.copyOf(seqs, 2 * seqs.length);
+
+			seqs[instances.size()] = request.seq;
+			instances.add(request.instance);
+		}
+
+		return skyline;
+	}
+
+	/**
+	 * Returns the skyline of an instance over the first instances of the partition, from newest to oldest.
+	 */
+	private WorkerMessage.Neighbors getSkyline(FeatureVector instance, int numOlder, int k, double[] rangeMin, double[] rangeMax) {
+
+		PriorityQueue<Double> kNearest = new PriorityQueue<Double>(Math.max(1, k), Collections.reverseOrder());
+		long[] skylineSeqs = new long[numOlder];
+		double[] skylineDistances = new double[numOlder];
+		int skylineSize = 0;
+
+		for(int i = numOlder - 1; i >= 0; i--)
+		{
+			double distance = getDistance(instance, instances.get(i), rangeMin, rangeMax);
+
+			if(kNearest.size() < k || distance <= kNearest.peek())
+			{
+				skylineSeqs[skylineSize] = seqs[i];
+				skylineDistances[skylineSize++] = distance;
+			}
+
+			kNearest.add(distance);
+			if(kNearest.size() > k)
+				kNearest.poll();
+		}
+
+		return new WorkerMessage.Neighbors(Arrays.copyOf(skylineSeqs, skylineSize), Arrays.copyOf(skylineDistances, skylineSize));
+	}
+
+	/**
+	 * Returns the skylines of window instances over the partition instances older than them, computed with the
+	 * attribute ranges right after each of them was trained, which the range log keeps.
+	 */
+	private WorkerMessage recompute(WorkerMessage.Recompute request) {
+
+		WorkerMessage.Neighbors[] skylines = new WorkerMessage.Neighbors[request.seqs.length];
+
+		for(int r = 0; r < skylines.length; r++)
+		{
+			long seq = request.seqs[r];
+
+			double[] rangeMin = attributeRangeMin.clone();
+			double[] rangeMax = attributeRangeMax.clone();
+
+			for(int e = rangeLogSize - 1; e >= 0 && rangeLogSeqs[e] > seq; e--)
+			{
+				rangeMin[rangeLogAttributes[e]] = rangeLogMins[e];
+				rangeMax[rangeLogAttributes[e]] = rangeLogMaxs[e];
+			}
+
+			int numOlder = 0;
+			while (numOlder < instances.size() && seqs[numOlder] < seq)
+				numOlder++;
+
+			skylines[r] = getSkyline(request.instances[r], numOlder, request.k, rangeMin, rangeMax);
+		}
+
+		return new WorkerMessage.Skylines(skylines);
+	}
+
+	/**
+	 * Returns the input attributes of instances of this partition.
+	 */
+	private WorkerMessage fetch(WorkerMessage.Fetch request) {
+
+		FeatureVector[] fetched = new FeatureVector[request.seqs.length];
+
+		for(int r = 0; r < fetched.length; r++)
+		{
+			int i = Arrays.binarySearch(seqs, 0, instances.size(), request.seqs[r]);
+
+			if(i < 0)
+				throw new IllegalArgumentException("Instance " + request.seqs[r] + " is not in partition " + workerId);
+
+			fetched[r] = instances.get(i);
+		}
+
+		return new WorkerMessage.Instances(fetched);
+	}
+
+	private WorkerMessage snapshot() {
+		return new WorkerMessage.Partition(workerId, attributeRangeMin.clone(), attributeRangeMax.clone(),
+				Arrays.copyOf(seqs, instances.size()), instances.toArray(new FeatureVector[instances.size()]),
+				Arrays.copyOf(rangeLogSeqs, rangeLogSize), Arrays.copyOf(rangeLogAttributes, rangeLogSize),
+				Arrays.copyOf(rangeLogMins, rangeLogSize), Arrays.copyOf(rangeLogMaxs, rangeLogSize));
+	}
+
+	private WorkerMessage restore(WorkerMessage.Partition partition) {
+
+		workerId = partition.workerId;
+		attributeRangeMin = partition.attributeRangeMin.clone();
+		attributeRangeMax = partition.attributeRangeMax.clone();
+
+		seqs = Arrays.copyOf(partition.seqs, Math.max(16, partition.seqs.length));
+		instances.clear();
+		instances.addAll(Arrays.asList(partition.instances));
+
+		rangeLogSize = partition.rangeLogSeqs.length;
+		int capacity = Math.max(16, rangeLogSize);
+		rangeLogSeqs = Arrays.copyOf(partition.rangeLogSeqs, capacity);
+		rangeLogAttributes = Arrays.copyOf(partition.rangeLogAttributes, capacity);
+		rangeLogMins = Arrays.copyOf(partition.rangeLogMins, capacity);
+		rangeLogMaxs = Arrays.copyOf(partition.rangeLogMaxs, capacity);
+
+		return new WorkerMessage.Ack();
+	}
+
+	private WorkerMessage evict(WorkerMessage.Evict request) {
+
+		long[] evicted = request.seqs.clone();
+		Arrays.sort(evicted);
+
+		int kept = 0;
+
+		for(int i = 0; i < instances.size(); i++)
+		{
+			if(Arrays.binarySearch(evicted, seqs[i]) < 0)
+			{
+				seqs[kept] = seqs[i];
+				instances.set(kept++, instances.get(i));
+			}
+		}
+
+		instances.subList(kept, instances.size()).clear();
+
+		// The ranges of the instances left are never rolled back past the oldest one
+		int dropped = 0;
+		while (dropped < rangeLogSize && rangeLogSeqs[dropped] <= request.oldestSeq)
+			dropped++;
+
+		if(dropped > 0)
+		{
+			rangeLogSize -= dropped;
+			System.arraycopy(rangeLogSeqs, dropped, rangeLogSeqs, 0, rangeLogSize);
+			System.arraycopy(rangeLogAttributes, dropped, rangeLogAttributes, 0, rangeLogSize);
+			System.arraycopy(rangeLogMins, dropped, rangeLogMins, 0, rangeLogSize);
+			System.arraycopy(rangeLogMaxs, dropped, rangeLogMaxs, 0, rangeLogSize);
+		}
+
+		return new WorkerMessage.Ack();
+	}
+
+	private void updateRanges(long seq, FeatureVector instance) {
+		for(int p = 0; p < instance.numValues(); p++)
+		{
+			int i = instance.index(p);
+
+			if(instance.values[p] < attributeRangeMin[i] || instance.values[p] > attributeRangeMax[i])
+			{
+				logRange(seq, i);
+
+				if(instance.values[p] < attributeRangeMin[i])
+					attributeRangeMin[i] = instance.values[p];
+				if(instance.values[p] > attributeRangeMax[i])
+					attributeRangeMax[i] = instance.values[p];
+			}
+		}
+	}
+
+	private void logRange(long seq, int attribute) {
+
+		if(rangeLogSize == rangeLogSeqs.length)
+		{
+			rangeLogSeqs = Arrays.copyOf(rangeLogSeqs, 2 * rangeLogSize);
+			rangeLogAttributes = Arrays.copyOf(rangeLogAttributes, 2 * rangeLogSize);
+			rangeLogMins = Arrays.copyOf(rangeLogMins, 2 * rangeLogSize);
+			rangeLogMaxs = Arrays.copyOf(rangeLogMaxs, 2 * rangeLogSize);
+		}
+
+		rangeLogSeqs[rangeLogSize] = seq;
+		rangeLogAttributes[rangeLogSize] = attribute;
+		rangeLogMins[rangeLogSize] = attributeRangeMin[attribute];
+		rangeLogMaxs[rangeLogSize++] = attributeRangeMax[attribute];
+	}
+
+	/**
+	 * Returns the Euclidean distance, normalized as in MLSAMPkNN.
+	 */
+	private double getDistance(FeatureVector instance1, FeatureVector instance2) {
+		return getDistance(instance1, instance2, attributeRangeMin, attributeRangeMax);
+	}
+
+	/**
+	 * Returns the Euclidean distance, normalized with the given attribute ranges.
+	 */
+	private static double getDistance(FeatureVector instance1, FeatureVector instance2, double[] attributeRangeMin, double[] attributeRangeMax) {
+
+		double distance = 0;
+
+		if(instance1.isDense() || instance2.isDense())
+		{
+			double[] values1 = instance1.toDense(attributeRangeMin.length);
+			double[] values2 = instance2.toDense(attributeRangeMin.length);
+
+			for(int i = 0; i < values1.length; i++)
+			{
+				double range = attributeRangeMax[i] - attributeRangeMin[i];
+
+				if(range != 0)
+				{
+					double val1 = (values1[i] - attributeRangeMin[i]) / range;
+					double val2 = (values2[i] - attributeRangeMin[i]) / range;
+					distance += (val1 - val2) * (val1 - val2);
+				}
+			}
+		}
+		else
+		{
+			int p1 = 0, p2 = 0;
+
+			while (p1 < instance1.numValues() || p2 < instance2.numValues())
+			{
+				int firstI = p1 < instance1.numValues() ? instance1.index(p1) : Integer.MAX_VALUE;
+				int secondI = p2 < instance2.numValues() ? instance2.index(p2) : Integer.MAX_VALUE;
+				int idx = Math.min(firstI, secondI);
+				double range = attributeRangeMax[idx] - attributeRangeMin[idx];
+
+				double val1 = 0, val2 = 0;
+
+				if(firstI == idx)
+					val1 = (instance1.values[p1++] - attributeRangeMin[idx]) / range;
+				if(secondI == idx)
+					val2 = (instance2.values[p2++] - attributeRangeMin[idx]) / range;
+
+				if(range != 0)
+					distance += (val1 - val2) * (val1 - val2);
+			}
+		}
+
+		return Math.sqrt(distance);
+	}
+}
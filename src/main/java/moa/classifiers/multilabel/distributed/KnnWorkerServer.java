@@ -0,0 +1,83 @@
+package moa.classifiers.multilabel.distributed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+* Worker process of MLSAMPkNNDistributed, serving window partitions on a TCP port
+*
+* Every connection gets its own KnnWorker, so coordinators sharing a server, such as a learner and its copies,
+* do not reset or evict the partitions of each other. A partition is released when its connection closes.
+*
+* Usage: KnnWorkerServer port
+*
+* e.g. java -cp MLSAMPkNN.jar moa.classifiers.multilabel.distributed.KnnWorkerServer 7001, and then the learner
+* multilabel.distributed.MLSAMPkNNDistributed -t Socket -a localhost:7001,localhost:7002
+*
+* @author Alberto Cano
+*/
+
+public class KnnWorkerServer {
+
+	public void serve(int port) throws IOException {
+
+		try(ServerSocket serverSocket = new ServerSocket(port))
+		{
+			System.err.println("KnnWorker listening on port " + serverSocket.getLocalPort());
+
+			while (true)
+			{
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+
+				Thread thread = new Thread(() -> handleConnection(socket), "KnnWorker connection " + socket.getRemoteSocketAddress());
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+	}
+
+	private void handleConnection(Socket socket) {
+
+		KnnWorker worker = new KnnWorker();
+
+		try(Socket connection = socket)
+		{
+			ObjectOutputStream output = new ObjectOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+			output.flush();
+			ObjectInputStream input = new ObjectInputStream(new BufferedInputStream(connection.getInputStream()));
+
+			while (true)
+			{
+				WorkerMessage request;
+
+				try {
+					request = (WorkerMessage) input.readObject();
+				} catch (EOFException e) {
+					return; // The coordinator closed the connection
+				}
+
+				output.writeObject(worker.handle(request));
+				output.flush();
+				output.reset();
+			}
+		} catch (IOException | ClassNotFoundException e) {
+			System.err.println("Error: connection " + socket.getRemoteSocketAddress() + " failed.");
+			e.printStackTrace();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		if(args.length != 1)
+			throw new IllegalArgumentException("Usage: KnnWorkerServer port");
+
+		new KnnWorkerServer().serve(Integer.parseInt(args[0]));
+	}
+}
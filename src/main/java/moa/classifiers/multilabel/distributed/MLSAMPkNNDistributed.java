@@ -0,0 +1,286 @@
+package moa.classifiers.multilabel.distributed;
+
+import com.github.javacliparser.FloatOption;
+import com.github.javacliparser.IntOption;
+import com.github.javacliparser.MultiChoiceOption;
+import com.github.javacliparser.StringOption;
+import com.yahoo.labs.samoa.instances.*;
+import moa.classifiers.AbstractMultiLabelLearner;
+import moa.classifiers.MultiLabelClassifier;
+import moa.classifiers.multilabel.MLSAMPkNN;
+import moa.core.Measurement;
+import moa.core.StringUtils;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.*;
+
+/**
+* MLSAMPkNN with its window partitioned across worker processes
+*
+* The window, punitive errors and prediction histories are those of a single MLSAMPkNN kept by the coordinator,
+* whose distance cache is partitioned across the workers: the input attributes of every instance are also held
+* by the partition of one worker, which answers its share of every nearest neighbor request. A prediction merges
+* the local top-k of the workers, and every row of the histories of the self-adjusting memory is read from the
+* nearest-neighbor skyline the workers return for the instance, so the window sizes are those of MLSAMPkNN.
+* Punitive removals and window size cuts are sent to the workers as eviction messages.
+*
+* The transport is pluggable: workers in the same JVM, or KnnWorkerServer processes reached over TCP. A copy or
+* a deserialized learner carries a snapshot of the partitions, restored into the workers of its options when it
+* is first used, or into those given by setTransport.
+*
+* @author Alberto Cano
+*/
+
+public class MLSAMPkNNDistributed extends AbstractMultiLabelLearner implements MultiLabelClassifier {
+
+	private static final long serialVersionUID = 1L;
+
+	public IntOption kOption = new IntOption("k", 'k', "The number of neighbors", 3, 1, Integer.MAX_VALUE);
+
+	public IntOption maxWindowSize = new IntOption("maxWindowSize", 'w', "The maximum number of instances to store", 1000, 1, Integer.MAX_VALUE);
+
+	public IntOption minWindowSize = new IntOption("minWindowSize", 'm', "The minimum number of instances to sotre",   50, 1, Integer.MAX_VALUE);
+
+	public FloatOption penalty = new FloatOption("penalty", 'p', "Penalty ratio", 1, 0, Float.MAX_VALUE);
+
+	public FloatOption reductionRatio = new FloatOption("reductionRatio", 'r', "Reduction ratio", 0.5, 0, 1);
+
+	private String[] metrics = {"Subset Accuracy", "Hamming Score"};
+
+	public MultiChoiceOption metric = new MultiChoiceOption("metric", 'e', "Choose metric used to adjust memory", metrics, metrics, 0);
+
+	private String[] transports = {"InProcess", "Socket"};
+
+	public MultiChoiceOption transport = new MultiChoiceOption("transport", 't', "How the workers are reached", transports, transports, 0);
+
+	public IntOption numWorkers = new IntOption("numWorkers", 'n', "The number of in-process workers", 4, 1, Integer.MAX_VALUE);
+
+	public StringOption workerAddresses = new StringOption("workerAddresses", 'a', "Comma separated host:port of the KnnWorkerServer processes", "localhost:7001,localhost:7002");
+
+	private InstancesHeader context;
+	private MLSAMPkNN learner;
+	private DistributedDistanceCache distanceCache;
+
+	private transient WorkerTransport workerTransport;
+	private transient boolean customTransport;
+
+	/** Partitions of the workers saved with the learner, until restored into a transport */
+	private WorkerMessage.Partition[] partitions;
+
+	/**
+	 * Uses the given transport instead of the one configured by the options. The partitions of the window move
+	 * to its workers.
+	 */
+	public void setTransport(WorkerTransport workerTransport) {
+
+		if(this.workerTransport != null && distanceCache != null && distanceCache.size() > 0)
+			partitions = snapshotWorkers();
+
+		closeTransport();
+		this.workerTransport = workerTransport;
+		this.customTransport = true;
+
+		connectWorkers();
+	}
+
+	@Override
+	public void setModelContext(InstancesHeader context) {
+		this.context = context;
+		createLearner();
+	}
+
+	@Override
+	public void resetLearningImpl() {
+		if(context != null)
+			createLearner();
+	}
+
+	private void createLearner() {
+
+		learner = new MLSAMPkNN();
+		learner.kOption.setValue(kOption.getValue());
+		learner.maxWindowSize.setValue(maxWindowSize.getValue());
+		learner.minWindowSize.setValue(minWindowSize.getValue());
+		learner.penalty.setValue(penalty.getValue());
+		learner.reductionRatio.setValue(reductionRatio.getValue());
+		learner.metric.setChosenIndex(metric.getChosenIndex());
+		learner.setModelContext(context);
+		learner.prepareForUse();
+
+		partitions = null;
+
+		if(workerTransport == null)
+			workerTransport = createTransport();
+
+		distanceCache = new DistributedDistanceCache(this, kOption.getValue(), context.numInputAttributes());
+		distanceCache.clear();
+		learner.setDistanceCache(distanceCache);
+	}
+
+	private WorkerTransport createTransport() {
+		if(transport.getChosenIndex() == 0)
+			return new InProcessWorkerTransport(numWorkers.getValue());
+
+		try {
+			return new SocketWorkerTransport(workerAddresses.getValue());
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot connect to the workers " + workerAddresses.getValue(), e);
+		}
+	}
+
+	/**
+	 * Restores the saved partitions into the workers of a new transport, or resets them if the window is empty.
+	 */
+	private void connectWorkers() {
+
+		if(partitions != null)
+		{
+			if(partitions.length != workerTransport.numWorkers())
+				throw new IllegalStateException("The window is partitioned across " + partitions.length + " workers, but the transport reaches " + workerTransport.numWorkers());
+
+			for(int worker = 0; worker < partitions.length; worker++)
+				call(worker, partitions[worker]);
+
+			partitions = null;
+		}
+		else if(distanceCache != null)
+		{
+			if(distanceCache.size() > 0)
+				throw new IllegalStateException("The workers holding the window were closed, so the learner must be reset");
+
+			distanceCache.clear();
+		}
+	}
+
+	private WorkerMessage.Partition[] snapshotWorkers() {
+
+		List<WorkerMessage> responses = broadcast(new WorkerMessage.Snapshot());
+
+		WorkerMessage.Partition[] snapshot = new WorkerMessage.Partition[responses.size()];
+		for(int worker = 0; worker < snapshot.length; worker++)
+			snapshot[worker] = (WorkerMessage.Partition) responses.get(worker);
+
+		return snapshot;
+	}
+
+	/**
+	 * Saves the partitions of the workers with the learner, which is how MOA copies it.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+
+		boolean snapshot = workerTransport != null && distanceCache != null && distanceCache.size() > 0;
+
+		if(snapshot)
+			partitions = snapshotWorkers();
+
+		try {
+			out.defaultWriteObject();
+		} finally {
+			if(snapshot)
+				partitions = null;
+		}
+	}
+
+	/**
+	 * Returns the transport, connecting to the workers of the options after deserialization or closeTransport.
+	 */
+	private WorkerTransport getTransport() {
+
+		if(workerTransport == null)
+		{
+			workerTransport = createTransport();
+			connectWorkers();
+		}
+
+		return workerTransport;
+	}
+
+	/**
+	 * Closes the connections to the workers, unless the transport was given by setTransport. The partitions are
+	 * lost, so the learner must be reset before it is used again.
+	 */
+	public void closeTransport() {
+		if(workerTransport != null && !customTransport)
+		{
+			try {
+				workerTransport.close();
+			} catch (IOException e) {
+				// Nothing left to release
+			}
+		}
+
+		workerTransport = null;
+	}
+
+	@Override
+	public void trainOnInstanceImpl(MultiLabelInstance inst) {
+		learner.trainOnInstance(inst);
+	}
+
+	/**
+	 * Predicts the label of a given sample from the merged top-k of the workers
+	 */
+	@Override
+	public Prediction getPredictionForInstance(MultiLabelInstance instance) {
+		return learner.getPredictionForInstance(instance);
+	}
+
+	int numWorkers() {
+		return getTransport().numWorkers();
+	}
+
+	WorkerMessage call(int worker, WorkerMessage request) {
+		try {
+			return getTransport().call(worker, request);
+		} catch (IOException e) {
+			throw new IllegalStateException("Worker " + worker + " failed", e);
+		}
+	}
+
+	List<WorkerMessage> broadcast(WorkerMessage request) {
+		try {
+			return getTransport().broadcast(request);
+		} catch (IOException e) {
+			throw new IllegalStateException("A worker failed", e);
+		}
+	}
+
+	@Override
+	protected Measurement[] getModelMeasurementsImpl() {
+
+		if(learner == null)
+			return new Measurement[]{new Measurement("window size", 0)};
+
+		int minPartitionSize = Integer.MAX_VALUE, maxPartitionSize = 0;
+
+		for(int worker = 0; worker < distanceCache.numWorkers(); worker++)
+		{
+			minPartitionSize = Math.min(minPartitionSize, distanceCache.getPartitionSize(worker));
+			maxPartitionSize = Math.max(maxPartitionSize, distanceCache.getPartitionSize(worker));
+		}
+
+		Measurement[] learnerMeasurements = learner.getModelMeasurements();
+
+		return new Measurement[]{
+				new Measurement("window size", distanceCache.size()),
+				new Measurement("workers", distanceCache.numWorkers()),
+				new Measurement("smallest partition size", minPartitionSize),
+				new Measurement("largest partition size", maxPartitionSize),
+				new Measurement("punitive removals", Measurement.getMeasurementNamed("punitive removals", learnerMeasurements).getValue()),
+				new Measurement("window size cuts", Measurement.getMeasurementNamed("window size cuts", learnerMeasurements).getValue()),
+				new Measurement("skyline size per instance", distanceCache.getSkylineSizePerInstance()),
+				new Measurement("recomputed skylines", distanceCache.getSkylineRecomputations())
+		};
+	}
+
+	@Override
+	public void getModelDescription(StringBuilder out, int indent) {
+		StringUtils.appendIndented(out, indent, "MLSAMPkNN with k = " + kOption.getValue() + " and the window partitioned across " + (distanceCache == null ? 0 : distanceCache.numWorkers()) + " workers");
+		StringUtils.appendNewline(out);
+	}
+
+	public boolean isRandomizable() {
+		return false;
+	}
+}
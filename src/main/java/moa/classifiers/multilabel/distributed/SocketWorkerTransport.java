@@ -0,0 +1,128 @@
+package moa.classifiers.multilabel.distributed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+* Transport calling workers run by KnnWorkerServer processes over TCP, one connection per worker
+*
+* Requests and responses are Java-serialized. A broadcast writes the request to every worker before reading any
+* response, so the workers search their partitions at the same time.
+*
+* @author Alberto Cano
+*/
+
+public class SocketWorkerTransport implements WorkerTransport {
+
+	private final Socket[] sockets;
+	private final ObjectOutputStream[] outputs;
+	private final ObjectInputStream[] inputs;
+
+	/**
+	 * @param addresses worker addresses as host:port, comma separated
+	 */
+	public SocketWorkerTransport(String addresses) throws IOException {
+		this(parseAddresses(addresses));
+	}
+
+	public SocketWorkerTransport(List<InetSocketAddress> addresses) throws IOException {
+
+		sockets = new Socket[addresses.size()];
+		outputs = new ObjectOutputStream[addresses.size()];
+		inputs = new ObjectInputStream[addresses.size()];
+
+		try {
+			for(int i = 0; i < sockets.length; i++)
+			{
+				sockets[i] = new Socket();
+				sockets[i].setTcpNoDelay(true);
+				sockets[i].connect(addresses.get(i));
+
+				// The output header is flushed first, otherwise both ends would block reading the other's header
+				outputs[i] = new ObjectOutputStream(new BufferedOutputStream(sockets[i].getOutputStream()));
+				outputs[i].flush();
+				inputs[i] = new ObjectInputStream(new BufferedInputStream(sockets[i].getInputStream()));
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	static List<InetSocketAddress> parseAddresses(String addresses) {
+
+		List<InetSocketAddress> parsed = new ArrayList<InetSocketAddress>();
+
+		for(String address : addresses.split(","))
+		{
+			address = address.trim();
+			int colon = address.lastIndexOf(':');
+
+			if(colon < 0)
+				throw new IllegalArgumentException("Worker address " + address + " is not host:port");
+
+			parsed.add(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+		}
+
+		return parsed;
+	}
+
+	public int numWorkers() {
+		return sockets.length;
+	}
+
+	public WorkerMessage call(int worker, WorkerMessage request) throws IOException {
+		send(worker, request);
+		return receive(worker);
+	}
+
+	@Override
+	public List<WorkerMessage> broadcast(WorkerMessage request) throws IOException {
+
+		for(int worker = 0; worker < sockets.length; worker++)
+			send(worker, request);
+
+		List<WorkerMessage> responses = new ArrayList<WorkerMessage>(sockets.length);
+
+		for(int worker = 0; worker < sockets.length; worker++)
+			responses.add(receive(worker));
+
+		return responses;
+	}
+
+	private void send(int worker, WorkerMessage request) throws IOException {
+		outputs[worker].writeObject(request);
+		outputs[worker].flush();
+		// Forget the objects written, which would otherwise be kept for back references
+		outputs[worker].reset();
+	}
+
+	private WorkerMessage receive(int worker) throws IOException {
+		try {
+			return (WorkerMessage) inputs[worker].readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unknown response from worker " + worker, e);
+		}
+	}
+
+	public void close() {
+		for(Socket socket : sockets)
+		{
+			if(socket != null)
+			{
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// Nothing left to release
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package moa.classifiers.multilabel.distributed;
+
+import java.io.Serializable;
+
+/**
+* Requests sent by the coordinator to the workers, and their responses
+*
+* @author Alberto Cano
+*/
+
+public abstract class WorkerMessage implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Clears the partition of a worker and assigns its id.
+	 */
+	public static class Reset extends WorkerMessage {
+
+		private static final long serialVersionUID = 1L;
+
+		final int workerId;
+		final int numInputAttributes;
+
+		public Reset(int workerId, int numInputAttributes) {
+			this.workerId = workerId;
+			this.numInputAttributes = numInputAttributes;
+		}
+	}
+
+	/**
+	 * Asks for the k nearest instances of the partition to a query.
+	 */
+	public static class Query extends WorkerMessage {
+
+		private static final long serialVersionUID = 1L;
+
+		final FeatureVector query;
+		final int k;
+
+		public Query(FeatureVector query, int k) {
+			this.query = query;
+			this.k = k;
+		}
+	}
+
+	/**
+	 * Announces a training instance: every worker updates its attribute ranges and returns the nearest-neighbor
+	 * skyline of the instance over its partition, and the owner worker then stores it.
+	 */
+	public static class Train extends WorkerMessage {
+
+		private static final long serialVersionUID = 1L;
+
+		final long seq;
+		final FeatureVector instance;
+		final int k;
+		final int ownerId;
+
+		public Train(long seq, FeatureVector instance, int k, int ownerId) {
+			this.seq = seq;
+			this.instance = instance;
+			this.k = k;
+			this.ownerId = ownerId;
+		}
+	}
+
+	/**
+	 * Removes instances from the partitions holding them, and tells the oldest instance left in the window.
+	 */
+	public static class Evict extends WorkerMessage {
+
+		private static final long serialVersionUID = 1L;
+
+		final long[] seqs;
+		final long oldestSeq;
+
+		public Evict(long[] seqs, long oldestSeq) {
+			this.seqs = seqs;
+			this.oldestSeq = oldestSeq;
+		}
+	}
+
+	/**
+	 * Asks the owner worker for the input attributes of some of its instances.
+	 */
+	public static class Fetch extends WorkerMessage {
+
+		private static final long serialVersionUID = 1L;
+
+		final long[] seqs;
+
+		public Fetch(long[] seqs) {
+			this.seqs = seqs;
+		}
+	}
+
+	/**
+	 * Input attributes of instances, in the order they were asked for.
+	 */
+	public static class Instances extends WorkerMessage {
+
+		private static final long serialVersionUID = 1L;
+
+		final FeatureVector[] instances;
+
+		public Instances(FeatureVector[] instances) {
+			this.instances = instances;
+		}
+	}
+
+	/**
+	 * Asks every worker for the skylines of window instances over the instances of its partition older than them,
+	 * with the attribute ranges each of them was trained with. Sent after a punitive removal for the instances
+	 * whose skyline held a removed instance, which may have been shadowing older ones.
+	 */
+	public static class Recompute extends WorkerMessage {
+
+		private static final long serialVersionUID = 1L;
+
+		final long[] seqs;
+		final FeatureVector[] instances;
+		final int k;
+
+		public Recompute(long[] seqs, FeatureVector[] instances, int k) {
+			this.seqs = seqs;
+			this.instances = instances;
+			this.k = k;
+		}
+	}
+
+	/**
+	 * The skylines of a Recompute request, in the order they were asked for.
+	 */
+	public static class Skylines extends WorkerMessage {
+
+		private static final long serialVersionUID = 1L;
+
+		final Neighbors[] skylines;
+
+		public Skylines(Neighbors[] skylines) {
+			this.skylines = skylines;
+		}
+	}
+
+	/**
+	 * Asks a worker for its partition.
+	 */
+	public static class Snapshot extends WorkerMessage {
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * The whole state of a worker, answering a Snapshot request, or sent to a worker to restore it.
+	 */
+	public static class Partition extends WorkerMessage {
+
+		private static final long serialVersionUID = 1L;
+
+		final int workerId;
+		final double[] attributeRangeMin;
+		final double[] attributeRangeMax;
+		final long[] seqs;
+		final FeatureVector[] instances;
+		final long[] rangeLogSeqs;
+		final int[] rangeLogAttributes;
+		final double[] rangeLogMins;
+		final double[] rangeLogMaxs;
+
+		public Partition(int workerId, double[] attributeRangeMin, double[] attributeRangeMax, long[] seqs, FeatureVector[] instances,
+				long[] rangeLogSeqs, int[] rangeLogAttributes, double[] rangeLogMins, double[] rangeLogMaxs) {
+			this.workerId = workerId;
+			this.attributeRangeMin = attributeRangeMin;
+			this.attributeRangeMax = attributeRangeMax;
+			this.seqs = seqs;
+			this.instances = instances;
+			this.rangeLogSeqs = rangeLogSeqs;
+			this.rangeLogAttributes = rangeLogAttributes;
+			this.rangeLogMins = rangeLogMins;
+			this.rangeLogMaxs = rangeLogMaxs;
+		}
+	}
+
+	/**
+	 * Instances of a partition with their distances, by decreasing sequence number for skylines and by
+	 * increasing distance for queries.
+	 */
+	public static class Neighbors extends WorkerMessage {
+
+		private static final long serialVersionUID = 1L;
+
+		final long[] seqs;
+		final double[] distances;
+
+		public Neighbors(long[] seqs, double[] distances) {
+			this.seqs = seqs;
+			this.distances = distances;
+		}
+	}
+
+	public static class Ack extends WorkerMessage {
+
+		private static final long serialVersionUID = 1L;
+	}
+}
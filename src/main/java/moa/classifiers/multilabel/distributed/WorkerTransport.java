@@ -0,0 +1,34 @@
+package moa.classifiers.multilabel.distributed;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+* Delivers requests from the coordinator to the workers
+*
+* @author Alberto Cano
+*/
+
+public interface WorkerTransport extends Closeable {
+
+	int numWorkers();
+
+	/**
+	 * Sends a request to a worker and waits for its response.
+	 */
+	WorkerMessage call(int worker, WorkerMessage request) throws IOException;
+
+	/**
+	 * Sends a request to every worker and returns the responses in worker order.
+	 */
+	default List<WorkerMessage> broadcast(WorkerMessage request) throws IOException {
+		List<WorkerMessage> responses = new ArrayList<WorkerMessage>(numWorkers());
+
+		for(int worker = 0; worker < numWorkers(); worker++)
+			responses.add(call(worker, request));
+
+		return responses;
+	}
+}
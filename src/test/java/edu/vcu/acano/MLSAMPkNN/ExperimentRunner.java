@@ -0,0 +1,370 @@
+package edu.vcu.acano.MLSAMPkNN;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.yahoo.labs.samoa.instances.MultiLabelPrediction;
+
+import moa.classifiers.MultiLabelClassifier;
+import moa.core.InstanceExample;
+import moa.core.Measurement;
+import moa.core.TimingUtils;
+import moa.evaluation.PrequentialMultiLabelPerformanceEvaluator;
+import moa.options.ClassOption;
+import moa.streams.MultiTargetInstanceStream;
+
+/**
+* Runs many prequential (stream, learner) jobs concurrently on a work-stealing pool
+*
+* Usage: ExperimentRunner -jobs jobs.txt -results results.jsonl [-instances n] [-threads t] [-memory bytes]
+*        [-checkpointDir dir] [-checkpointInterval n]
+*
+* Every line of the jobs file is a stream CLI and a learner CLI separated by a tab, optionally followed by a tab
+* and the number of instances of the job. Jobs are admitted while the sum of the estimated footprints of the
+* running ones fits in the memory budget (3/4 of the maximum heap by default), a job larger than the budget
+* running alone. The footprint of MLSAMPkNN is predicted from its options and the stream header, and the other
+* learners are given an equal share of the budget. Every finished job appends a JSON line to the results file,
+* with its CPU time, throughput and quality metrics, and is skipped when the runner is started again. With a
+* checkpoint directory, the learner, stream and evaluator of every job are serialized every checkpoint interval
+* instances, and an interrupted job resumes from its last snapshot.
+*
+* @author Alberto Cano
+*/
+
+public class ExperimentRunner {
+
+	private File jobsFile;
+	private File resultsFile;
+	private int defaultInstances = 100000;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private long memoryBudget = Runtime.getRuntime().maxMemory() / 4 * 3;
+	private File checkpointDir = null;
+	private int checkpointInterval = 100000;
+
+	private long admittedBytes = 0;
+
+	/**
+	 * State of a job between instances, serialized in its snapshots.
+	 */
+	private static class JobState implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		MultiTargetInstanceStream stream;
+		MultiLabelClassifier learner;
+		PrequentialMultiLabelPerformanceEvaluator evaluator;
+		int processedInstances;
+		long cpuNanos;
+		long wallNanos;
+	}
+
+	private static class Job {
+		int index;
+		String streamCLI;
+		String learnerCLI;
+		int instances;
+
+		String key() {
+			return streamCLI + " | " + learnerCLI + " | " + instances;
+		}
+	}
+
+	public void run() throws Exception
+	{
+		List<Job> jobs = readJobs();
+		Set<String> completed = readCompletedKeys();
+
+		if(checkpointDir != null)
+			checkpointDir.mkdirs();
+
+		ExecutorService pool = Executors.newWorkStealingPool(threads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		for(Job job : jobs)
+		{
+			if(completed.contains(job.key()))
+			{
+				System.err.println("Skipping completed job " + job.index);
+				continue;
+			}
+
+			JobState state = loadSnapshot(job);
+
+			if(state == null)
+				state = createState(job);
+
+			long bytes = estimateBytes(state.learner, state.stream);
+
+			admit(bytes);
+
+			final JobState jobState = state;
+			futures.add(pool.submit(() -> {
+				try {
+					runJob(job, jobState, bytes);
+				} catch (Exception e) {
+					System.err.println("Job " + job.index + " failed: " + e);
+					e.printStackTrace();
+				} finally {
+					release(bytes);
+				}
+			}));
+		}
+
+		for(Future<?> future : futures)
+			future.get();
+
+		pool.shutdown();
+		pool.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+	private JobState createState(Job job)
+	{
+		JobState state = new JobState();
+
+		state.stream = (MultiTargetInstanceStream) createObject(job.streamCLI, MultiTargetInstanceStream.class);
+		state.stream.prepareForUse();
+
+		state.learner = (MultiLabelClassifier) createObject(job.learnerCLI, MultiLabelClassifier.class);
+		state.learner.setModelContext(state.stream.getHeader());
+		state.learner.prepareForUse();
+
+		state.evaluator = new PrequentialMultiLabelPerformanceEvaluator();
+
+		return state;
+	}
+
+	private long estimateBytes(MultiLabelClassifier learner, MultiTargetInstanceStream stream)
+	{
+		if(learner instanceof moa.classifiers.multilabel.MLSAMPkNN)
+			return ((moa.classifiers.multilabel.MLSAMPkNN) learner).predictMemoryBytes(stream.getHeader().numInputAttributes(), stream.getHeader().numOutputAttributes());
+
+		return memoryBudget / threads;
+	}
+
+	/**
+	 * Waits until the footprint of a job fits in the memory budget, or no other job is running.
+	 */
+	private synchronized void admit(long bytes) throws InterruptedException
+	{
+		while(admittedBytes > 0 && admittedBytes + bytes > memoryBudget)
+			wait();
+
+		admittedBytes += bytes;
+	}
+
+	private synchronized void release(long bytes)
+	{
+		admittedBytes -= bytes;
+		notifyAll();
+	}
+
+	private void runJob(Job job, JobState state, long estimatedBytes) throws IOException
+	{
+		TimingUtils.enablePreciseTiming();
+
+		long cpuStart = TimingUtils.getNanoCPUTimeOfCurrentThread() - state.cpuNanos;
+		long wallStart = System.nanoTime() - state.wallNanos;
+
+		while(state.stream.hasMoreInstances() && state.processedInstances < job.instances)
+		{
+			InstanceExample instance = state.stream.nextInstance();
+
+			MultiLabelPrediction prediction = (MultiLabelPrediction) state.learner.getPredictionForInstance(instance);
+
+			state.learner.trainOnInstance(instance);
+
+			state.evaluator.addResult(instance, prediction);
+
+			state.processedInstances++;
+
+			if(checkpointDir != null && state.processedInstances % checkpointInterval == 0 && state.processedInstances < job.instances)
+			{
+				state.cpuNanos = TimingUtils.getNanoCPUTimeOfCurrentThread() - cpuStart;
+				state.wallNanos = System.nanoTime() - wallStart;
+				saveSnapshot(job, state);
+			}
+		}
+
+		double cpuSeconds = TimingUtils.nanoTimeToSeconds(TimingUtils.getNanoCPUTimeOfCurrentThread() - cpuStart);
+		double wallSeconds = (System.nanoTime() - wallStart) / 1e9;
+
+		StringBuilder json = new StringBuilder();
+		json.append("{\"key\": ").append(MLSAMPkNN.quote(job.key()));
+		json.append(", \"job\": ").append(job.index);
+		json.append(", \"stream\": ").append(MLSAMPkNN.quote(job.streamCLI));
+		json.append(", \"learner\": ").append(MLSAMPkNN.quote(job.learnerCLI));
+		json.append(", \"instances\": ").append(state.processedInstances);
+		json.append(", \"cpuSeconds\": ").append(MLSAMPkNN.format(cpuSeconds));
+		json.append(", \"wallSeconds\": ").append(MLSAMPkNN.format(wallSeconds));
+		json.append(", \"instancesPerSecond\": ").append(MLSAMPkNN.format(wallSeconds > 0 ? state.processedInstances / wallSeconds : 0));
+		json.append(", \"estimatedBytes\": ").append(estimatedBytes);
+
+		for(Measurement measurement : state.evaluator.getPerformanceMeasurements())
+			json.append(", ").append(MLSAMPkNN.quote(measurement.getName())).append(": ").append(MLSAMPkNN.format(measurement.getValue()));
+
+		json.append("}\n");
+
+		appendResult(json.toString());
+
+		if(checkpointDir != null)
+			getSnapshotFile(job).delete();
+
+		System.err.println("Job " + job.index + " finished: " + state.processedInstances + " instances in " + MLSAMPkNN.format(cpuSeconds) + " CPU seconds");
+	}
+
+	private synchronized void appendResult(String line) throws IOException
+	{
+		try(Writer writer = new FileWriter(resultsFile, true))
+		{
+			writer.write(line);
+		}
+	}
+
+	private File getSnapshotFile(Job job)
+	{
+		return new File(checkpointDir, "job-" + job.index + "-" + Integer.toHexString(job.key().hashCode()) + ".ser");
+	}
+
+	/**
+	 * Writes the snapshot to a temporary file first, so that an interruption never leaves a truncated one.
+	 */
+	private void saveSnapshot(Job job, JobState state) throws IOException
+	{
+		File snapshot = getSnapshotFile(job);
+		File temporary = new File(snapshot.getPath() + ".tmp");
+
+		try(ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(temporary)))
+		{
+			out.writeObject(state);
+		}
+
+		Files.move(temporary.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private JobState loadSnapshot(Job job)
+	{
+		if(checkpointDir == null || !getSnapshotFile(job).exists())
+			return null;
+
+		try(ObjectInputStream in = new ObjectInputStream(new FileInputStream(getSnapshotFile(job))))
+		{
+			JobState state = (JobState) in.readObject();
+			System.err.println("Resuming job " + job.index + " after " + state.processedInstances + " instances");
+			return state;
+		}
+		catch(IOException | ClassNotFoundException e)
+		{
+			System.err.println("Cannot resume job " + job.index + ", starting it again: " + e);
+			return null;
+		}
+	}
+
+	private List<Job> readJobs() throws IOException
+	{
+		List<Job> jobs = new ArrayList<Job>();
+
+		for(String line : Files.readAllLines(jobsFile.toPath(), StandardCharsets.UTF_8))
+		{
+			if(line.trim().isEmpty() || line.trim().startsWith("#"))
+				continue;
+
+			String[] fields = line.split("\t");
+
+			if(fields.length < 2)
+				throw new IllegalArgumentException("Expected a stream and a learner separated by a tab: " + line);
+
+			Job job = new Job();
+			job.index = jobs.size();
+			job.streamCLI = fields[0].trim();
+			job.learnerCLI = fields[1].trim();
+			job.instances = fields.length > 2 ? Integer.parseInt(fields[2].trim()) : defaultInstances;
+			jobs.add(job);
+		}
+
+		return jobs;
+	}
+
+	/**
+	 * Returns the keys of the jobs in the results file, the first field of every line.
+	 */
+	private Set<String> readCompletedKeys() throws IOException
+	{
+		Set<String> keys = new HashSet<String>();
+
+		if(!resultsFile.exists())
+			return keys;
+
+		for(String line : Files.readAllLines(resultsFile.toPath(), StandardCharsets.UTF_8))
+		{
+			if(!line.startsWith("{\"key\": \""))
+				continue;
+
+			StringBuilder key = new StringBuilder();
+
+			for(int i = "{\"key\": \"".length(); i < line.length() && line.charAt(i) != '"'; i++)
+			{
+				if(line.charAt(i) == '\\' && i + 1 < line.length())
+					i++;
+				key.append(line.charAt(i));
+			}
+
+			keys.add(key.toString());
+		}
+
+		return keys;
+	}
+
+	private static Object createObject(String cliString, Class<?> requiredType) {
+		try {
+			return ClassOption.cliStringToObject(cliString, requiredType, null);
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Cannot create " + requiredType.getSimpleName() + " from \"" + cliString + "\"", e);
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		ExperimentRunner runner = new ExperimentRunner();
+
+		for(int i = 0; i < args.length; i++)
+		{
+			if(i + 1 == args.length)
+				throw new IllegalArgumentException("Missing value for " + args[i]);
+
+			switch(args[i])
+			{
+			case "-jobs": runner.jobsFile = new File(args[++i]); break;
+			case "-results": runner.resultsFile = new File(args[++i]); break;
+			case "-instances": runner.defaultInstances = Integer.parseInt(args[++i]); break;
+			case "-threads": runner.threads = Integer.parseInt(args[++i]); break;
+			case "-memory": runner.memoryBudget = Long.parseLong(args[++i]); break;
+			case "-checkpointDir": runner.checkpointDir = new File(args[++i]); break;
+			case "-checkpointInterval": runner.checkpointInterval = Integer.parseInt(args[++i]); break;
+			default: throw new IllegalArgumentException("Unknown argument " + args[i]);
+			}
+		}
+
+		if(runner.jobsFile == null || runner.resultsFile == null)
+			throw new IllegalArgumentException("Usage: ExperimentRunner -jobs jobs.txt -results results.jsonl [-instances n] [-threads t] [-memory bytes] [-checkpointDir dir] [-checkpointInterval n]");
+
+		runner.run();
+	}
+}
@@ -1,62 +1,268 @@
 package edu.vcu.acano.MLSAMPkNN;
 
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
 import com.yahoo.labs.samoa.instances.MultiLabelPrediction;
 
 import moa.classifiers.MultiLabelClassifier;
+import moa.classifiers.multilabel.LatencyHistogram;
 import moa.core.InstanceExample;
+import moa.core.Measurement;
 import moa.core.TimingUtils;
 import moa.evaluation.PrequentialMultiLabelPerformanceEvaluator;
+import moa.options.ClassOption;
+import moa.streams.MultiTargetInstanceStream;
 import moa.streams.generators.multilabel.MetaMultilabelGenerator;
 
+/**
+* Prequential benchmark of MLSAMPkNN
+*
+* Usage: MLSAMPkNN [-instances n] [-stream "MOA stream CLI"] [-learner "MOA learner CLI"] [-report file.json] [-progress n] [-plan]
+*
+* The stream defaults to a MetaMultilabelGenerator with 10 labels, and file-based streams are given as e.g.
+* -stream "MultiTargetArffFileStream -f data.arff -c 1-10". Repeatable runs can replay a cache written by
+* BinaryCacheWriter with -stream "BinaryCacheStream -f data.bin". Throughput, per-instance latency percentiles,
+* allocation rate, peak heap, model measurements and quality metrics are printed and written as JSON.
+* With -plan nothing is run, and the footprint predicted for the learner options and stream header is printed.
+*/
+
 public class MLSAMPkNN {
 
+	private int maximumNumberInstances = 100;
+	private String streamCLI = null;
+	private String learnerCLI = "multilabel.MLSAMPkNN";
+	private String reportFile = null;
+	private int progressInterval = 0;
+	private boolean capacityPlanning = false;
+
 	public void run(int maximumNumberInstances)
+	{
+		this.maximumNumberInstances = maximumNumberInstances;
+		run();
+	}
+
+	public void run()
 	{
 		// A. Select input for the program (A.1 Data stream generator) or (A.2 Data stream from dataset file)
-		
-		// Generator as a stream
-		MetaMultilabelGenerator stream = new MetaMultilabelGenerator();
-		stream.numLabelsOption.setValue(10);
-				
+
+		MultiTargetInstanceStream stream;
+
+		if(streamCLI == null)
+		{
+			// Generator as a stream
+			MetaMultilabelGenerator generator = new MetaMultilabelGenerator();
+			generator.numLabelsOption.setValue(10);
+			stream = generator;
+		}
+		else
+			stream = (MultiTargetInstanceStream) createObject(streamCLI, MultiTargetInstanceStream.class);
+
 		stream.prepareForUse();
 
 		// B. Setup multi-label classifier
 
-		MultiLabelClassifier learner = new moa.classifiers.multilabel.MLSAMPkNN();
-		
+		MultiLabelClassifier learner = (MultiLabelClassifier) createObject(learnerCLI, MultiLabelClassifier.class);
+
 		learner.setModelContext(stream.getHeader());
 		learner.prepareForUse();
 
+		if(capacityPlanning)
+		{
+			if(!(learner instanceof moa.classifiers.multilabel.MLSAMPkNN))
+			{
+				System.err.println("Error: -plan predicts the footprint of MLSAMPkNN only, but the learner is " + learner.getClass().getName());
+				System.err.println("Usage: MLSAMPkNN -plan [-stream \"MOA stream CLI\"] [-learner \"multilabel.MLSAMPkNN options\"]");
+				return;
+			}
+
+			int numFeatures = stream.getHeader().numInputAttributes();
+			int numLabels = stream.getHeader().numOutputAttributes();
+			long bytes = ((moa.classifiers.multilabel.MLSAMPkNN) learner).predictMemoryBytes(numFeatures, numLabels);
+			System.out.println("{\"learner\": " + quote(learnerCLI) + ", \"features\": " + numFeatures + ", \"labels\": " + numLabels + ", \"predictedBytes\": " + bytes + "}");
+			return;
+		}
+
 		int numberInstances = 0;
-		
+
 		PrequentialMultiLabelPerformanceEvaluator evaluator = new PrequentialMultiLabelPerformanceEvaluator();
 
+		LatencyHistogram latency = new LatencyHistogram();
+
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if(pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+
+		TimingUtils.enablePreciseTiming();
+
+		long allocatedStart = getAllocatedBytes();
+		long wallStartTime = System.nanoTime();
 		long evaluateStartTime = TimingUtils.getNanoCPUTimeOfCurrentThread();
-		
+
 		while (stream.hasMoreInstances() && numberInstances < maximumNumberInstances)
 		{
 			InstanceExample instance = stream.nextInstance();
-			
+
+			long instanceStartTime = System.nanoTime();
+
 			MultiLabelPrediction prediction = (MultiLabelPrediction) learner.getPredictionForInstance(instance);
-			
-			evaluator.addResult(instance, prediction);
-			
+
 			learner.trainOnInstance(instance);
 
+			latency.record(System.nanoTime() - instanceStartTime);
+
+			evaluator.addResult(instance, prediction);
+
 			numberInstances++;
+
+			if(progressInterval > 0 && numberInstances % progressInterval == 0)
+				System.err.println(numberInstances + " instances, " + (long) (numberInstances / ((System.nanoTime() - wallStartTime) / 1e9)) + " instances/s");
 		}
 
 		double time = TimingUtils.nanoTimeToSeconds(TimingUtils.getNanoCPUTimeOfCurrentThread()- evaluateStartTime);
+		double wallTime = (System.nanoTime() - wallStartTime) / 1e9;
+		long allocatedBytes = getAllocatedBytes() - allocatedStart;
+
+		long peakHeapBytes = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if(pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+				peakHeapBytes += pool.getPeakUsage().getUsed();
 
 		System.out.println(numberInstances + " instances processed in "+time+" seconds.");
-		
-		for(int i = 0; i < evaluator.getPerformanceMeasurements().length; i++)
-			System.out.println(evaluator.getPerformanceMeasurements()[i].getName() + "\t" + evaluator.getPerformanceMeasurements()[i].getValue());
+
+		Measurement[] performance = evaluator.getPerformanceMeasurements();
+
+		for(int i = 0; i < performance.length; i++)
+			System.out.println(performance[i].getName() + "\t" + performance[i].getValue());
+
+		Measurement[] model = learner.getModelMeasurements();
+
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		appendField(json, "learner", learnerCLI);
+		appendField(json, "stream", streamCLI == null ? "generators.multilabel.MetaMultilabelGenerator -c 10" : streamCLI);
+		appendField(json, "instances", numberInstances);
+		appendField(json, "cpuSeconds", time);
+		appendField(json, "wallSeconds", wallTime);
+		appendField(json, "instancesPerSecond", wallTime > 0 ? numberInstances / wallTime : 0);
+		json.append("  \"latencyNanos\": {");
+		json.append("\"mean\": ").append(format(latency.getMean()));
+		json.append(", \"p50\": ").append(latency.getValueAtPercentile(50));
+		json.append(", \"p90\": ").append(latency.getValueAtPercentile(90));
+		json.append(", \"p99\": ").append(latency.getValueAtPercentile(99));
+		json.append(", \"p99.9\": ").append(latency.getValueAtPercentile(99.9));
+		json.append(", \"max\": ").append(latency.getMax()).append("},\n");
+		appendField(json, "allocatedBytes", allocatedBytes);
+		appendField(json, "allocationBytesPerSecond", wallTime > 0 ? allocatedBytes / wallTime : 0);
+		appendField(json, "allocatedBytesPerInstance", numberInstances > 0 ? allocatedBytes / (double) numberInstances : 0);
+		appendField(json, "peakHeapBytes", peakHeapBytes);
+		appendMeasurements(json, "model", model);
+		json.append(",\n");
+		appendMeasurements(json, "quality", performance);
+		json.append("\n}\n");
+
+		System.out.print(json);
+
+		if(reportFile != null)
+		{
+			try(Writer writer = new FileWriter(reportFile))
+			{
+				writer.write(json.toString());
+			} catch (IOException e) {
+				System.err.println("Error: cannot write the report to " + reportFile);
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static Object createObject(String cliString, Class<?> requiredType) {
+		try {
+			return ClassOption.cliStringToObject(cliString, requiredType, null);
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Cannot create " + requiredType.getSimpleName() + " from \"" + cliString + "\"", e);
+		}
+	}
+
+	/**
+	 * Returns the bytes allocated by the current thread, or 0 when the JVM does not support it.
+	 */
+	private static long getAllocatedBytes() {
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+		if(threadMXBean instanceof com.sun.management.ThreadMXBean)
+		{
+			com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+
+			if(allocationMXBean.isThreadAllocatedMemorySupported() && allocationMXBean.isThreadAllocatedMemoryEnabled())
+				return allocationMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+
+		return 0;
+	}
+
+	static String format(double value) {
+		if(Double.isNaN(value) || Double.isInfinite(value))
+			return "null";
+
+		if(value == Math.rint(value) && Math.abs(value) < 1e15)
+			return Long.toString((long) value);
+
+		return String.format(Locale.ROOT, "%.6g", value);
+	}
+
+	static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	private static void appendField(StringBuilder json, String name, String value) {
+		json.append("  ").append(quote(name)).append(": ").append(quote(value)).append(",\n");
+	}
+
+	private static void appendField(StringBuilder json, String name, double value) {
+		json.append("  ").append(quote(name)).append(": ").append(format(value)).append(",\n");
+	}
+
+	private static void appendMeasurements(StringBuilder json, String name, Measurement[] measurements) {
+		json.append("  ").append(quote(name)).append(": {");
+
+		for(int i = 0; measurements != null && i < measurements.length; i++)
+			json.append(i == 0 ? "\n    " : ",\n    ").append(quote(measurements[i].getName())).append(": ").append(format(measurements[i].getValue()));
+
+		json.append("\n  }");
 	}
 
 	public static void main(String[] args) throws Exception
 	{
 		MLSAMPkNN exp = new MLSAMPkNN();
-		exp.run(100);
+
+		for(int i = 0; i < args.length; i++)
+		{
+			if(args[i].equals("-plan"))
+			{
+				exp.capacityPlanning = true;
+				continue;
+			}
+
+			if(i + 1 == args.length)
+				throw new IllegalArgumentException("Missing value for " + args[i]);
+
+			switch(args[i])
+			{
+			case "-instances": exp.maximumNumberInstances = Integer.parseInt(args[++i]); break;
+			case "-stream": exp.streamCLI = args[++i]; break;
+			case "-learner": exp.learnerCLI = args[++i]; break;
+			case "-report": exp.reportFile = args[++i]; break;
+			case "-progress": exp.progressInterval = Integer.parseInt(args[++i]); break;
+			default: throw new IllegalArgumentException("Unknown argument " + args[i]);
+			}
+		}
+
+		exp.run();
 	}
-}
\ No newline at end of file
+}
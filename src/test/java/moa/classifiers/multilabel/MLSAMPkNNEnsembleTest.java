@@ -0,0 +1,55 @@
+package moa.classifiers.multilabel;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.MultiLabelInstance;
+
+import moa.core.Measurement;
+import moa.streams.generators.multilabel.MetaMultilabelGenerator;
+
+/**
+* Checks that an MLSAMPkNNEnsemble of one member over every attribute block predicts as MLSAMPkNN, so that the
+* shared block distances do not change the neighbors, the punitive removals nor the window sizes
+*
+* @author Alberto Cano
+*/
+
+public class MLSAMPkNNEnsembleTest {
+
+	@Test
+	public void singleFullSubspaceMemberPredictsAsMLSAMPkNN() {
+
+		MetaMultilabelGenerator stream = new MetaMultilabelGenerator();
+		stream.numLabelsOption.setValue(6);
+		stream.prepareForUse();
+
+		MLSAMPkNN learner = new MLSAMPkNN();
+		learner.maxWindowSize.setValue(200);
+		learner.minWindowSize.setValue(20);
+		learner.setModelContext(stream.getHeader());
+		learner.prepareForUse();
+
+		try (MLSAMPkNNEnsemble ensemble = new MLSAMPkNNEnsemble()) {
+			ensemble.maxWindowSize.setValue(200);
+			ensemble.minWindowSize.setValue(20);
+			ensemble.ensembleSize.setValue(1);
+			ensemble.subspaceRatio.setValue(1);
+			ensemble.setModelContext(stream.getHeader());
+			ensemble.prepareForUse();
+
+			for(int i = 0; i < 2000; i++)
+			{
+				MultiLabelInstance instance = (MultiLabelInstance) stream.nextInstance().getData();
+
+				MLSAMPkNNShardedTest.assertPredictionEquals(i, learner.getPredictionForInstance(instance), ensemble.getPredictionForInstance(instance));
+
+				learner.trainOnInstanceImpl(instance);
+				ensemble.trainOnInstanceImpl(instance);
+
+				assertEquals("Instance " + i, learner.getWindow().size(), Measurement.getMeasurementNamed("largest member window size", ensemble.getModelMeasurements()).getValue(), 0);
+			}
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package moa.classifiers.multilabel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.Prediction;
+
+import moa.core.InstanceExample;
+import moa.streams.generators.multilabel.MetaMultilabelGenerator;
+
+/**
+* Checks that MLSAMPkNNHost keeps the order of the instances of every key, never runs two models of a key at once,
+* and does not leave instances pending once the host is closed or its executor refuses them
+*
+* @author Alberto Cano
+*/
+
+public class MLSAMPkNNHostTest {
+
+	private final MetaMultilabelGenerator stream = new MetaMultilabelGenerator();
+
+	private final List<MLSAMPkNN> createdModels = Collections.synchronizedList(new ArrayList<MLSAMPkNN>());
+
+	public MLSAMPkNNHostTest() {
+		stream.numLabelsOption.setValue(6);
+		stream.prepareForUse();
+	}
+
+	private MLSAMPkNN createModel(String key) {
+		MLSAMPkNN learner = new MLSAMPkNN();
+		learner.setModelContext(stream.getHeader());
+		learner.prepareForUse();
+		createdModels.add(learner);
+		return learner;
+	}
+
+	private InstanceExample nextExample() {
+		return (InstanceExample) stream.nextInstance();
+	}
+
+	/**
+	 * Records the order in which every key predicts its instances, and whether two of them ever overlap.
+	 */
+	private static final class RecordingListener implements MLSAMPkNNHost.PredictionListener<String> {
+
+		final Map<String, List<InstanceExample>> predicted = new ConcurrentHashMap<String, List<InstanceExample>>();
+		final Map<String, AtomicInteger> running = new ConcurrentHashMap<String, AtomicInteger>();
+		volatile boolean overlapped;
+		final AtomicInteger errors = new AtomicInteger();
+
+		@Override
+		public void onPrediction(String key, InstanceExample example, Prediction prediction) {
+
+			AtomicInteger active = running.computeIfAbsent(key, k -> new AtomicInteger());
+
+			if(active.incrementAndGet() > 1)
+				overlapped = true;
+
+			predicted.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<InstanceExample>())).add(example);
+
+			Thread.yield();
+			active.decrementAndGet();
+		}
+
+		@Override
+		public void onError(String key, InstanceExample example, Throwable error) {
+			errors.incrementAndGet();
+		}
+	}
+
+	@Test
+	public void keepsTheOrderOfEveryKey() throws InterruptedException {
+
+		RecordingListener listener = new RecordingListener();
+		Map<String, List<InstanceExample>> submitted = new ConcurrentHashMap<String, List<InstanceExample>>();
+
+		try (MLSAMPkNNHost<String> host = MLSAMPkNNHost.withSharedPool(this::createModel, listener, 4, 8, 3)) {
+
+			for(int i = 0; i < 600; i++)
+			{
+				String key = "stream" + (i % 5);
+				InstanceExample example = nextExample();
+
+				submitted.computeIfAbsent(key, k -> new ArrayList<InstanceExample>()).add(example);
+				host.submit(key, example);
+			}
+
+			assertTrue(host.awaitIdle(1, TimeUnit.MINUTES));
+			assertEquals(0, host.numPendingInstances());
+			assertEquals(5, host.numModels());
+		}
+
+		assertEquals(submitted, listener.predicted);
+		assertFalse(listener.overlapped);
+		assertEquals(0, listener.errors.get());
+	}
+
+	@Test
+	public void awaitIdleWaitsForTheQueuedInstances() throws InterruptedException {
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		CountDownLatch blocked = new CountDownLatch(1);
+		executor.execute(() -> awaitQuietly(blocked));
+
+		try (MLSAMPkNNHost<String> host = new MLSAMPkNNHost<String>(this::createModel, null, executor, 16, 4)) {
+
+			for(int i = 0; i < 10; i++)
+				host.submit("stream", nextExample());
+
+			assertFalse(host.awaitIdle(50, TimeUnit.MILLISECONDS));
+			assertEquals(10, host.numPendingInstances());
+
+			blocked.countDown();
+
+			assertTrue(host.awaitIdle(1, TimeUnit.MINUTES));
+			assertEquals(0, host.numPendingInstances());
+			assertEquals(10, host.getModel("stream").trainingWeightSeenByModel(), 0);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void removedModelDrainsBeforeTheNextOne() throws Exception {
+
+		RecordingListener listener = new RecordingListener();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		CountDownLatch blocked = new CountDownLatch(1);
+		executor.execute(() -> awaitQuietly(blocked));
+		executor.execute(() -> awaitQuietly(blocked));
+
+		try (MLSAMPkNNHost<String> host = new MLSAMPkNNHost<String>(this::createModel, listener, executor, 16, 2)) {
+
+			for(int i = 0; i < 5; i++)
+				host.submit("stream", nextExample());
+
+			MLSAMPkNN removed = host.removeModel("stream");
+
+			assertNull(host.getModel("stream"));
+			assertNull(host.removeModel("stream"));
+
+			// Waits for the removed model to drain, which is blocked until the latch opens
+			Thread producer = new Thread(() -> {
+				try {
+					for(int i = 0; i < 3; i++)
+						host.submit("stream", nextExample());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			producer.start();
+
+			producer.join(100);
+			assertTrue(producer.isAlive());
+
+			blocked.countDown();
+			producer.join();
+
+			assertTrue(host.awaitIdle(1, TimeUnit.MINUTES));
+
+			MLSAMPkNN current = host.getModel("stream");
+
+			assertNotSame(removed, current);
+			assertEquals(5, removed.trainingWeightSeenByModel(), 0);
+			assertEquals(3, current.trainingWeightSeenByModel(), 0);
+			assertEquals(2, createdModels.size());
+			assertEquals(1, host.numModels());
+			assertEquals(8, listener.predicted.get("stream").size());
+			assertFalse(listener.overlapped);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void closedHostRefusesInstances() throws InterruptedException {
+
+		RecordingListener listener = new RecordingListener();
+		MLSAMPkNNHost<String> host = MLSAMPkNNHost.withSharedPool(this::createModel, listener, 2, 16, 4);
+
+		for(int i = 0; i < 20; i++)
+			host.submit("stream" + (i % 2), nextExample());
+
+		host.close();
+
+		try {
+			host.submit("stream0", nextExample());
+			fail("A closed host accepted an instance");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+
+		try {
+			host.offer("stream2", nextExample(), 1, TimeUnit.SECONDS);
+			fail("A closed host accepted an instance");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+
+		assertTrue(host.awaitIdle(1, TimeUnit.MINUTES));
+		assertEquals(20, listener.predicted.get("stream0").size() + listener.predicted.get("stream1").size());
+	}
+
+	@Test
+	public void rejectedInstancesAreNotLeftPending() throws InterruptedException {
+
+		RecordingListener listener = new RecordingListener();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.shutdown();
+
+		try (MLSAMPkNNHost<String> host = new MLSAMPkNNHost<String>(this::createModel, listener, executor, 16, 4)) {
+
+			try {
+				host.submit("stream", nextExample());
+				fail("The executor was shut down");
+			} catch (RejectedExecutionException e) {
+				// Expected
+			}
+
+			assertEquals(0, host.numPendingInstances());
+			assertTrue(host.awaitIdle(0, TimeUnit.SECONDS));
+			assertEquals(1, listener.errors.get());
+		}
+	}
+
+	private static void awaitQuietly(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package moa.classifiers.multilabel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.MultiLabelInstance;
+
+import moa.core.Measurement;
+import moa.streams.generators.multilabel.MetaMultilabelGenerator;
+
+/**
+* Checks that pruning the prediction scan with pivots finds the same neighbors as the full scan, while the
+* attribute ranges grow and punished instances leave the window
+*
+* @author Alberto Cano
+*/
+
+public class MLSAMPkNNPivotTest {
+
+	@Test
+	public void findsTheNeighborsOfTheFullScan() {
+
+		MetaMultilabelGenerator stream = new MetaMultilabelGenerator();
+		// Numeric attributes only, so that the distances change noticeably with the ranges
+		stream.binaryGeneratorOption.setValueViaCLIString("generators.RandomTreeGenerator -o 0 -u 10");
+		stream.numLabelsOption.setValue(6);
+		stream.prepareForUse();
+
+		MLSAMPkNN fullScan = createLearner(stream, 0);
+		MLSAMPkNN pivots = createLearner(stream, 8);
+
+		List<Instance> expected = new ArrayList<Instance>();
+		List<Instance> actual = new ArrayList<Instance>();
+
+		for(int i = 0; i < 2000; i++)
+		{
+			MultiLabelInstance instance = (MultiLabelInstance) stream.nextInstance().getData();
+
+			// Now and then an instance outside the ranges, after which the rows cached with the older ranges cannot prune
+			if(i % 97 == 96)
+			{
+				instance = (MultiLabelInstance) instance.copy();
+
+				for(int a = 0; a < instance.numAttributes(); a++)
+					if(instance.attribute(a).isNumeric())
+						instance.setValue(a, 10 * instance.value(a));
+			}
+
+			fullScan.getPredictionForUnlabeledInstance(instance, expected);
+			pivots.getPredictionForUnlabeledInstance(instance, actual);
+
+			assertEquals("Instance " + i, expected.size(), actual.size());
+			for(int n = 0; n < expected.size(); n++)
+				assertSame("Instance " + i + ", neighbor " + n, expected.get(n), actual.get(n));
+
+			fullScan.punishNeighbors(expected, instance);
+			pivots.punishNeighbors(actual, instance);
+
+			fullScan.trainOnInstanceImpl(instance);
+			pivots.trainOnInstanceImpl(instance);
+
+			assertEquals("Instance " + i, fullScan.getWindow().size(), pivots.getWindow().size());
+		}
+
+		assertTrue(getMeasurement(pivots, "punitive removals") > 0);
+		assertTrue(getMeasurement(pivots, "pivot pruned distances") > 0);
+	}
+
+	private static MLSAMPkNN createLearner(MetaMultilabelGenerator stream, int numPivots) {
+
+		MLSAMPkNN learner = new MLSAMPkNN();
+		learner.maxWindowSize.setValue(300);
+		learner.minWindowSize.setValue(20);
+		learner.numPivots.setValue(numPivots);
+		learner.setModelContext(stream.getHeader());
+		learner.prepareForUse();
+
+		return learner;
+	}
+
+	private static double getMeasurement(MLSAMPkNN learner, String name) {
+
+		for(Measurement measurement : learner.getModelMeasurements())
+			if(measurement.getName().equals(name))
+				return measurement.getValue();
+
+		throw new IllegalArgumentException(name);
+	}
+}
@@ -0,0 +1,56 @@
+package moa.classifiers.multilabel;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.MultiLabelInstance;
+import com.yahoo.labs.samoa.instances.Prediction;
+
+import moa.streams.generators.multilabel.MetaMultilabelGenerator;
+
+/**
+* Checks that splitting the window in shards does not change the predictions nor the window sizes of MLSAMPkNN
+*
+* @author Alberto Cano
+*/
+
+public class MLSAMPkNNShardedTest {
+
+	@Test
+	public void predictsAsTheUnshardedLearner() {
+
+		MetaMultilabelGenerator stream = new MetaMultilabelGenerator();
+		stream.numLabelsOption.setValue(6);
+		stream.prepareForUse();
+
+		MLSAMPkNN learner = new MLSAMPkNN();
+		learner.maxWindowSize.setValue(200);
+		learner.minWindowSize.setValue(20);
+		learner.setModelContext(stream.getHeader());
+		learner.prepareForUse();
+
+		try (MLSAMPkNNSharded sharded = new MLSAMPkNNSharded()) {
+			sharded.maxWindowSize.setValue(200);
+			sharded.minWindowSize.setValue(20);
+			sharded.numShards.setValue(3);
+			sharded.setModelContext(stream.getHeader());
+			sharded.prepareForUse();
+
+			for(int i = 0; i < 1500; i++)
+			{
+				MultiLabelInstance instance = (MultiLabelInstance) stream.nextInstance().getData();
+
+				assertPredictionEquals(i, learner.getPredictionForInstance(instance), sharded.getPredictionForInstance(instance));
+
+				learner.trainOnInstanceImpl(instance);
+				sharded.trainOnInstanceImpl(instance);
+			}
+		}
+	}
+
+	static void assertPredictionEquals(int i, Prediction expected, Prediction actual) {
+		for(int j = 0; j < expected.numOutputAttributes(); j++)
+			assertArrayEquals("Instance " + i + ", label " + j, expected.getVotes(j), actual.getVotes(j), 0);
+	}
+}
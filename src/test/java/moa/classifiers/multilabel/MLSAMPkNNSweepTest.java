@@ -0,0 +1,147 @@
+package moa.classifiers.multilabel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.MultiLabelInstance;
+import com.yahoo.labs.samoa.instances.Prediction;
+
+import moa.core.Measurement;
+import moa.streams.generators.multilabel.MetaMultilabelGenerator;
+
+/**
+* Checks that the members of MLSAMPkNNSweep keep the windows of standalone MLSAMPkNN runs of their configurations,
+* and that every member is scored once per instance trained on
+*
+* @author Alberto Cano
+*/
+
+public class MLSAMPkNNSweepTest {
+
+	private static final int[] K_VALUES = {3, 5};
+
+	private static final double[] PENALTY_VALUES = {1, 0.5};
+
+	private static MLSAMPkNNSweep createSweep(MetaMultilabelGenerator stream) {
+		MLSAMPkNNSweep sweep = new MLSAMPkNNSweep();
+		sweep.kValues.setValue("3,5");
+		sweep.penaltyValues.setValue("1,0.5");
+		sweep.maxWindowSize.setValue(200);
+		sweep.minWindowSize.setValue(20);
+		sweep.setModelContext(stream.getHeader());
+		sweep.prepareForUse();
+		return sweep;
+	}
+
+	@Test
+	public void membersKeepTheWindowsOfStandaloneRuns() {
+
+		MetaMultilabelGenerator stream = new MetaMultilabelGenerator();
+		stream.numLabelsOption.setValue(6);
+		stream.prepareForUse();
+
+		MLSAMPkNNSweep sweep = createSweep(stream);
+
+		MLSAMPkNN[] learners = new MLSAMPkNN[K_VALUES.length * PENALTY_VALUES.length];
+		double[] sumSubsetAccuracy = new double[learners.length];
+
+		for(int k = 0; k < K_VALUES.length; k++)
+		{
+			for(int p = 0; p < PENALTY_VALUES.length; p++)
+			{
+				MLSAMPkNN learner = new MLSAMPkNN();
+				learner.kOption.setValue(K_VALUES[k]);
+				learner.penalty.setValue(PENALTY_VALUES[p]);
+				learner.maxWindowSize.setValue(200);
+				learner.minWindowSize.setValue(20);
+				learner.setModelContext(stream.getHeader());
+				learner.prepareForUse();
+				learners[k * PENALTY_VALUES.length + p] = learner;
+			}
+		}
+
+		MLSAMPkNN[] members = sweep.getMembers();
+		int numInstances = 2000;
+
+		for(int i = 0; i < numInstances; i++)
+		{
+			MultiLabelInstance instance = (MultiLabelInstance) stream.nextInstance().getData();
+
+			sweep.getPredictionForInstance(instance);
+
+			for(int m = 0; m < learners.length; m++)
+			{
+				Prediction prediction = learners[m].getPredictionForInstance(instance);
+
+				int correct = 0;
+				for(int j = 0; j < instance.numOutputAttributes(); j++)
+					correct += (int) instance.classValue(j) == (prediction.getVote(j, 1) >= 0.5 ? 1 : 0) ? 1 : 0;
+
+				sumSubsetAccuracy[m] += correct == instance.numOutputAttributes() ? 1 : 0;
+			}
+
+			sweep.trainOnInstanceImpl(instance);
+
+			for(int m = 0; m < learners.length; m++)
+			{
+				learners[m].trainOnInstanceImpl(instance);
+				assertEquals("Instance " + i + ", member " + m, learners[m].getWindow(), members[m].getWindow());
+			}
+		}
+
+		Measurement[] measurements = sweep.getModelMeasurements();
+
+		for(int k = 0; k < K_VALUES.length; k++)
+		{
+			for(int p = 0; p < PENALTY_VALUES.length; p++)
+			{
+				String configuration = "k = " + K_VALUES[k] + ", penalty = " + (p == 0 ? "1" : "0.5") + ", reduction ratio = 0.5, metric = Subset Accuracy";
+				double subsetAccuracy = Measurement.getMeasurementNamed("[" + configuration + "] subset accuracy", measurements).getValue();
+
+				assertEquals(configuration, sumSubsetAccuracy[k * PENALTY_VALUES.length + p] / numInstances, subsetAccuracy, 1e-12);
+			}
+		}
+	}
+
+	@Test
+	public void scoresOnlyThePredictionsTrainedOn() {
+
+		MetaMultilabelGenerator stream = new MetaMultilabelGenerator();
+		stream.numLabelsOption.setValue(6);
+		stream.prepareForUse();
+
+		MLSAMPkNNSweep sweep = createSweep(stream);
+
+		for(int i = 0; i < 500; i++)
+		{
+			MultiLabelInstance instance = (MultiLabelInstance) stream.nextInstance().getData();
+
+			sweep.getPredictionForInstance(instance);
+			sweep.trainOnInstanceImpl(instance);
+		}
+
+		double[] scores = getScores(sweep);
+
+		// Neither predictions without training nor training without prediction are scored
+		for(int i = 0; i < 100; i++)
+			sweep.getPredictionForInstance((MultiLabelInstance) stream.nextInstance().getData());
+
+		sweep.trainOnInstanceImpl((MultiLabelInstance) stream.nextInstance().getData());
+
+		assertArrayEquals(scores, getScores(sweep), 0);
+	}
+
+	private static double[] getScores(MLSAMPkNNSweep sweep) {
+
+		Measurement[] measurements = sweep.getModelMeasurements();
+		double[] scores = new double[measurements.length];
+
+		for(int i = 0; i < measurements.length; i++)
+			if(measurements[i].getName().endsWith("subset accuracy") || measurements[i].getName().endsWith("hamming score"))
+				scores[i] = measurements[i].getValue();
+
+		return scores;
+	}
+}
@@ -0,0 +1,98 @@
+package moa.classifiers.multilabel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.MultiLabelInstance;
+
+import moa.core.Measurement;
+import moa.streams.generators.multilabel.MetaMultilabelGenerator;
+
+/**
+* Checks that the prediction histories of MLSAMPkNN, kept up to date incrementally through punitive removals
+* and window cuts, are the histories built from the scratch over the same window
+*
+* @author Alberto Cano
+*/
+
+public class PredictionHistoryTest {
+
+	@Test
+	public void incrementalHistoriesEqualRebuiltOnes() {
+		checkHistories(false);
+	}
+
+	@Test
+	public void incrementalHistoriesByKEqualRebuiltOnes() {
+		checkHistories(true);
+	}
+
+	private static void checkHistories(boolean adaptiveK) {
+
+		MetaMultilabelGenerator stream = createStream(1);
+		// The concept changes every 500 instances, so that the window is cut
+		MetaMultilabelGenerator drifted = createStream(2);
+
+		MLSAMPkNN learner = new MLSAMPkNN();
+		learner.kOption.setValue(5);
+		learner.adaptiveK.setValue(adaptiveK);
+		// Never full, so that instances only leave the window by punitive removals and cuts
+		learner.maxWindowSize.setValue(5000);
+		learner.minWindowSize.setValue(10);
+		learner.setModelContext(stream.getHeader());
+		learner.prepareForUse();
+
+		for(int i = 0; i < 2000; i++)
+		{
+			MultiLabelInstance instance = (MultiLabelInstance) ((i / 500) % 2 == 0 ? stream : drifted).nextInstance().getData();
+
+			learner.getPredictionForInstance(instance);
+			learner.trainOnInstanceImpl(instance);
+
+			for(Map.Entry<Integer, PredictionHistory> entry : learner.getPredictionHistories().entrySet())
+			{
+				PredictionHistory history = entry.getValue();
+				PredictionHistory rebuilt = learner.rebuildPredictionHistory(entry.getKey());
+
+				// Histories are only extended when the window size is evaluated
+				assertTrue("Instance " + i + ", start " + entry.getKey(), history.size() <= rebuilt.size());
+
+				for(int row = 0; row < history.size(); row++)
+				{
+					assertEquals("Instance " + i + ", start " + entry.getKey() + ", row " + row, rebuilt.getSum(row), history.getSum(row));
+
+					if(adaptiveK)
+						for(int k = 1; k <= Math.min(5, row); k++)
+							assertEquals("Instance " + i + ", start " + entry.getKey() + ", row " + row + ", k " + k, rebuilt.getSum(row, k), history.getSum(row, k));
+				}
+			}
+		}
+
+		assertTrue(getMeasurement(learner, "punitive removals") > 0);
+		assertTrue(getMeasurement(learner, "window size cuts") > 0);
+	}
+
+	private static MetaMultilabelGenerator createStream(int seed) {
+
+		MetaMultilabelGenerator stream = new MetaMultilabelGenerator();
+		stream.binaryGeneratorOption.setValueViaCLIString("generators.RandomTreeGenerator -r " + seed);
+		stream.metaRandomSeedOption.setValue(seed);
+		stream.numLabelsOption.setValue(6);
+		stream.prepareForUse();
+
+		return stream;
+	}
+
+	private static double getMeasurement(MLSAMPkNN learner, String name) {
+
+		for(Measurement measurement : learner.getModelMeasurements())
+			if(measurement.getName().equals(name))
+				return measurement.getValue();
+
+		throw new IllegalArgumentException(name);
+	}
+}
@@ -0,0 +1,100 @@
+package moa.classifiers.multilabel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.MultiLabelInstance;
+import com.yahoo.labs.samoa.instances.Prediction;
+
+import moa.streams.generators.multilabel.MetaMultilabelGenerator;
+
+/**
+* Checks that the window instances of QuantizedFeatureStore keep their values while slots are released and
+* reused, and that reduced-precision learners predict as the full-precision one
+*
+* @author Alberto Cano
+*/
+
+public class QuantizedFeatureStoreTest {
+
+	@Test
+	public void storedInstancesKeepTheirValues() {
+
+		MetaMultilabelGenerator stream = new MetaMultilabelGenerator();
+		stream.numLabelsOption.setValue(6);
+		stream.prepareForUse();
+
+		QuantizedFeatureStore store = new QuantizedFeatureStore(QuantizedFeatureStore.Precision.INT8, stream.getHeader().numInputAttributes());
+		List<Instance> expected = new ArrayList<Instance>();
+		List<Instance> window = new ArrayList<Instance>();
+		Random random = new Random(1);
+
+		for(int i = 0; i < 2000; i++)
+		{
+			Instance instance = stream.nextInstance().getData();
+			expected.add(instance);
+			window.add(store.add(instance));
+
+			if(random.nextInt(3) == 0)
+			{
+				int idx = random.nextInt(window.size());
+				expected.remove(idx);
+				window.remove(idx);
+				store.remove(idx);
+			}
+
+			if(random.nextInt(50) == 0)
+			{
+				int count = random.nextInt(window.size() + 1);
+				expected.subList(0, count).clear();
+				window.subList(0, count).clear();
+				store.removeRange(0, count);
+			}
+
+			assertEquals(window.size(), store.size());
+
+			for(int w = 0; w < window.size(); w++)
+				assertArrayEquals("Instance " + i + ", position " + w, expected.get(w).toDoubleArray(), window.get(w).toDoubleArray(), 0);
+		}
+	}
+
+	@Test
+	public void predictsAsFullPrecision() {
+
+		MetaMultilabelGenerator stream = new MetaMultilabelGenerator();
+		stream.numLabelsOption.setValue(6);
+		stream.prepareForUse();
+
+		MLSAMPkNN[] learners = new MLSAMPkNN[3];
+
+		for(int l = 0; l < learners.length; l++)
+		{
+			learners[l] = new MLSAMPkNN();
+			learners[l].maxWindowSize.setValue(200);
+			learners[l].minWindowSize.setValue(20);
+			learners[l].featurePrecision.setChosenIndex(l);
+			learners[l].setModelContext(stream.getHeader());
+			learners[l].prepareForUse();
+		}
+
+		for(int i = 0; i < 1500; i++)
+		{
+			MultiLabelInstance instance = (MultiLabelInstance) stream.nextInstance().getData();
+
+			Prediction expected = learners[0].getPredictionForInstance(instance);
+
+			for(int l = 1; l < learners.length; l++)
+				MLSAMPkNNShardedTest.assertPredictionEquals(i, expected, learners[l].getPredictionForInstance(instance));
+
+			for(MLSAMPkNN learner : learners)
+				learner.trainOnInstanceImpl(instance);
+		}
+	}
+}
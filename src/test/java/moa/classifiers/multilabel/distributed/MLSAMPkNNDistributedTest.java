@@ -0,0 +1,98 @@
+package moa.classifiers.multilabel.distributed;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.MultiLabelInstance;
+import com.yahoo.labs.samoa.instances.Prediction;
+
+import moa.classifiers.multilabel.MLSAMPkNN;
+import moa.core.Measurement;
+import moa.streams.generators.multilabel.MetaMultilabelGenerator;
+
+/**
+* Checks that partitioning the window across workers does not change the predictions nor the window sizes of
+* MLSAMPkNN, and that a copy of MLSAMPkNNDistributed restores the partitions of its workers
+*
+* @author Alberto Cano
+*/
+
+public class MLSAMPkNNDistributedTest {
+
+	@Test
+	public void predictsAsMLSAMPkNN() {
+
+		MetaMultilabelGenerator stream = new MetaMultilabelGenerator();
+		stream.numLabelsOption.setValue(6);
+		stream.prepareForUse();
+
+		MLSAMPkNN learner = new MLSAMPkNN();
+		learner.maxWindowSize.setValue(150);
+		learner.minWindowSize.setValue(20);
+		learner.setModelContext(stream.getHeader());
+		learner.prepareForUse();
+
+		MLSAMPkNNDistributed distributed = new MLSAMPkNNDistributed();
+		distributed.maxWindowSize.setValue(150);
+		distributed.minWindowSize.setValue(20);
+		distributed.numWorkers.setValue(3);
+		distributed.setModelContext(stream.getHeader());
+		distributed.prepareForUse();
+
+		for(int i = 0; i < 3000; i++)
+		{
+			MultiLabelInstance instance = (MultiLabelInstance) stream.nextInstance().getData();
+
+			assertPredictionEquals(i, learner.getPredictionForInstance(instance), distributed.getPredictionForInstance(instance));
+
+			learner.trainOnInstanceImpl(instance);
+			distributed.trainOnInstanceImpl(instance);
+		}
+
+		Measurement[] expected = learner.getModelMeasurements();
+		Measurement[] actual = distributed.getModelMeasurements();
+
+		assertTrue(Measurement.getMeasurementNamed("punitive removals", expected).getValue() > 0);
+
+		for(String name : new String[]{"window size", "punitive removals", "window size cuts"})
+			assertEquals(name, Measurement.getMeasurementNamed(name, expected).getValue(), Measurement.getMeasurementNamed(name, actual).getValue(), 0);
+	}
+
+	@Test
+	public void copyPredictsAsTheOriginal() {
+
+		MetaMultilabelGenerator stream = new MetaMultilabelGenerator();
+		stream.numLabelsOption.setValue(6);
+		stream.prepareForUse();
+
+		MLSAMPkNNDistributed learner = new MLSAMPkNNDistributed();
+		learner.maxWindowSize.setValue(150);
+		learner.minWindowSize.setValue(20);
+		learner.numWorkers.setValue(3);
+		learner.setModelContext(stream.getHeader());
+		learner.prepareForUse();
+
+		for(int i = 0; i < 500; i++)
+			learner.trainOnInstanceImpl((MultiLabelInstance) stream.nextInstance().getData());
+
+		MLSAMPkNNDistributed copy = (MLSAMPkNNDistributed) learner.copy();
+
+		for(int i = 0; i < 1000; i++)
+		{
+			MultiLabelInstance instance = (MultiLabelInstance) stream.nextInstance().getData();
+
+			assertPredictionEquals(i, learner.getPredictionForInstance(instance), copy.getPredictionForInstance(instance));
+
+			learner.trainOnInstanceImpl(instance);
+			copy.trainOnInstanceImpl(instance);
+		}
+	}
+
+	private static void assertPredictionEquals(int i, Prediction expected, Prediction actual) {
+		for(int j = 0; j < expected.numOutputAttributes(); j++)
+			assertArrayEquals("Instance " + i + ", label " + j, expected.getVotes(j), actual.getVotes(j), 0);
+	}
+}
@@ -1,5 +1,7 @@
 package moa.evaluation;
 
+import java.util.List;
+
 import com.github.javacliparser.FloatOption;
 import com.yahoo.labs.samoa.instances.Instance;
 import com.yahoo.labs.samoa.instances.MultiLabelInstance;
@@ -8,9 +10,15 @@ import com.yahoo.labs.samoa.instances.Prediction;
 import moa.AbstractMOAObject;
 import moa.core.Example;
 import moa.core.Measurement;
-import moa.core.Utils;
 import moa.evaluation.MultiTargetPerformanceEvaluator;
 
+/**
+ * Faded prequential multi-label evaluator.
+ *
+ * The per-label counts are faded lazily: they are stored divided by a global scale factor, which is multiplied by
+ * alpha on every instance, and folded back into the counts only before it underflows. The ratios computed from
+ * them do not depend on the scale. Measurements are cached until the next result is added.
+ */
 public class PrequentialMultiLabelPerformanceEvaluator extends AbstractMOAObject implements MultiTargetPerformanceEvaluator {
 
     protected int L;
@@ -22,6 +30,13 @@ public class PrequentialMultiLabelPerformanceEvaluator extends AbstractMOAObject
     private double[] sumFP;
     private double[] sumFN;
 
+    /** the faded per-label counts are sumTP, sumFP and sumFN times this factor */
+    private double labelScale;
+
+    private static final double MIN_LABEL_SCALE = 1e-100;
+
+    private Measurement[] measurements;
+
     private double sumExamplePrecision, sumExampleRecall, sumExampleAccuracy;
     private double microPrecision, microRecall, microFScore;
     private double macroPrecision, macroRecall, macroFScore;
@@ -43,6 +58,16 @@ public class PrequentialMultiLabelPerformanceEvaluator extends AbstractMOAObject
         sumExampleRecall = 0;
 		alpha = alphaOption.getValue();
 		b = 0;
+        labelScale = 1;
+        measurements = null;
+    }
+
+    /**
+     * Adds the predictions of a batch of examples, in order.
+     */
+    public void addResults(List<? extends Example<Instance>> examples, List<? extends Prediction> predictions) {
+        for (int i = 0; i < examples.size(); i++)
+            addResult(examples.get(i), predictions.get(i));
     }
 
     public void addResult(Example<Instance> example, Prediction y) {
@@ -61,6 +86,21 @@ public class PrequentialMultiLabelPerformanceEvaluator extends AbstractMOAObject
             System.err.println("[WARNING] Only "+y.numOutputAttributes()+" labels found! (Expecting "+x.numOutputAttributes()+")\n (Ignoring this prediction)");
         }
         else {
+            measurements = null;
+
+            labelScale *= alpha;
+
+            if (labelScale < MIN_LABEL_SCALE) {
+                for (int j = 0; j < L; j++) {
+                    sumTP[j] *= labelScale;
+                    sumFN[j] *= labelScale;
+                    sumFP[j] *= labelScale;
+                }
+                labelScale = 1;
+            }
+
+            double increment = 1 / labelScale;
+
             int correct = 0;
             double cur_tp = 0;
             double cur_fp = 0;
@@ -71,15 +111,15 @@ public class PrequentialMultiLabelPerformanceEvaluator extends AbstractMOAObject
                 int y_true = (int) x.classValue(j); // actual label
 
                 //True Positive if 1 and predicted 1:
-                sumTP[j] = sumTP[j] * alpha + ((y_true == 1 && yp == 1) ? 1 : 0);
+                if (y_true == 1 && yp == 1) sumTP[j] += increment;
                 cur_tp   += (y_true == 1 && yp == 1) ? 1 : 0;   //for example-based
                 
                 //False Negative if 1 and predicted 0:
-                sumFN[j] = sumFN[j] * alpha + ((y_true == 1 && yp == 0) ? 1 : 0);
+                if (y_true == 1 && yp == 0) sumFN[j] += increment;
                 cur_fn   += (y_true == 1 && yp == 0) ? 1 : 0;   //for example-based
 
                 //False Positive if 0 and predicted 1:
-                sumFP[j] =  sumFP[j] * alpha + ((y_true == 0 && yp == 1) ? 1 : 0);
+                if (y_true == 0 && yp == 1) sumFP[j] += increment;
                 cur_fp   += (y_true == 0 && yp == 1) ? 1 : 0;   //for example-based
 
                 correct  += (y_true == yp) ? 1 : 0;
@@ -143,34 +183,37 @@ public class PrequentialMultiLabelPerformanceEvaluator extends AbstractMOAObject
     }
 
     private double getMacroPrecision(double[] tp, double[] fp){
-        double[] macro_precision = tp.clone();
+        double macro_precision = 0.0;
         for (int i = 0; i < L; i++) {
             double denom = tp[i] + fp[i];
 
-            if(denom == 0.0)
-                macro_precision[i] = 0.0;
-            else
-                macro_precision[i] = tp[i] / (tp[i] + fp[i]);
+            if(denom != 0.0)
+                macro_precision += tp[i] / denom;
         }
 
-        return Utils.sum(macro_precision) / L;
+        return macro_precision / L;
     }
 
     private double getMacroRecall(double[] tp, double[] fn){
-        double[] macro_recall = tp.clone();
+        double macro_recall = 0.0;
         for (int i = 0; i < L; i++) {
             double denom = tp[i] + fn[i];
 
-            if(denom == 0.0)
-                macro_recall[i] = 0.0;
-            else
-                macro_recall[i] = tp[i] / (tp[i] + fn[i]);
+            if(denom != 0.0)
+                macro_recall += tp[i] / denom;
         }
 
-        return Utils.sum(macro_recall) / L;
+        return macro_recall / L;
     }
 
     public Measurement[] getPerformanceMeasurements() {
+        if (measurements == null)
+            measurements = computePerformanceMeasurements();
+
+        return measurements.clone();
+    }
+
+    private Measurement[] computePerformanceMeasurements() {
         double examplePrecision = sumExamplePrecision / b;
         double exampleRecall = sumExampleRecall / b;
         double exampleFScore = (examplePrecision + exampleRecall) > 0 ? 2.0 * examplePrecision * exampleRecall / (examplePrecision + exampleRecall) : 0;
@@ -0,0 +1,183 @@
+package moa.streams;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import com.github.javacliparser.FileOption;
+import com.yahoo.labs.samoa.instances.DenseInstance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+
+import moa.core.InstanceExample;
+import moa.core.ObjectRepository;
+import moa.options.AbstractOptionHandler;
+import moa.tasks.TaskMonitor;
+
+/**
+* Replays a binary cache file written by BinaryCacheWriter
+*
+* The features and labels sections are memory-mapped, in segments of whole rows of up to 1 GB, so instances are
+* read without parsing or random numbers, and several JVMs replaying the same file share it in the page cache.
+* Instances are dense, with unit weight.
+*
+* @author Alberto Cano
+*/
+
+public class BinaryCacheStream extends AbstractOptionHandler implements MultiTargetInstanceStream {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final long SEGMENT_BYTES = 1L << 30;
+
+	public FileOption cacheFileOption = new FileOption("cacheFile", 'f', "Binary cache file to replay.", null, "bin", false);
+
+	private InstancesHeader header;
+	private long numInstances;
+	private int numLabels;
+	private int numFeatures;
+	private int labelWords;
+
+	private transient MappedByteBuffer[] featureSegments;
+	private transient MappedByteBuffer[] labelSegments;
+	private int rowsPerFeatureSegment;
+	private int rowsPerLabelSegment;
+
+	private long nextRow;
+
+	@Override
+	protected void prepareForUseImpl(TaskMonitor monitor, ObjectRepository repository) {
+
+		try(FileChannel channel = FileChannel.open(cacheFileOption.getFile().toPath(), StandardOpenOption.READ))
+		{
+			ByteBuffer preamble = ByteBuffer.allocate(BinaryCacheWriter.PREAMBLE_BYTES);
+			while(preamble.hasRemaining() && channel.read(preamble) >= 0);
+			preamble.flip();
+
+			if(preamble.remaining() < BinaryCacheWriter.PREAMBLE_BYTES || preamble.getInt() != BinaryCacheWriter.MAGIC)
+				throw new IllegalArgumentException(cacheFileOption.getFile() + " is not a binary cache file");
+
+			int version = preamble.getInt();
+			if(version != BinaryCacheWriter.VERSION)
+				throw new IllegalArgumentException("Unsupported binary cache version " + version);
+
+			numInstances = preamble.getLong();
+			numLabels = preamble.getInt();
+			numFeatures = preamble.getInt();
+			labelWords = (numLabels + 63) >>> 6;
+			int headerBytes = preamble.getInt();
+
+			ByteBuffer serializedHeader = ByteBuffer.allocate(headerBytes);
+			while(serializedHeader.hasRemaining() && channel.read(serializedHeader) >= 0);
+
+			try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializedHeader.array())))
+			{
+				header = (InstancesHeader) in.readObject();
+			}
+
+			long featuresOffset = BinaryCacheWriter.dataOffset(headerBytes);
+			long labelsOffset = featuresOffset + numInstances * numFeatures * 8;
+
+			rowsPerFeatureSegment = rowsPerSegment(8L * numFeatures);
+			rowsPerLabelSegment = rowsPerSegment(8L * labelWords);
+			featureSegments = map(channel, featuresOffset, 8L * numFeatures, rowsPerFeatureSegment);
+			labelSegments = map(channel, labelsOffset, 8L * labelWords, rowsPerLabelSegment);
+		}
+		catch(IOException | ClassNotFoundException e)
+		{
+			throw new RuntimeException("Cannot open the binary cache " + cacheFileOption.getFile(), e);
+		}
+
+		restart();
+	}
+
+	/**
+	 * Maps the file again, resuming at the same row.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+
+		long row = nextRow;
+		prepareForUseImpl(null, null);
+		nextRow = row;
+	}
+
+	private int rowsPerSegment(long rowBytes) {
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, SEGMENT_BYTES / Math.max(1, rowBytes)));
+	}
+
+	private MappedByteBuffer[] map(FileChannel channel, long offset, long rowBytes, int rowsPerSegment) throws IOException {
+
+		MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((numInstances + rowsPerSegment - 1) / rowsPerSegment)];
+
+		for(int s = 0; s < segments.length; s++)
+		{
+			long rows = Math.min(rowsPerSegment, numInstances - (long) s * rowsPerSegment);
+			segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, offset + (long) s * rowsPerSegment * rowBytes, rows * rowBytes);
+		}
+
+		return segments;
+	}
+
+	@Override
+	public InstanceExample nextInstance() {
+
+		double[] values = new double[numLabels + numFeatures];
+
+		MappedByteBuffer labels = labelSegments[(int) (nextRow / rowsPerLabelSegment)];
+		int labelPosition = (int) (nextRow % rowsPerLabelSegment) * labelWords * 8;
+
+		for(int w = 0; w < labelWords; w++)
+			for(long bits = labels.getLong(labelPosition + 8 * w); bits != 0; bits &= bits - 1)
+				values[(w << 6) + Long.numberOfTrailingZeros(bits)] = 1;
+
+		MappedByteBuffer features = featureSegments[(int) (nextRow / rowsPerFeatureSegment)];
+		int featurePosition = (int) (nextRow % rowsPerFeatureSegment) * numFeatures * 8;
+
+		for(int i = 0; i < numFeatures; i++)
+			values[numLabels + i] = features.getDouble(featurePosition + 8 * i);
+
+		nextRow++;
+
+		DenseInstance instance = new DenseInstance(1, values);
+		instance.setDataset(header);
+		return new InstanceExample(instance);
+	}
+
+	@Override
+	public InstancesHeader getHeader() {
+		return header;
+	}
+
+	@Override
+	public long estimatedRemainingInstances() {
+		return numInstances - nextRow;
+	}
+
+	@Override
+	public boolean hasMoreInstances() {
+		return nextRow < numInstances;
+	}
+
+	@Override
+	public boolean isRestartable() {
+		return true;
+	}
+
+	@Override
+	public void restart() {
+		nextRow = 0;
+	}
+
+	@Override
+	public String getPurposeString() {
+		return "Replays a multi-label stream from a memory-mapped binary cache file.";
+	}
+
+	@Override
+	public void getDescription(StringBuilder sb, int indent) {
+	}
+}
@@ -0,0 +1,88 @@
+package moa.streams;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.Instances;
+
+import moa.streams.generators.multilabel.MetaMultilabelGenerator;
+
+/**
+* Checks that BinaryCacheStream replays the instances written by BinaryCacheWriter, also after a restart and
+* from a copy made halfway
+*
+* The generated instances are kept and written from memory, since MetaMultilabelGenerator shuffles the labels
+* without its seed, and a second generator would not repeat them.
+*
+* @author Alberto Cano
+*/
+
+public class BinaryCacheStreamTest {
+
+	private static final int NUM_INSTANCES = 1000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void replaysTheWrittenInstances() throws IOException {
+
+		MetaMultilabelGenerator stream = new MetaMultilabelGenerator();
+		stream.numLabelsOption.setValue(6);
+		stream.prepareForUse();
+
+		Instances instances = new Instances(stream.getHeader(), NUM_INSTANCES);
+		for(int i = 0; i < NUM_INSTANCES; i++)
+			instances.add(stream.nextInstance().getData());
+
+		File file = folder.newFile("stream.bin");
+
+		// One instance more is asked for than there are, so the count is the one of the instances written
+		assertEquals(NUM_INSTANCES, BinaryCacheWriter.write(new CachedInstancesStream(instances), NUM_INSTANCES + 1, file));
+
+		BinaryCacheStream cache = new BinaryCacheStream();
+		cache.cacheFileOption.setValue(file.getPath());
+		cache.prepareForUse();
+
+		assertEquals(stream.getHeader().numAttributes(), cache.getHeader().numAttributes());
+		assertEquals(stream.getHeader().numOutputAttributes(), cache.getHeader().numOutputAttributes());
+		assertEquals(NUM_INSTANCES, cache.estimatedRemainingInstances());
+
+		BinaryCacheStream copy = null;
+
+		for(int i = 0; i < NUM_INSTANCES; i++)
+		{
+			if(i == NUM_INSTANCES / 2)
+				copy = (BinaryCacheStream) cache.copy();
+
+			assertTrue(cache.hasMoreInstances());
+			assertInstanceEquals(i, instances.instance(i), cache.nextInstance().getData());
+		}
+
+		assertFalse(cache.hasMoreInstances());
+
+		// The copy resumes at the row it was made at, mapping the file again
+		for(int i = NUM_INSTANCES / 2; i < NUM_INSTANCES; i++)
+			assertInstanceEquals(i, instances.instance(i), copy.nextInstance().getData());
+
+		assertFalse(copy.hasMoreInstances());
+
+		cache.restart();
+		assertInstanceEquals(0, instances.instance(0), cache.nextInstance().getData());
+	}
+
+	private static void assertInstanceEquals(int i, Instance expected, Instance actual) {
+		assertEquals("Instance " + i, 1, actual.weight(), 0);
+		assertArrayEquals("Instance " + i, expected.toDoubleArray(), actual.toDoubleArray(), 0);
+	}
+}
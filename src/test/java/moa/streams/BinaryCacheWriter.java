@@ -0,0 +1,170 @@
+package moa.streams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+
+import moa.options.ClassOption;
+
+/**
+* Drains a multi-label stream into a binary cache file, replayed by BinaryCacheStream
+*
+* Usage: BinaryCacheWriter -instances n -output file.bin [-stream "MOA stream CLI"]
+*
+* Layout, big-endian: magic, version, number of instances (long), number of labels, number of features, length of
+* the serialized header and the header itself, padded to 8 bytes. Then the features section, with the input
+* attributes of every instance as doubles, row after row, and the labels section, with the label set of every
+* instance as a bitset of (labels + 63) / 64 longs. The labels must be the first attributes of the header, as in
+* MEKA, and have values 0 or 1. Sparse instances are stored dense.
+*
+* @author Alberto Cano
+*/
+
+public class BinaryCacheWriter {
+
+	public static final int MAGIC = 0x4D4C4243; // "MLBC"
+	public static final int VERSION = 1;
+
+	/** Bytes of the fixed fields before the serialized header */
+	public static final int PREAMBLE_BYTES = 4 + 4 + 8 + 4 + 4 + 4;
+
+	private static final int BUFFER_BYTES = 1 << 20;
+
+	/**
+	 * Writes the header and the next instances of the stream, up to the given number or until it has no more,
+	 * and returns the number of instances written.
+	 */
+	public static long write(InstanceStream stream, long maximumNumberInstances, File file) throws IOException
+	{
+		InstancesHeader header = stream.getHeader();
+		int numLabels = header.numOutputAttributes();
+		int numFeatures = header.numInputAttributes();
+		int labelWords = (numLabels + 63) >>> 6;
+
+		ByteArrayOutputStream serializedHeader = new ByteArrayOutputStream();
+		try(ObjectOutputStream out = new ObjectOutputStream(serializedHeader))
+		{
+			out.writeObject(header);
+		}
+
+		// The labels are written to a temporary file, and appended after the features section
+		Path labelsFile = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), file.getName(), ".labels");
+
+		long numInstances = 0;
+
+		try(FileChannel features = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			FileChannel labels = FileChannel.open(labelsFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE))
+		{
+			int dataOffset = dataOffset(serializedHeader.size());
+
+			ByteBuffer preamble = ByteBuffer.allocate(dataOffset);
+			preamble.putInt(MAGIC).putInt(VERSION).putLong(0).putInt(numLabels).putInt(numFeatures).putInt(serializedHeader.size());
+			preamble.put(serializedHeader.toByteArray());
+			preamble.position(dataOffset);
+			preamble.flip();
+			writeFully(features, preamble);
+
+			ByteBuffer featureBuffer = ByteBuffer.allocateDirect(Math.max(BUFFER_BYTES, 8 * numFeatures));
+			ByteBuffer labelBuffer = ByteBuffer.allocateDirect(Math.max(BUFFER_BYTES, 8 * labelWords));
+			long[] labelSet = new long[labelWords];
+
+			while(numInstances < maximumNumberInstances && stream.hasMoreInstances())
+			{
+				Instance instance = stream.nextInstance().getData();
+
+				if(featureBuffer.remaining() < 8 * numFeatures)
+					flush(features, featureBuffer);
+
+				if(labelBuffer.remaining() < 8 * labelWords)
+					flush(labels, labelBuffer);
+
+				for(int i = 0; i < numFeatures; i++)
+					featureBuffer.putDouble(instance.valueInputAttribute(i));
+
+				Arrays.fill(labelSet, 0);
+				for(int j = 0; j < numLabels; j++)
+					if(instance.classValue(j) == 1)
+						labelSet[j >>> 6] |= 1L << j;
+
+				for(int w = 0; w < labelWords; w++)
+					labelBuffer.putLong(labelSet[w]);
+
+				numInstances++;
+			}
+
+			flush(features, featureBuffer);
+			flush(labels, labelBuffer);
+
+			for(long position = 0, size = labels.size(); position < size; )
+				position += labels.transferTo(position, size - position, features);
+
+			ByteBuffer count = ByteBuffer.allocate(8);
+			count.putLong(numInstances).flip();
+			features.write(count, 8);
+		}
+
+		return numInstances;
+	}
+
+	/**
+	 * Returns the offset of the features section, for a serialized header of the given length.
+	 */
+	public static int dataOffset(int headerBytes)
+	{
+		return (PREAMBLE_BYTES + headerBytes + 7) & ~7;
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		buffer.flip();
+		writeFully(channel, buffer);
+		buffer.clear();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		String streamCLI = "generators.multilabel.MetaMultilabelGenerator -c 10";
+		long maximumNumberInstances = -1;
+		String output = null;
+
+		for(int i = 0; i < args.length; i++)
+		{
+			if(i + 1 == args.length)
+				throw new IllegalArgumentException("Missing value for " + args[i]);
+
+			switch(args[i])
+			{
+			case "-instances": maximumNumberInstances = Long.parseLong(args[++i]); break;
+			case "-stream": streamCLI = args[++i]; break;
+			case "-output": output = args[++i]; break;
+			default: throw new IllegalArgumentException("Unknown argument " + args[i]);
+			}
+		}
+
+		if(output == null || maximumNumberInstances < 0)
+			throw new IllegalArgumentException("Usage: BinaryCacheWriter -instances n -output file.bin [-stream \"MOA stream CLI\"]");
+
+		InstanceStream stream = (InstanceStream) ClassOption.cliStringToObject(streamCLI, MultiTargetInstanceStream.class, null);
+		stream.prepareForUse();
+
+		long numInstances = write(stream, maximumNumberInstances, new File(output));
+
+		System.out.println(numInstances + " instances of " + streamCLI + " written to " + output);
+	}
+}
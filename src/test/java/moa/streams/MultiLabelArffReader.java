@@ -0,0 +1,577 @@
+package moa.streams;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.yahoo.labs.samoa.instances.Attribute;
+import com.yahoo.labs.samoa.instances.Instances;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+import com.yahoo.labs.samoa.instances.Range;
+
+import moa.core.MultilabelInstancesHeader;
+
+/**
+* Buffered reader of MEKA-style multi-label ARFF files, dense or sparse, into reusable primitive buffers
+*
+* The file is read through a FileChannel into a byte buffer, and every row is parsed in place into the label and
+* feature buffers, without creating Strings or Instance objects. Numbers with up to 15 significant digits and
+* small exponents are converted exactly with a single multiplication or division, and the rest with
+* Double.parseDouble. The labels are the first attributes when the relation option -C is positive, or the last ones
+* when it is negative, as in MEKA, and are given first in the header of the reader. Missing values are NaN.
+*
+* Usage: while(reader.next()) learner.testThenTrain(reader.getLabels(), reader.getFeatures());
+*
+* @author Alberto Cano
+*/
+
+public class MultiLabelArffReader implements Closeable {
+
+	private static final int BUFFER_BYTES = 1 << 20;
+
+	private static final Pattern LABELS_OPTION = Pattern.compile("-C\\s+(-?\\d+)");
+
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for(int i = 1; i < POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+	}
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+	private byte[] line = new byte[1024];
+	private int lineLength;
+	private long lineNumber;
+
+	private final int numLabels;
+	private final int numFeatures;
+	private final InstancesHeader header;
+
+	/** label j of ARFF attribute a is -(j + 1), feature i is i */
+	private int[] slots;
+	/** values of the nominal ARFF attributes, null for numeric ones */
+	private byte[][][] nominalValues;
+
+	private final double[] labels;
+	private final double[] features;
+	private final int[] featureIndices;
+	private final double[] featureValues;
+	private int numFeatureValues;
+	private boolean sparse;
+	private double weight;
+
+	/**
+	 * Opens a file and reads its header.
+	 *
+	 * @param file ARFF file
+	 * @param numLabels number of labels, or 0 to take it from the -C option of the relation name
+	 */
+	public MultiLabelArffReader(File file, int numLabels) throws IOException
+	{
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		buffer.flip();
+
+		try
+		{
+			String relationName = null;
+			List<String> names = new ArrayList<String>();
+			List<List<String>> values = new ArrayList<List<String>>();
+
+			while(true)
+			{
+				if(!readLine())
+					throw new IllegalArgumentException(file + " has no @data section");
+
+				String text = new String(line, 0, lineLength, StandardCharsets.UTF_8).trim();
+
+				if(text.isEmpty() || text.startsWith("%"))
+					continue;
+
+				String keyword = text.split("\\s+", 2)[0].toLowerCase();
+
+				if(keyword.equals("@relation"))
+					relationName = unquote(text.substring(keyword.length()).trim());
+				else if(keyword.equals("@attribute"))
+					parseAttribute(text.substring(keyword.length()).trim(), names, values);
+				else if(keyword.equals("@data"))
+					break;
+				else
+					throw new IllegalArgumentException("Unexpected line " + lineNumber + " in the header of " + file + ": " + text);
+			}
+
+			if(numLabels == 0)
+			{
+				Matcher matcher = LABELS_OPTION.matcher(relationName == null ? "" : relationName);
+				if(!matcher.find())
+					throw new IllegalArgumentException("The number of labels is not given and the relation of " + file + " has no -C option");
+				numLabels = Integer.parseInt(matcher.group(1));
+			}
+
+			boolean labelsLast = numLabels < 0;
+			this.numLabels = Math.abs(numLabels);
+			this.numFeatures = names.size() - this.numLabels;
+
+			if(this.numLabels == 0 || numFeatures < 0)
+				throw new IllegalArgumentException("Invalid number of labels " + numLabels + " for " + names.size() + " attributes");
+
+			int firstLabel = labelsLast ? numFeatures : 0;
+			slots = new int[names.size()];
+			nominalValues = new byte[names.size()][][];
+
+			for(int a = 0, feature = 0; a < names.size(); a++)
+			{
+				boolean isLabel = a >= firstLabel && a < firstLabel + this.numLabels;
+				slots[a] = isLabel ? -(a - firstLabel + 1) : feature++;
+
+				if(values.get(a) != null)
+				{
+					nominalValues[a] = new byte[values.get(a).size()][];
+					for(int v = 0; v < nominalValues[a].length; v++)
+						nominalValues[a][v] = values.get(a).get(v).getBytes(StandardCharsets.UTF_8);
+				}
+			}
+
+			header = createHeader(relationName == null ? file.getName() : relationName, names, values);
+		}
+		catch(IOException | RuntimeException e)
+		{
+			channel.close();
+			throw e;
+		}
+
+		labels = new double[this.numLabels];
+		features = new double[numFeatures];
+		featureIndices = new int[numFeatures];
+		featureValues = new double[numFeatures];
+	}
+
+	private void parseAttribute(String text, List<String> names, List<List<String>> values)
+	{
+		String name;
+		String type;
+
+		if(text.startsWith("'") || text.startsWith("\""))
+		{
+			int end = text.indexOf(text.charAt(0), 1);
+			if(end < 0)
+				throw new IllegalArgumentException("Unterminated attribute name at line " + lineNumber);
+			name = text.substring(1, end);
+			type = text.substring(end + 1).trim();
+		}
+		else
+		{
+			String[] parts = text.split("\\s+", 2);
+			name = parts[0];
+			type = parts.length > 1 ? parts[1].trim() : "";
+		}
+
+		names.add(name);
+
+		if(type.startsWith("{"))
+		{
+			List<String> nominal = new ArrayList<String>();
+			for(String value : type.substring(1, type.lastIndexOf('}')).split(","))
+				nominal.add(unquote(value.trim()));
+			values.add(nominal);
+		}
+		else if(type.equalsIgnoreCase("numeric") || type.equalsIgnoreCase("real") || type.equalsIgnoreCase("integer"))
+			values.add(null);
+		else
+			throw new IllegalArgumentException("Unsupported type of attribute " + name + " at line " + lineNumber + ": " + type);
+	}
+
+	private static String unquote(String text)
+	{
+		if(text.length() >= 2 && (text.charAt(0) == '\'' || text.charAt(0) == '"') && text.charAt(text.length() - 1) == text.charAt(0))
+			return text.substring(1, text.length() - 1);
+
+		return text;
+	}
+
+	private InstancesHeader createHeader(String relationName, List<String> names, List<List<String>> values)
+	{
+		List<Attribute> attributes = new ArrayList<Attribute>();
+
+		for(int pass = 0; pass < 2; pass++)
+			for(int a = 0; a < names.size(); a++)
+				if((slots[a] < 0) == (pass == 0))
+					attributes.add(values.get(a) == null ? new Attribute(names.get(a)) : new Attribute(names.get(a), values.get(a)));
+
+		Range range = new Range(Integer.toString(numLabels));
+
+		Instances template = new Instances(relationName, attributes, 0);
+		template.setClassIndex(Integer.MAX_VALUE);
+		template.setRangeOutputIndices(range);
+
+		MultilabelInstancesHeader multilabelHeader = new MultilabelInstancesHeader(template, numLabels);
+		multilabelHeader.setRangeOutputIndices(range);
+		return multilabelHeader;
+	}
+
+	/**
+	 * Returns the header of the rows, with the labels as first attributes.
+	 */
+	public InstancesHeader getHeader()
+	{
+		return header;
+	}
+
+	public int numLabels()
+	{
+		return numLabels;
+	}
+
+	public int numFeatures()
+	{
+		return numFeatures;
+	}
+
+	/**
+	 * Parses the next row into the buffers, returning false at the end of the file.
+	 */
+	public boolean next() throws IOException
+	{
+		while(readLine())
+		{
+			int start = skipSpaces(0, lineLength);
+
+			if(start == lineLength || line[start] == '%')
+				continue;
+
+			if(line[start] == '{')
+				parseSparseRow(start + 1);
+			else
+				parseDenseRow(start);
+
+			return true;
+		}
+
+		return false;
+	}
+
+	/** Label values of the current row, reused by the next one */
+	public double[] getLabels()
+	{
+		return labels;
+	}
+
+	/** Feature values of the current row, zeros included for sparse rows, reused by the next one */
+	public double[] getFeatures()
+	{
+		return features;
+	}
+
+	/** Whether the current row was sparse, with its non-zero features in getFeatureIndices and getFeatureValues */
+	public boolean isSparse()
+	{
+		return sparse;
+	}
+
+	public int[] getFeatureIndices()
+	{
+		return featureIndices;
+	}
+
+	public double[] getFeatureValues()
+	{
+		return featureValues;
+	}
+
+	public int numFeatureValues()
+	{
+		return numFeatureValues;
+	}
+
+	public double getWeight()
+	{
+		return weight;
+	}
+
+	private void parseDenseRow(int position)
+	{
+		sparse = false;
+
+		for(int a = 0; a < slots.length; a++)
+		{
+			int end = find(',', position);
+
+			if(a == slots.length - 1)
+			{
+				end = lineLength;
+				int weightStart = find('{', position);
+				if(weightStart < lineLength)
+					end = weightStart;
+				while(end > position && (line[end - 1] == ',' || line[end - 1] == ' ' || line[end - 1] == '\t'))
+					end--;
+			}
+			else if(end == lineLength)
+				throw new IllegalArgumentException("Expected " + slots.length + " values at line " + lineNumber);
+
+			setValue(a, parseValue(a, position, end));
+			position = end + 1;
+		}
+
+		weight = parseWeight(position);
+	}
+
+	private void parseSparseRow(int position)
+	{
+		// Clear the features of the previous row
+		if(sparse)
+			for(int p = 0; p < numFeatureValues; p++)
+				features[featureIndices[p]] = 0;
+		else
+			Arrays.fill(features, 0);
+
+		Arrays.fill(labels, 0);
+		sparse = true;
+		numFeatureValues = 0;
+
+		int close = find('}', position);
+		if(close == lineLength)
+			throw new IllegalArgumentException("Unterminated sparse row at line " + lineNumber);
+
+		while(position < close)
+		{
+			position = skipSpaces(position, close);
+			if(position == close)
+				break;
+
+			int end = Math.min(find(',', position), close);
+
+			int space = position;
+			while(space < end && line[space] != ' ' && line[space] != '\t')
+				space++;
+
+			int a = (int) parseNumber(position, space);
+			if(a < 0 || a >= slots.length)
+				throw new IllegalArgumentException("Attribute index " + a + " out of range at line " + lineNumber);
+
+			double value = parseValue(a, skipSpaces(space, end), end);
+			setValue(a, value);
+
+			if(slots[a] >= 0 && value != 0)
+			{
+				featureIndices[numFeatureValues] = slots[a];
+				featureValues[numFeatureValues++] = value;
+			}
+
+			position = end + 1;
+		}
+
+		weight = parseWeight(close + 1);
+	}
+
+	private void setValue(int attribute, double value)
+	{
+		int slot = slots[attribute];
+
+		if(slot < 0)
+			labels[-slot - 1] = value;
+		else
+			features[slot] = value;
+	}
+
+	private double parseWeight(int position)
+	{
+		int open = find('{', position);
+
+		if(open >= lineLength)
+			return 1;
+
+		int close = find('}', open);
+		return parseNumber(skipSpaces(open + 1, close), trimEnd(open + 1, close));
+	}
+
+	private double parseValue(int attribute, int start, int end)
+	{
+		start = skipSpaces(start, end);
+		end = trimEnd(start, end);
+
+		if(end - start == 1 && line[start] == '?')
+			return Double.NaN;
+
+		if(nominalValues[attribute] == null)
+			return parseNumber(start, end);
+
+		if(end - start >= 2 && (line[start] == '\'' || line[start] == '"') && line[end - 1] == line[start])
+		{
+			start++;
+			end--;
+		}
+
+		byte[][] nominal = nominalValues[attribute];
+		for(int v = 0; v < nominal.length; v++)
+			if(nominal[v].length == end - start && matches(nominal[v], start))
+				return v;
+
+		throw new IllegalArgumentException("Unknown value " + new String(line, start, end - start, StandardCharsets.UTF_8) + " at line " + lineNumber);
+	}
+
+	private boolean matches(byte[] value, int start)
+	{
+		for(int i = 0; i < value.length; i++)
+			if(line[start + i] != value[i])
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Parses a decimal number, exactly when its significand fits in 15 digits and its exponent in 22, where both
+	 * are exact doubles and a single rounded operation gives the closest double.
+	 */
+	private double parseNumber(int start, int end)
+	{
+		int p = start;
+		boolean negative = false;
+
+		if(p < end && (line[p] == '-' || line[p] == '+'))
+			negative = line[p++] == '-';
+
+		long significand = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean anyDigit = false;
+
+		for(; p < end && line[p] >= '0' && line[p] <= '9'; p++, anyDigit = true)
+		{
+			if(digits < 18)
+			{
+				significand = significand * 10 + (line[p] - '0');
+				if(significand != 0)
+					digits++;
+			}
+			else
+				exponent++;
+		}
+
+		if(p < end && line[p] == '.')
+		{
+			for(p++; p < end && line[p] >= '0' && line[p] <= '9'; p++, anyDigit = true)
+			{
+				if(digits < 18)
+				{
+					significand = significand * 10 + (line[p] - '0');
+					if(significand != 0)
+						digits++;
+					exponent--;
+				}
+			}
+		}
+
+		if(anyDigit && p < end && (line[p] == 'e' || line[p] == 'E'))
+		{
+			p++;
+			boolean negativeExponent = false;
+			if(p < end && (line[p] == '-' || line[p] == '+'))
+				negativeExponent = line[p++] == '-';
+
+			int value = 0;
+			boolean anyExponentDigit = false;
+			for(; p < end && line[p] >= '0' && line[p] <= '9'; p++, anyExponentDigit = true)
+				value = Math.min(100000, value * 10 + (line[p] - '0'));
+
+			if(!anyExponentDigit)
+				anyDigit = false;
+
+			exponent += negativeExponent ? -value : value;
+		}
+
+		if(anyDigit && p == end && digits <= 15 && Math.abs(exponent) < POWERS_OF_TEN.length)
+		{
+			double value = exponent < 0 ? significand / POWERS_OF_TEN[-exponent] : significand * POWERS_OF_TEN[exponent];
+			return negative ? -value : value;
+		}
+
+		try
+		{
+			return Double.parseDouble(new String(line, start, end - start, StandardCharsets.ISO_8859_1));
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Invalid number " + new String(line, start, end - start, StandardCharsets.ISO_8859_1) + " at line " + lineNumber, e);
+		}
+	}
+
+	private int find(char c, int position)
+	{
+		while(position < lineLength && line[position] != c)
+			position++;
+
+		return position;
+	}
+
+	private int skipSpaces(int position, int end)
+	{
+		while(position < end && (line[position] == ' ' || line[position] == '\t'))
+			position++;
+
+		return position;
+	}
+
+	private int trimEnd(int start, int end)
+	{
+		while(end > start && (line[end - 1] == ' ' || line[end - 1] == '\t'))
+			end--;
+
+		return end;
+	}
+
+	/**
+	 * Reads the next line into the line buffer, without its terminator, returning false at the end of the file.
+	 */
+	private boolean readLine() throws IOException
+	{
+		lineLength = 0;
+
+		while(true)
+		{
+			if(!buffer.hasRemaining())
+			{
+				buffer.clear();
+				int read = channel.read(buffer);
+				buffer.flip();
+
+				if(read < 0)
+				{
+					if(lineLength == 0)
+						return false;
+					break;
+				}
+			}
+
+			byte b = buffer.get();
+
+			if(b == '\n')
+				break;
+
+			if(lineLength == line.length)
+				line = Arrays.copyOf(line, 2 * line.length);
+
+			line[lineLength++] = b;
+		}
+
+		if(lineLength > 0 && line[lineLength - 1] == '\r')
+			lineLength--;
+
+		lineNumber++;
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+}
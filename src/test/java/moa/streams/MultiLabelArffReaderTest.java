@@ -0,0 +1,129 @@
+package moa.streams;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+* Checks the numbers parsed by MultiLabelArffReader against Double.parseDouble, and the buffers of sparse rows
+*
+* @author Alberto Cano
+*/
+
+public class MultiLabelArffReaderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void parsesNumbersAsParseDouble() throws IOException {
+
+		Random random = new Random(1);
+		List<String> numbers = new ArrayList<String>(Arrays.asList("0", "-0", "+0.0", "1", "-1", ".5", "5.", "007", "1e0", "1E+3", "-2.5e-3",
+				"123456789012345", "1234567890123456", "12345678901234567890", "0.1", "0.30000000000000004", "9007199254740993",
+				"1e22", "1e23", "1e-22", "1e-23", "4.9e-324", "1.7976931348623157e308", "2.2250738585072014E-308", "NaN", "-Infinity"));
+
+		for(int i = 0; i < 20000; i++)
+		{
+			double value = Double.longBitsToDouble(random.nextLong());
+			double small = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(20) - 10);
+
+			switch(i % 5)
+			{
+			case 0: numbers.add(Double.toString(value)); break;
+			case 1: numbers.add(Double.toString(small)); break;
+			case 2: numbers.add(String.format(Locale.ROOT, "%." + random.nextInt(17) + "f", small)); break;
+			case 3: numbers.add(String.format(Locale.ROOT, "%." + random.nextInt(17) + "e", small)); break;
+			default: numbers.add(Long.toString(random.nextLong() >> random.nextInt(64))); break;
+			}
+		}
+
+		StringBuilder arff = new StringBuilder("@relation numbers\n@attribute label {0,1}\n@attribute x numeric\n@data\n");
+		for(String number : numbers)
+			arff.append("0,").append(number).append('\n');
+
+		try(MultiLabelArffReader reader = new MultiLabelArffReader(write(arff), 1))
+		{
+			for(String number : numbers)
+			{
+				assertTrue(reader.next());
+				assertEquals(number, Double.doubleToLongBits(Double.parseDouble(number)), Double.doubleToLongBits(reader.getFeatures()[0]));
+			}
+
+			assertFalse(reader.next());
+		}
+	}
+
+	@Test
+	public void readsSparseRows() throws IOException {
+
+		// Labels last, as with a negative -C
+		String arff = "@relation 'sparse: -C -2'\n"
+				+ "@attribute a numeric\n"
+				+ "@attribute b {x,y,z}\n"
+				+ "@attribute c numeric\n"
+				+ "@attribute l1 {0,1}\n"
+				+ "@attribute l2 {0,1}\n"
+				+ "@data\n"
+				+ "% comment\n"
+				+ "{0 1.5, 1 z, 4 1}\n"
+				+ "{2 -3, 3 1} {0.5}\n"
+				+ "\n"
+				+ "2.5,y,?,1,0\n"
+				+ "{ 1 'y' ,2 ? }\n"
+				+ "{}\n";
+
+		try(MultiLabelArffReader reader = new MultiLabelArffReader(write(new StringBuilder(arff)), 0))
+		{
+			assertEquals(2, reader.numLabels());
+			assertEquals(3, reader.numFeatures());
+			assertEquals(5, reader.getHeader().numAttributes());
+
+			assertRow(reader, true, new double[] {0, 1}, new double[] {1.5, 2, 0}, new int[] {0, 1}, new double[] {1.5, 2}, 1);
+			assertRow(reader, true, new double[] {1, 0}, new double[] {0, 0, -3}, new int[] {2}, new double[] {-3}, 0.5);
+			assertRow(reader, false, new double[] {1, 0}, new double[] {2.5, 1, Double.NaN}, null, null, 1);
+			assertRow(reader, true, new double[] {0, 0}, new double[] {0, 1, Double.NaN}, new int[] {1, 2}, new double[] {1, Double.NaN}, 1);
+			assertRow(reader, true, new double[] {0, 0}, new double[] {0, 0, 0}, new int[0], new double[0], 1);
+
+			assertFalse(reader.next());
+		}
+	}
+
+	private static void assertRow(MultiLabelArffReader reader, boolean sparse, double[] labels, double[] features, int[] indices, double[] values, double weight) throws IOException {
+
+		assertTrue(reader.next());
+		assertEquals(sparse, reader.isSparse());
+		assertArrayEquals(labels, reader.getLabels(), 0);
+		assertArrayEquals(features, reader.getFeatures(), 0);
+		assertEquals(weight, reader.getWeight(), 0);
+
+		if(sparse)
+		{
+			assertArrayEquals(indices, Arrays.copyOf(reader.getFeatureIndices(), reader.numFeatureValues()));
+			assertArrayEquals(values, Arrays.copyOf(reader.getFeatureValues(), reader.numFeatureValues()), 0);
+		}
+	}
+
+	private File write(CharSequence arff) throws IOException {
+
+		File file = folder.newFile();
+		Files.write(file.toPath(), arff.toString().getBytes(StandardCharsets.UTF_8));
+
+		return file;
+	}
+}
@@ -22,13 +22,13 @@ package moa.streams.generators.multilabel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.Random;
+import java.util.stream.IntStream;
 
+import com.github.javacliparser.FlagOption;
 import com.github.javacliparser.FloatOption;
 import com.github.javacliparser.IntOption;
 import com.yahoo.labs.samoa.instances.Attribute;
@@ -77,6 +77,9 @@ public class MetaMultilabelGenerator extends AbstractOptionHandler implements Mu
 	public FloatOption labelDependencyChangeRatioOption = new FloatOption(
 			"labelDependencyRatioChange", 'r', "Each label-pair dependency has a 'r' chance of being modified. Use this option on the second of two streams with the same random seed (-m) to introduce label-dependence drift.", 0.0, 0.0, 1.0);
 
+	public FlagOption parallelWarmUpOption = new FlagOption(
+			"parallelWarmUp", 'p', "Sample the label sets used to build the feature-label map in parallel, with seeds drawn from the meta seed (generates a different stream than the sequential warm-up).");
+
 	protected MultilabelInstancesHeader m_MultilabelInstancesHeader = null;
 
 	protected InstanceStream m_BinaryGenerator = null;
@@ -91,7 +94,8 @@ public class MetaMultilabelGenerator extends AbstractOptionHandler implements Mu
 
 	protected double Conditional[][] = null;
 
-	protected HashSet m_TopCombinations[] = null;
+	/** label sets as bitmasks, bit j of word j / 64 set when label j is relevant */
+	protected long m_TopCombinations[][] = null;
 
 	@Override
 	public void prepareForUseImpl(TaskMonitor monitor, ObjectRepository repository) {
@@ -240,25 +244,52 @@ public class MetaMultilabelGenerator extends AbstractOptionHandler implements Mu
 	 *
 	 * @return	a label set Y
 	 */
-	private HashSet generateSet() {
+	private long[] generateSet() {
 
-		int y[] = new int[m_L]; 			// [0,0,0]
-		int k = samplePMF(priors_norm); 	// k = 1     // y[k] ~ p(k==1)
-		y[k] = 1; 							// [0,1,0]
+		long y[] = new long[(m_L + 63) >>> 6]; 	// [0,0,0]
+		int k = samplePMF(priors_norm, m_MetaRandom); 	// k = 1     // y[k] ~ p(k==1)
+		y[k >>> 6] |= 1L << k; 			// [0,1,0]
 		ArrayList<Integer> indices = getShuffledListToLWithoutK(m_L, k);
 		for (int j : indices) {
 			//y[j] ~ p(j==1|y)
-			y[j] = (joint(j, y) > m_MetaRandom.nextDouble()) ? 1 : 0;
+			if (joint(j, y) > m_MetaRandom.nextDouble()) {
+				y[j >>> 6] |= 1L << j;
+			}
 		}
-		return vector2set(y);
+		return y;
+	}
+
+	/**
+	 * Generate Set, drawing every random number from r, as used by the parallel warm-up.
+	 */
+	private long[] generateSet(Random r, int order[]) {
+
+		long y[] = new long[(m_L + 63) >>> 6];
+		int k = samplePMF(priors_norm, r);
+		y[k >>> 6] |= 1L << k;
+		for (int i = order.length - 1; i > 0; i--) {
+			int swap = r.nextInt(i + 1);
+			int j = order[i];
+			order[i] = order[swap];
+			order[swap] = j;
+		}
+		for (int j : order) {
+			if (j != k && joint(j, y) > r.nextDouble()) {
+				y[j >>> 6] |= 1L << j;
+			}
+		}
+		return y;
 	}
 
 	// P(y[] where y[k]==1)
-	private double joint(int k, int y[]) {
+	private double joint(int k, long y[]) {
 		double p = 1.0; //priors[k];
-		for (int j = 0; j < y.length; j++) {
-			if (j != k && y[j] == 1) {
-				p *= Conditional[k][j];
+		for (int w = 0; w < y.length; w++) {
+			for (long bits = y[w]; bits != 0; bits &= bits - 1) {
+				int j = (w << 6) + Long.numberOfTrailingZeros(bits);
+				if (j != k) {
+					p *= Conditional[k][j];
+				}
 			}
 		}
 		return p;
@@ -267,10 +298,10 @@ public class MetaMultilabelGenerator extends AbstractOptionHandler implements Mu
 	/**
 	 * GenerateMLInstance.
 	 *
-	 * @param	Y	a set of label [indices]
+	 * @param	Y	a set of labels, as a bitmask
 	 * @return a multit-labelled example
 	 */
-	private Instance generateMLInstance(HashSet<Integer> Y) {
+	private Instance generateMLInstance(long Y[]) {
 
 		// create a multi-label instance:
 		Instance x_ml = new DenseInstance(this.multilabelStreamTemplate.numAttributes());
@@ -280,8 +311,10 @@ public class MetaMultilabelGenerator extends AbstractOptionHandler implements Mu
 		for (int j = 0; j < m_L; j++) {
 			x_ml.setValue(j, 0.0);
 		}
-		for (int l : Y) {
-			x_ml.setValue(l, 1.0);
+		for (int w = 0; w < Y.length; w++) {
+			for (long bits = Y[w]; bits != 0; bits &= bits - 1) {
+				x_ml.setValue((w << 6) + Long.numberOfTrailingZeros(bits), 1.0);
+			}
 		}
 
 		// generate binary instances
@@ -292,7 +325,7 @@ public class MetaMultilabelGenerator extends AbstractOptionHandler implements Mu
 		for (int a = 0; a < m_A; a++) {
 
 			// The combination is present: use a positive value
-			if (Y.containsAll(m_TopCombinations[a])) {
+			if (containsAll(Y, m_TopCombinations[a])) {
 				x_ml.setValue(m_L + a, x_1.value(a));
 				//x_ml.setValue(m_L+a,1.0);
 			} // The combination is absent: use a negative value
@@ -312,9 +345,9 @@ public class MetaMultilabelGenerator extends AbstractOptionHandler implements Mu
 	 * @return	an index i of p with probability p[i], and -1 with probability
 	 * 1.0-p[i]
 	 */
-	private int samplePMF(double p[]) {
+	private int samplePMF(double p[], Random random) {
 
-		double r = m_MetaRandom.nextDouble();
+		double r = random.nextDouble();
 
 		double sum = 0.0;
 		for (int i = 0; i < p.length; i++) {
@@ -424,38 +457,89 @@ public class MetaMultilabelGenerator extends AbstractOptionHandler implements Mu
 	 * @param	n	the number of labelsets
 	 * @return	n labelsts
 	 */
-	private HashSet[] getTopCombinations(int n) {
+	private long[][] getTopCombinations(int n) {
 
-		final HashMap<HashSet, Integer> count = new HashMap<HashSet, Integer>();
-		HashMap<HashSet, Integer> isets = new HashMap<HashSet, Integer>();
+		LabelSetCounter count;
 
 		int N = 100000;
 		double lc = 0.0;
-		for (int i = 0; i < N; i++) {
-			HashSet Y = generateSet();
-			lc += Y.size();
-			count.put(Y, count.get(Y) != null ? count.get(Y) + 1 : 1);
+		if (parallelWarmUpOption.isSet()) {
+			// Fixed number of chunks, so that the result does not depend on the number of cores
+			int chunks = 16;
+			final long seeds[] = new long[chunks];
+			for (int c = 0; c < chunks; c++) {
+				seeds[c] = m_MetaRandom.nextLong();
+			}
+			final LabelSetCounter counts[] = new LabelSetCounter[chunks];
+			IntStream.range(0, chunks).parallel().forEach(c -> {
+				Random r = new Random(seeds[c]);
+				int order[] = new int[m_L];
+				for (int j = 0; j < m_L; j++) {
+					order[j] = j;
+				}
+				counts[c] = new LabelSetCounter();
+				for (int i = c; i < N; i += chunks) {
+					counts[c].add(generateSet(r, order), 1);
+				}
+			});
+			count = counts[0];
+			for (int c = 1; c < chunks; c++) {
+				for (int i = 0; i < counts[c].size(); i++) {
+					count.add(counts[c].labelSet(i), counts[c].count(i));
+				}
+			}
+		} else {
+			count = new LabelSetCounter();
+			for (int i = 0; i < N; i++) {
+				count.add(generateSet(), 1);
+			}
+		}
+		for (int i = 0; i < count.size(); i++) {
+			lc += count.count(i) * (double) cardinality(count.labelSet(i));
 		}
 		lc = lc / N;
 
 		// @TODO could generate closed frequent itemsets from 'count'
 
-		List<HashSet> top_set = new ArrayList<HashSet>(count.keySet());
-		// Sort the sets by their count
-		Collections.sort(top_set, new Comparator<HashSet>() {
-
-			public int compare(HashSet Y1, HashSet Y2) {
-				return count.get(Y2).compareTo(count.get(Y1));
+		// Ties keep the iteration order of a HashMap of HashSets, in which the sets were counted before, so that
+		// the default stream is unchanged; the parallel warm-up keeps the first sampled first
+		int ties[] = new int[count.size()];
+		if (parallelWarmUpOption.isSet()) {
+			for (int i = 0; i < ties.length; i++) {
+				ties[i] = i;
 			}
-		});
+		} else {
+			HashMap<HashSet<Integer>, Integer> sets = new HashMap<HashSet<Integer>, Integer>();
+			for (int i = 0; i < count.size(); i++) {
+				sets.put(labelSetToHashSet(count.labelSet(i)), i);
+			}
+			int t = 0;
+			for (int i : sets.values()) {
+				ties[t++] = i;
+			}
+		}
+
+		// Sort the sets by their count
+		long order[] = new long[count.size()];
+		for (int t = 0; t < order.length; t++) {
+			order[t] = ((long) count.count(ties[t]) << 32) | (Integer.MAX_VALUE - t);
+		}
+		Arrays.sort(order);
+		long top_set[][] = new long[order.length][];
+		int top_count[] = new int[order.length];
+		for (int i = 0; i < order.length; i++) {
+			int set = ties[Integer.MAX_VALUE - (int) order[order.length - 1 - i]];
+			top_set[i] = count.labelSet(set);
+			top_count[i] = count.count(set);
+		}
 
 		System.err.println("The most common labelsets (from which we will build the map) will likely be: ");
-		HashSet map_set[] = new HashSet[n];
+		long map_set[][] = new long[n][];
 		double weights[] = new double[n];
 		int idx = 0;
-		for (HashSet Y : top_set) {
-			System.err.println(" " + Y + " : " + (count.get(Y) * 100.0 / N) + "%");
-			weights[idx++] = count.get(Y);
+		for (int i = 0; i < top_set.length; i++) {
+			System.err.println(" " + labelSetToString(top_set[i]) + " : " + (top_count[i] * 100.0 / N) + "%");
+			weights[idx++] = top_count[i];
 			if (idx == weights.length) {
 				break;
 			}
@@ -469,10 +553,10 @@ public class MetaMultilabelGenerator extends AbstractOptionHandler implements Mu
 		Utils.normalize(weights);
 
 		// add sets to the map set, according to their weights
-		for (int i = 0, k = 0; i < top_set.size() && k < map_set.length; i++) {   // i'th combination (pre)
+		for (int i = 0, k = 0; i < top_set.length && k < map_set.length; i++) {   // i'th combination (pre)
 			int num = (int) Math.round(Math.max(weights[i] * map_set.length, 1.0));	 // i'th weight
 			for (int j = 0; j < num && k < map_set.length; j++) {
-				map_set[k++] = top_set.get(i);
+				map_set[k++] = top_set[i];
 			}
 		}
 
@@ -483,6 +567,63 @@ public class MetaMultilabelGenerator extends AbstractOptionHandler implements Mu
 		return map_set;
 	}
 
+	/**
+	 * Counts of label sets, in an open-addressing table keyed by their bitmasks, in order of first occurrence.
+	 */
+	private static final class LabelSetCounter {
+
+		private long sets[][] = new long[1024][];
+		private int counts[] = new int[1024];
+		private int table[] = new int[2048];	// index + 1 of the set in each slot, 0 when empty
+		private int size = 0;
+
+		void add(long Y[], int c) {
+			int mask = table.length - 1;
+			int slot = Arrays.hashCode(Y) * 0x9E3779B9 >>> 1 & mask;
+			while (table[slot] != 0) {
+				if (Arrays.equals(sets[table[slot] - 1], Y)) {
+					counts[table[slot] - 1] += c;
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			if (size == sets.length) {
+				sets = Arrays.copyOf(sets, 2 * size);
+				counts = Arrays.copyOf(counts, 2 * size);
+			}
+			sets[size] = Y;
+			counts[size] = c;
+			table[slot] = ++size;
+			if (2 * size > table.length) {
+				rehash();
+			}
+		}
+
+		private void rehash() {
+			table = new int[2 * table.length];
+			int mask = table.length - 1;
+			for (int i = 0; i < size; i++) {
+				int slot = Arrays.hashCode(sets[i]) * 0x9E3779B9 >>> 1 & mask;
+				while (table[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				table[slot] = i + 1;
+			}
+		}
+
+		int size() {
+			return size;
+		}
+
+		long[] labelSet(int i) {
+			return sets[i];
+		}
+
+		int count(int i) {
+			return counts[i];
+		}
+	}
+
 	public InstancesHeader getHeader() {
 		return m_MultilabelInstancesHeader;
 	}
@@ -508,24 +649,45 @@ public class MetaMultilabelGenerator extends AbstractOptionHandler implements Mu
 	}
 
 	// ------- following are private utility functions -----------
-	// convert set Y to an L-length vector y
-	private int[] set2vector(HashSet<Integer> Y, int L) {
-		int y[] = new int[L];
-		for (int j : Y) {
-			y[j] = 1;
+	// whether label set Y contains every label of set S
+	private static boolean containsAll(long Y[], long S[]) {
+		for (int w = 0; w < S.length; w++) {
+			if ((S[w] & ~Y[w]) != 0) {
+				return false;
+			}
 		}
-		return y;
+		return true;
+	}
+
+	// number of labels of set Y
+	private static int cardinality(long Y[]) {
+		int c = 0;
+		for (long word : Y) {
+			c += Long.bitCount(word);
+		}
+		return c;
+	}
+
+	// label set Y as [j1, j2, ...]
+	private static String labelSetToString(long Y[]) {
+		StringBuilder sb = new StringBuilder("[");
+		for (int w = 0; w < Y.length; w++) {
+			for (long bits = Y[w]; bits != 0; bits &= bits - 1) {
+				sb.append(sb.length() > 1 ? ", " : "").append((w << 6) + Long.numberOfTrailingZeros(bits));
+			}
+		}
+		return sb.append("]").toString();
 	}
-	// convert L-length vector y to set Y
 
-	private HashSet<Integer> vector2set(int y[]) {
-		HashSet<Integer> Y = new HashSet<Integer>();
-		for (int j = 0; j < y.length; j++) {
-			if (y[j] > 0) {
-				Y.add(j);
+	// label set Y as the HashSet of its labels
+	private static HashSet<Integer> labelSetToHashSet(long Y[]) {
+		HashSet<Integer> set = new HashSet<Integer>();
+		for (int w = 0; w < Y.length; w++) {
+			for (long bits = Y[w]; bits != 0; bits &= bits - 1) {
+				set.add((w << 6) + Long.numberOfTrailingZeros(bits));
 			}
 		}
-		return Y;
+		return set;
 	}
 
 	// the highest possible prob. of P(A|B) given A and B